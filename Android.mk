@@ -7,6 +7,9 @@ LOCAL_MODULE := libintelcamera_jni
 LOCAL_MODULE_TAGS := optional
 LOCAL_SRC_FILES:= \
 	libacc/libacc.cpp \
+	libacc/CameraTrace.cpp \
+	libacc/ImageDumper.cpp \
+	jni/RecordingFrameTap.cpp \
 	jni/com_intel_camera_extensions_IntelCamera.cpp
 LOCAL_SHARED_LIBRARIES := \
 	libandroid_runtime \
@@ -36,8 +39,7 @@ include $(BUILD_PREBUILT)
 include $(CLEAR_VARS)
 LOCAL_MODULE := com.intel.camera.extensions
 LOCAL_MODULE_TAGS := optional
-LOCAL_SRC_FILES := \
-	com/intel/camera/extensions/IntelCamera.java
+LOCAL_SRC_FILES := $(call all-java-files-under, com)
 include $(BUILD_JAVA_LIBRARY)
 
 ################# COPY_HEADERS #######################
@@ -45,6 +47,7 @@ include $(CLEAR_VARS)
 LOCAL_COPY_HEADERS_TO := cameralibs
 LOCAL_COPY_HEADERS := \
 	include/intel_camera_extensions.h \
+	include/intel_camera_recording_tap.h \
 	libacc/Ilibacc.h
 include $(BUILD_COPY_HEADERS)
 
@@ -58,4 +61,6 @@ LOCAL_MODULE_OWNER := intel
 LOCAL_MODULE_PATH := $(TARGET_OUT)/media/audio/ui
 LOCAL_SRC_FILES := data/sounds/effects/$(LOCAL_MODULE)
 include $(BUILD_PREBUILT)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
 endif #ifneq (,$(wildcard frameworks/base/core/jni/android_hardware_Camera.h))
@@ -0,0 +1,12 @@
+LOCAL_PATH:= $(call my-dir)
+
+################# MAKE_BENCHMARKS #####################
+# Run on the device with
+#   adb shell CLASSPATH=/system/framework/com.intel.camera.extensions.jar:/system/framework/com.intel.camera.extensions.benchmarks.jar \
+#       app_process / com.intel.camera.extensions.benchmarks.<Benchmark> [args]
+include $(CLEAR_VARS)
+LOCAL_MODULE := com.intel.camera.extensions.benchmarks
+LOCAL_MODULE_TAGS := tests
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_JAVA_LIBRARIES := com.intel.camera.extensions
+include $(BUILD_JAVA_LIBRARY)
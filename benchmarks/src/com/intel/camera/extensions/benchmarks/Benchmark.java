@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.camera.extensions.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Minimal timing harness for the benchmarks in this package.
+ * <p>
+ * Each measurement runs the body for a number of warm-up rounds, then times
+ * a number of rounds of a fixed operation count and reports the median and
+ * minimum time per operation.
+ */
+public abstract class Benchmark
+{
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 15;
+
+    /** Runs the measured operation count times. */
+    protected abstract void run(int count) throws Exception;
+
+    /**
+     * Measures the body and prints one result line.
+     * @return the median time per operation in nanoseconds
+     */
+    public double measure(String name, int count) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            run(count);
+
+        long[] rounds = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            run(count);
+            rounds[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(rounds);
+        double median = (double) rounds[ROUNDS / 2] / count;
+        double min = (double) rounds[0] / count;
+        System.out.println(String.format("%-40s %12.1f ns/op (min %.1f, %d ops x %d rounds)",
+                name, median, min, count, ROUNDS));
+        return median;
+    }
+
+    /** Prints the environment the numbers were taken on. */
+    public static void printEnvironment() {
+        System.out.println("cpus=" + Runtime.getRuntime().availableProcessors()
+                + " vm=" + System.getProperty("java.vm.name")
+                + " " + System.getProperty("java.vm.version"));
+    }
+}
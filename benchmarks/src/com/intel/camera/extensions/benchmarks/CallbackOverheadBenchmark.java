@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.camera.extensions.benchmarks;
+
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.intel.camera.extensions.IntelCamera;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the cost of the native callbacks into Java at preview rate.
+ * <p>
+ * Subscribes to accelerator preview frames, which arrive once per preview
+ * frame, releases each frame right away and previews for the given number
+ * of seconds (5 by default). The trace ring then gives the time spent per
+ * callback in postEventFromNative and the one-off cost of looking up, or
+ * attaching, the JNIEnv of each HAL callback thread. Before the per-thread
+ * cache that lookup ran on every callback, so attach cost times callback
+ * rate bounds the time saved per second. Run it as root with the camera idle.
+ */
+public class CallbackOverheadBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        final int cameraId = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Benchmark.printEnvironment();
+
+        // the camera delivers its events on the looper it is opened on
+        HandlerThread thread = new HandlerThread("CallbackOverheadBenchmark");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        final IntelCamera[] camera = new IntelCamera[1];
+        final AtomicInteger frames = new AtomicInteger();
+        final CountDownLatch opened = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                camera[0] = new IntelCamera(cameraId);
+                camera[0].setAccPreviewListener(new IntelCamera.AccPreviewListener() {
+                    @Override
+                    public void onAccPreviewFrame(IntelCamera.AccPreviewFrame frame) {
+                        frames.incrementAndGet();
+                        frame.release();
+                    }
+                });
+                opened.countDown();
+            }
+        });
+        opened.await();
+
+        SurfaceTexture texture = new SurfaceTexture(0);
+        try {
+            IntelCamera.setTraceLevel(IntelCamera.TRACE_LEVEL_EVENT);
+            camera[0].getCameraDevice().setPreviewTexture(texture);
+            camera[0].getCameraDevice().startPreview();
+            Thread.sleep(seconds * 1000L);
+            camera[0].getCameraDevice().stopPreview();
+
+            long[] callbacks = IntelCamera.getTraceSummary(IntelCamera.TRACE_EVENT_JAVA_CALLBACK);
+            long[] attaches = IntelCamera.getTraceSummary(IntelCamera.TRACE_EVENT_CALLBACK_ATTACH);
+            double rate = (double) frames.get() / seconds;
+            double perCallback = callbacks[0] > 0 ? (double) callbacks[1] / callbacks[0] : 0;
+            double perAttach = attaches[0] > 0 ? (double) attaches[1] / attaches[0] : 0;
+            System.out.println(String.format("frames %d (%.1f/s)", frames.get(), rate));
+            System.out.println(String.format("java callback %.1f us mean, %d us max (%d sampled)",
+                    perCallback, callbacks[2], callbacks[0]));
+            System.out.println(String.format("env lookup/attach %.1f us mean, %d us max (%d threads)",
+                    perAttach, attaches[2], attaches[0]));
+            System.out.println(String.format("lookup cost avoided %.1f us/s at this rate",
+                    perAttach * rate));
+        } finally {
+            IntelCamera.setTraceLevel(IntelCamera.TRACE_LEVEL_OFF);
+            camera[0].release();
+            texture.release();
+            thread.quit();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.camera.extensions.benchmarks;
+
+import com.intel.camera.extensions.HighSpeedRecordingPlanner;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures building a {@link HighSpeedRecordingPlanner} and looking up
+ * plans, from a fixed table of supported values shaped like the HAL's.
+ * <p>
+ * Needs no camera, so it runs on the host as well as on the device. The
+ * plans are checked against the expected choices before timing, so a
+ * broken parse or sort order fails the run.
+ */
+public class HighSpeedPlannerBenchmark
+{
+    // deliberately out of order, with several rates per resolution
+    private static final List<String> ENTRIES = Arrays.asList(
+            "640x480@120", "1920x1080@30", "1280x720@60", "320x240@240",
+            "1920x1080@60", "1280x720@120", "640x480@240", "3264x2448@15",
+            "320x240@120", "2560x1440@30");
+    private static final List<String> RECORDING_FPS = Arrays.asList(
+            "120", "30", "240", "60");
+    private static final List<String> SLOW_MOTION_RATES = Arrays.asList(
+            "1x", "4x", "2x", "8x");
+    private static final int[] PREVIEW_WIDTHS = { 320, 1920, 640, 1280, 720 };
+    private static final int[] PREVIEW_HEIGHTS = { 240, 1080, 480, 720, 480 };
+
+    public static void main(String[] args) throws Exception {
+        Benchmark.printEnvironment();
+        final HighSpeedRecordingPlanner planner = newPlanner();
+
+        // 3264x2448 is too slow even for real time
+        check(planner, 1, 0, 0, 0, "2560x1440@30", "1920x1080");
+        check(planner, 2, 0, 0, 0, "1920x1080@60", "1920x1080");
+        check(planner, 4, 0, 0, 0, "1280x720@120", "1280x720");
+        check(planner, 8, 0, 0, 0, "640x480@240", "640x480");
+        // 1280x720 at 120fps is above 100M pixels per second
+        check(planner, 4, 0, 0, 100000000L, "640x480@120", "640x480");
+        check(planner, 8, 1280, 720, 0, null, null);
+        check(planner, 3, 0, 0, 0, null, null);
+
+        new Benchmark() {
+            @Override
+            protected void run(int count) {
+                for (int i = 0; i < count; i++)
+                    newPlanner();
+            }
+        }.measure("HighSpeedRecordingPlanner()", 10000);
+        new Benchmark() {
+            @Override
+            protected void run(int count) {
+                for (int i = 0; i < count; i++)
+                    planner.plan(1 << (i & 3), 0, 0, 0);
+            }
+        }.measure("plan()", 100000);
+    }
+
+    private static HighSpeedRecordingPlanner newPlanner() {
+        return new HighSpeedRecordingPlanner(ENTRIES, RECORDING_FPS, SLOW_MOTION_RATES,
+                PREVIEW_WIDTHS, PREVIEW_HEIGHTS);
+    }
+
+    private static void check(HighSpeedRecordingPlanner planner, int factor, int minWidth,
+            int minHeight, long maxPixelsPerSecond, String entry, String preview) {
+        HighSpeedRecordingPlanner.Plan plan = planner.plan(factor, minWidth, minHeight, maxPixelsPerSecond);
+        String got = plan == null ? null : plan.width + "x" + plan.height + "@" + plan.sensorFps;
+        String gotPreview = plan == null ? null : plan.previewWidth + "x" + plan.previewHeight;
+        if (entry == null ? got != null : !entry.equals(got) || !preview.equals(gotPreview)) {
+            throw new IllegalStateException("plan(" + factor + ") is " + plan + ", expected "
+                    + entry + " preview " + preview);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.camera.extensions.benchmarks;
+
+import com.intel.camera.extensions.IntelCamera;
+
+/**
+ * Measures the per-call cost of the IntelCamera command wrappers.
+ * <p>
+ * Opens the given camera (0 by default) and times the one-command wrappers,
+ * which go through the cached native camera and a synchronous sendCommand,
+ * against {@link android.hardware.Camera#getParameters()} as a reference
+ * binder round trip. Needs the camera permission, so run it as root with
+ * the camera idle.
+ */
+public class IntelCameraJniBenchmark
+{
+    private static final int CALLS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int cameraId = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        Benchmark.printEnvironment();
+
+        final IntelCamera camera = new IntelCamera(cameraId);
+        try {
+            new Benchmark() {
+                @Override
+                protected void run(int count) {
+                    for (int i = 0; i < count; i++)
+                        camera.setWindowlessPreviewFrameCaptureId(i);
+                }
+            }.measure("setWindowlessPreviewFrameCaptureId", CALLS);
+
+            new Benchmark() {
+                @Override
+                protected void run(int count) {
+                    for (int i = 0; i < count; i++) {
+                        camera.pauseWindowlessPreviewFrameUpdate();
+                        camera.resumeWindowlessPreviewFrameUpdate();
+                    }
+                }
+            }.measure("pause+resumeWindowlessPreviewFrameUpdate", CALLS / 2);
+
+            new Benchmark() {
+                @Override
+                protected void run(int count) {
+                    for (int i = 0; i < count; i++)
+                        camera.getCameraDevice().getParameters();
+                }
+            }.measure("Camera.getParameters (reference)", CALLS / 10);
+        } finally {
+            camera.release();
+        }
+    }
+}
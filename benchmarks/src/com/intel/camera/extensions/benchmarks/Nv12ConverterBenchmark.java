@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.camera.extensions.benchmarks;
+
+import android.hardware.Camera;
+
+import com.intel.camera.extensions.IntelCamera;
+import com.intel.camera.extensions.Nv12Converter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures every operation of {@link Nv12Converter} at the panorama live
+ * preview sizes, on one thread and on one thread per core.
+ * <p>
+ * With "camera [id]" as arguments the sizes are read from
+ * {@link IntelCamera#getSupportedPanoramaLivePreviewSizes(Camera.Parameters)}
+ * of that camera (0 by default), which needs the camera permission. Sizes
+ * can also be given as WxH arguments. Without arguments a fixed table of
+ * live preview sizes is used, so the benchmark runs on the host as well as
+ * on the device. The stride of the buffer path is the width rounded up to
+ * 64 bytes.
+ */
+public class Nv12ConverterBenchmark
+{
+    // used without a camera, keep in line with panorama-live-preview-sizes of the HAL
+    private static final String[] DEFAULT_SIZES = { "160x120", "320x240", "640x480" };
+    // pixels converted per measured round, so small sizes get enough operations
+    private static final int PIXELS_PER_ROUND = 4 * 1000 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        List<int[]> sizes = new ArrayList<int[]>();
+        if (args.length > 0 && args[0].equals("camera")) {
+            int cameraId = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+            IntelCamera camera = new IntelCamera(cameraId);
+            try {
+                Camera.Parameters params = camera.getCameraDevice().getParameters();
+                for (Camera.Size size : camera.getSupportedPanoramaLivePreviewSizes(params))
+                    sizes.add(new int[] { size.width, size.height });
+            } finally {
+                camera.release();
+            }
+            if (sizes.isEmpty()) {
+                System.out.println("Camera " + cameraId + " reports no panorama live preview sizes");
+                return;
+            }
+        } else {
+            for (String size : args.length > 0 ? args : DEFAULT_SIZES)
+                sizes.add(parseSize(size));
+        }
+        Benchmark.printEnvironment();
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int[] threads = cpus > 1 ? new int[] { 1, cpus } : new int[] { 1 };
+        for (int[] size : sizes) {
+            for (int count : threads)
+                measure(size[0], size[1], count);
+        }
+    }
+
+    private static void measure(final int width, final int height, int threads) throws Exception {
+        final int stride = (width + 63) & ~63;
+        String suffix = " " + width + "x" + height + " threads=" + threads;
+        int ops = Math.max(10, PIXELS_PER_ROUND / (width * height));
+
+        final byte[] array = new byte[width * height * 3 / 2];
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(stride * height * 3 / 2);
+        for (int i = 0; i < array.length; i++)
+            array[i] = (byte) (i * 31);
+        for (int i = 0; i < buffer.capacity(); i++)
+            buffer.put(i, (byte) (i * 31));
+        final int[] argb = new int[width * height];
+        final short[] rgb565 = new short[width * height];
+        final byte[] yuv = new byte[width * height * 3 / 2];
+
+        final Nv12Converter converter = new Nv12Converter(threads);
+        try {
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.toArgb(array, width, height, argb);
+                }
+            }.measure("toArgb(byte[])" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.toArgb(buffer, width, height, stride, argb);
+                }
+            }.measure("toArgb(ByteBuffer)" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.toRgb565(array, width, height, rgb565);
+                }
+            }.measure("toRgb565" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.toI420(array, width, height, yuv);
+                }
+            }.measure("toI420" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.downscale(array, width, height, 2, yuv);
+                }
+            }.measure("downscale x2" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.crop(array, width, height, width / 4, height / 4,
+                                width / 2, height / 2, yuv);
+                }
+            }.measure("crop center half" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.rotate(array, width, height, 90, false, yuv);
+                }
+            }.measure("rotate 90" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.rotate(array, width, height, 180, false, yuv);
+                }
+            }.measure("rotate 180" + suffix, ops);
+            new Benchmark() {
+                @Override
+                protected void run(int n) {
+                    for (int i = 0; i < n; i++)
+                        converter.rotate(array, width, height, 0, true, yuv);
+                }
+            }.measure("mirror" + suffix, ops);
+        } finally {
+            converter.release();
+        }
+    }
+
+    private static int[] parseSize(String size) {
+        int x = size.indexOf('x');
+        if (x < 0)
+            throw new IllegalArgumentException("Invalid size " + size + ", expected WxH");
+        return new int[] { Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1)) };
+    }
+}
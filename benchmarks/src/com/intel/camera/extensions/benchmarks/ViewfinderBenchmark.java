@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.camera.extensions.benchmarks;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.intel.camera.extensions.BurstSession;
+import com.intel.camera.extensions.IntelCamera;
+import com.intel.camera.extensions.ViewfinderMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the viewfinder frame rate and jitter during a burst capture,
+ * with continuous viewfinder off and on.
+ * <p>
+ * Opens the given camera (0 by default), starts preview with a
+ * {@link ViewfinderMonitor} as preview callback and runs a burst of the
+ * given length (10 by default) into the given directory
+ * (/data/local/tmp/viewfinder_benchmark by default). The monitor covers
+ * the time from takePicture until all JPEGs are on disk; with continuous
+ * viewfinder off the preview stops at takePicture, which shows up as a low
+ * frame count and a long gap. Run it as root with the camera idle.
+ */
+public class ViewfinderBenchmark
+{
+    private static final long BURST_TIMEOUT_S = 60;
+    private static final long PREVIEW_WARMUP_MS = 1000;
+
+    private static IntelCamera sCamera;
+    private static Handler sHandler;
+
+    public static void main(String[] args) throws Exception {
+        final int cameraId = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        File directory = new File(args.length > 2 ? args[2] : "/data/local/tmp/viewfinder_benchmark");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+        Benchmark.printEnvironment();
+
+        // the camera and the burst session deliver their events on this looper
+        HandlerThread thread = new HandlerThread("ViewfinderBenchmark");
+        thread.start();
+        sHandler = new Handler(thread.getLooper());
+        final CountDownLatch opened = new CountDownLatch(1);
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sCamera = new IntelCamera(cameraId);
+                opened.countDown();
+            }
+        });
+        opened.await();
+
+        SurfaceTexture texture = new SurfaceTexture(0);
+        try {
+            Camera device = sCamera.getCameraDevice();
+            device.setPreviewTexture(texture);
+            measure(false, length, directory);
+            if (sCamera.getSupportedContinuousViewfinder(device.getParameters()) == null)
+                System.out.println("continuous viewfinder on: not supported");
+            else
+                measure(true, length, directory);
+        } finally {
+            sCamera.release();
+            texture.release();
+            thread.quit();
+        }
+    }
+
+    private static void measure(boolean continuous, final int length, final File directory)
+            throws Exception {
+        Camera device = sCamera.getCameraDevice();
+        Parameters params = device.getParameters();
+        sCamera.setContinuousViewfinder(continuous, params);
+        device.setParameters(params);
+
+        ViewfinderMonitor monitor = new ViewfinderMonitor(null);
+        device.setPreviewCallback(monitor);
+        device.startPreview();
+        Thread.sleep(PREVIEW_WARMUP_MS);
+
+        final BurstSession[] session = new BurstSession[1];
+        final CountDownLatch started = new CountDownLatch(1);
+        monitor.start();
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                session[0] = sCamera.createBurstSession(directory, new BurstListener());
+                session[0].setLength(length);
+                session[0].start(null);
+                started.countDown();
+            }
+        });
+        started.await();
+        BurstSession.BurstResult burst = session[0].awaitCompletion(BURST_TIMEOUT_S, TimeUnit.SECONDS);
+        ViewfinderMonitor.Result result = monitor.stop();
+
+        device.setPreviewCallback(null);
+        device.stopPreview();
+        session[0].release();
+
+        String label = "continuous viewfinder " + (continuous ? "on" : "off");
+        if (burst == null) {
+            System.out.println(label + ": burst did not complete in " + BURST_TIMEOUT_S + "s");
+            return;
+        }
+        System.out.println(String.format("%-28s %6.1f fps  jitter %6.1f ms  max gap %7.1f ms"
+                + "  (%d frames, burst of %d in %d ms, %d failed)",
+                label + ":", result.fps, result.jitterMs, result.maxGapMs, result.frames,
+                length, burst.totalMs, burst.failedCount));
+    }
+
+    private static class BurstListener implements BurstSession.Listener
+    {
+        @Override
+        public void onShotSaved(int index, File file) {
+        }
+
+        @Override
+        public void onShotFailed(int index, IOException e) {
+            System.out.println("shot " + index + " failed: " + e.getMessage());
+        }
+
+        @Override
+        public void onCaptureComplete() {
+        }
+
+        @Override
+        public void onBurstComplete(BurstSession.BurstResult result) {
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The BracketMerger class merges the JPEG frames of one capture bracket
+ * shot, see {@link IntelCamera#setCaptureBracket(String, android.hardware.Camera.Parameters)},
+ * into a single exposure fused image.
+ * <p>
+ * The frames are first aligned to the reference frame by a global
+ * translation, estimated on downsampled median threshold bitmaps so that the
+ * exposure difference between the frames does not matter. The output is
+ * then produced tile by tile on the given executor: each task decodes the
+ * same region of every frame, weights each pixel by how well exposed and
+ * saturated it is, and hands the fused tile to a {@link TileSink}. Only the
+ * tiles being worked on are decoded at any time, never whole frames.
+ * <p>
+ * A region decoder serializes its decodes on a native lock, so the tasks do
+ * not share decoders: each task borrows a set of decoders, one per frame,
+ * from a pool that grows to the number of tasks running at once.
+ * <p>
+ * A merge blocks the calling thread until every tile has been delivered, so
+ * it must not be run on the camera event thread.
+ * @hide
+ */
+public class BracketMerger
+{
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    // downsampling of the alignment pass and the search range at that scale
+    private static final int ALIGN_SAMPLE_SIZE = 8;
+    private static final int ALIGN_SEARCH_RANGE = 8;
+    // median threshold bitmap pixels this close to the median are ignored
+    private static final int ALIGN_NOISE = 4;
+
+    /**
+     * Receives the fused tiles. Tiles are delivered from the worker threads
+     * in no particular order, one at a time.
+     */
+    public interface TileSink
+    {
+        /**
+         * @param pixels ARGB_8888 pixels, width per row, only valid during the call
+         */
+        void onTile(int x, int y, int width, int height, int[] pixels);
+    }
+
+    /**
+     * Stage timings of one merge, in milliseconds. Decode and fuse times are
+     * summed over the worker threads.
+     */
+    public static class Timings
+    {
+        public long setupMs;
+        public long alignMs;
+        public long decodeMs;
+        public long fuseMs;
+        public long deliverMs;
+        public long totalMs;
+        public int tiles;
+        /** Translation of each frame relative to the reference, in pixels. */
+        public int[] offsetX;
+        public int[] offsetY;
+
+        @Override
+        public String toString() {
+            return "setup " + setupMs + "ms align " + alignMs + "ms decode " + decodeMs
+                    + "ms fuse " + fuseMs + "ms deliver " + deliverMs + "ms total "
+                    + totalMs + "ms, " + tiles + " tiles";
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mTileSize;
+
+    /**
+     * @param executor runs the tile tasks, typically a fixed pool with one
+     *        thread per core
+     */
+    public BracketMerger(ExecutorService executor) {
+        this(executor, DEFAULT_TILE_SIZE);
+    }
+
+    public BracketMerger(ExecutorService executor, int tileSize) {
+        if (tileSize < 16)
+            throw new IllegalArgumentException("Tile size too small: " + tileSize);
+        mExecutor = executor;
+        mTileSize = tileSize;
+    }
+
+    /**
+     * Merges the frames of one bracket.
+     * @param jpegs the bracketed frames, all of the same size
+     * @param reference index of the frame the others are aligned to,
+     *        normally the nominal exposure
+     * @return the stage timings
+     */
+    public Timings merge(List<byte[]> jpegs, int reference, final TileSink sink)
+            throws IOException, InterruptedException {
+        final int count = jpegs.size();
+        if (count == 0 || reference < 0 || reference >= count)
+            throw new IllegalArgumentException("Invalid bracket of " + count + " frames, reference " + reference);
+
+        final Timings timings = new Timings();
+        long start = SystemClock.elapsedRealtime();
+
+        final DecoderPool pool = new DecoderPool(jpegs);
+        try {
+            BitmapRegionDecoder[] decoders = pool.acquire();
+            pool.release(decoders);
+            final int width = decoders[reference].getWidth();
+            final int height = decoders[reference].getHeight();
+            for (int i = 0; i < count; i++) {
+                if (decoders[i].getWidth() != width || decoders[i].getHeight() != height)
+                    throw new IllegalArgumentException("Bracket frames differ in size");
+            }
+            long setupDone = SystemClock.elapsedRealtime();
+            timings.setupMs = setupDone - start;
+
+            final int[] offsetX = new int[count];
+            final int[] offsetY = new int[count];
+            align(jpegs, reference, offsetX, offsetY);
+            timings.offsetX = offsetX;
+            timings.offsetY = offsetY;
+            long alignDone = SystemClock.elapsedRealtime();
+            timings.alignMs = alignDone - setupDone;
+
+            final int columns = (width + mTileSize - 1) / mTileSize;
+            final int rows = (height + mTileSize - 1) / mTileSize;
+            final CountDownLatch done = new CountDownLatch(columns * rows);
+            final AtomicLong decodeNs = new AtomicLong();
+            final AtomicLong fuseNs = new AtomicLong();
+            final AtomicLong deliverNs = new AtomicLong();
+            final Throwable[] failure = new Throwable[1];
+
+            // row-major submission so the tiles of one band finish together
+            for (int ty = 0; ty < rows; ty++) {
+                for (int tx = 0; tx < columns; tx++) {
+                    final int x = tx * mTileSize;
+                    final int y = ty * mTileSize;
+                    final int w = Math.min(mTileSize, width - x);
+                    final int h = Math.min(mTileSize, height - y);
+                    mExecutor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                synchronized (failure) {
+                                    if (failure[0] != null)
+                                        return;
+                                }
+                                int[] out = new int[w * h];
+                                long t0 = System.nanoTime();
+                                BitmapRegionDecoder[] decoders = pool.acquire();
+                                decodeNs.addAndGet(System.nanoTime() - t0);
+                                try {
+                                    fuseTile(decoders, offsetX, offsetY, width, height,
+                                            x, y, w, h, out, decodeNs, fuseNs);
+                                } finally {
+                                    pool.release(decoders);
+                                }
+                                long t = System.nanoTime();
+                                synchronized (sink) {
+                                    sink.onTile(x, y, w, h, out);
+                                }
+                                deliverNs.addAndGet(System.nanoTime() - t);
+                            } catch (Throwable e) {
+                                synchronized (failure) {
+                                    if (failure[0] == null)
+                                        failure[0] = e;
+                                }
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+            done.await();
+
+            synchronized (failure) {
+                if (failure[0] instanceof IOException)
+                    throw (IOException) failure[0];
+                if (failure[0] instanceof RuntimeException)
+                    throw (RuntimeException) failure[0];
+                if (failure[0] != null)
+                    throw new RuntimeException(failure[0]);
+            }
+            timings.tiles = columns * rows;
+            timings.decodeMs = decodeNs.get() / 1000000;
+            timings.fuseMs = fuseNs.get() / 1000000;
+            timings.deliverMs = deliverNs.get() / 1000000;
+        } finally {
+            pool.recycle();
+        }
+        timings.totalMs = SystemClock.elapsedRealtime() - start;
+        return timings;
+    }
+
+    // Decoder sets, one decoder per frame, each used by one task at a time
+    private static class DecoderPool
+    {
+        private final List<byte[]> mJpegs;
+        private final List<BitmapRegionDecoder[]> mIdle = new ArrayList<BitmapRegionDecoder[]>();
+        private final List<BitmapRegionDecoder[]> mAll = new ArrayList<BitmapRegionDecoder[]>();
+
+        DecoderPool(List<byte[]> jpegs) {
+            mJpegs = jpegs;
+        }
+
+        // Takes an idle set, or creates one when every set is in use
+        BitmapRegionDecoder[] acquire() throws IOException {
+            synchronized (this) {
+                if (!mIdle.isEmpty())
+                    return mIdle.remove(mIdle.size() - 1);
+            }
+            BitmapRegionDecoder[] decoders = new BitmapRegionDecoder[mJpegs.size()];
+            synchronized (this) {
+                mAll.add(decoders);
+            }
+            for (int i = 0; i < decoders.length; i++) {
+                byte[] jpeg = mJpegs.get(i);
+                BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+                if (decoder == null)
+                    throw new IOException("Cannot decode bracket frame " + i);
+                synchronized (this) {
+                    decoders[i] = decoder;
+                }
+            }
+            return decoders;
+        }
+
+        synchronized void release(BitmapRegionDecoder[] decoders) {
+            mIdle.add(decoders);
+        }
+
+        // Called once every task is done
+        synchronized void recycle() {
+            for (BitmapRegionDecoder[] decoders : mAll) {
+                for (int i = 0; i < decoders.length; i++) {
+                    if (decoders[i] != null)
+                        decoders[i].recycle();
+                }
+            }
+            mAll.clear();
+            mIdle.clear();
+        }
+    }
+
+    // Decodes the tile from every frame and fuses it into out
+    private static void fuseTile(BitmapRegionDecoder[] decoders, int[] offsetX, int[] offsetY,
+            int width, int height, int x, int y, int w, int h, int[] out,
+            AtomicLong decodeNs, AtomicLong fuseNs) throws IOException {
+        int count = decoders.length;
+        float[] sumR = new float[w * h];
+        float[] sumG = new float[w * h];
+        float[] sumB = new float[w * h];
+        float[] sumW = new float[w * h];
+        int[] pixels = new int[w * h];
+        Rect rect = new Rect();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        for (int i = 0; i < count; i++) {
+            long t0 = System.nanoTime();
+            // the source region of this frame, clipped to the image
+            int sx = x + offsetX[i];
+            int sy = y + offsetY[i];
+            int left = Math.max(0, sx);
+            int top = Math.max(0, sy);
+            int right = Math.min(width, sx + w);
+            int bottom = Math.min(height, sy + h);
+            if (left >= right || top >= bottom)
+                continue;
+            rect.set(left, top, right, bottom);
+            Bitmap bitmap = decoders[i].decodeRegion(rect, options);
+            if (bitmap == null)
+                throw new IOException("Cannot decode region of bracket frame " + i);
+            int rw = right - left;
+            int rh = bottom - top;
+            bitmap.getPixels(pixels, 0, rw, 0, 0, rw, rh);
+            bitmap.recycle();
+            long t1 = System.nanoTime();
+
+            for (int row = 0; row < rh; row++) {
+                int o = (top - sy + row) * w + (left - sx);
+                for (int col = 0; col < rw; col++) {
+                    int p = pixels[row * rw + col];
+                    float r = ((p >> 16) & 0xff) / 255f;
+                    float g = ((p >> 8) & 0xff) / 255f;
+                    float b = (p & 0xff) / 255f;
+                    float weight = weight(r, g, b);
+                    sumR[o + col] += r * weight;
+                    sumG[o + col] += g * weight;
+                    sumB[o + col] += b * weight;
+                    sumW[o + col] += weight;
+                }
+            }
+            decodeNs.addAndGet(t1 - t0);
+            fuseNs.addAndGet(System.nanoTime() - t1);
+        }
+
+        long t = System.nanoTime();
+        for (int i = 0; i < w * h; i++) {
+            float weight = sumW[i];
+            if (weight <= 0f) {
+                out[i] = 0xff000000;
+                continue;
+            }
+            int r = Math.min(255, (int) (sumR[i] / weight * 255f + 0.5f));
+            int g = Math.min(255, (int) (sumG[i] / weight * 255f + 0.5f));
+            int b = Math.min(255, (int) (sumB[i] / weight * 255f + 0.5f));
+            out[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+        fuseNs.addAndGet(System.nanoTime() - t);
+    }
+
+    // Exposure fusion weight: well-exposedness times saturation
+    private static float weight(float r, float g, float b) {
+        float mean = (r + g + b) / 3f;
+        float dr = r - mean;
+        float dg = g - mean;
+        float db = b - mean;
+        float saturation = (float) Math.sqrt((dr * dr + dg * dg + db * db) / 3f);
+        float exposure = (float) Math.exp(-12.5f * ((r - 0.5f) * (r - 0.5f)
+                + (g - 0.5f) * (g - 0.5f) + (b - 0.5f) * (b - 0.5f)));
+        return exposure * (saturation + 0.05f) + 1e-6f;
+    }
+
+    // Estimates the translation of each frame relative to the reference
+    private static void align(List<byte[]> jpegs, int reference, int[] offsetX, int[] offsetY)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ALIGN_SAMPLE_SIZE;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        byte[] ref = jpegs.get(reference);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(ref, 0, ref.length, options);
+        if (bitmap == null)
+            throw new IOException("Cannot decode bracket reference frame");
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        int[] pixels = new int[w * h];
+        boolean[] refBits = new boolean[w * h];
+        boolean[] refMask = new boolean[w * h];
+        thresholdBitmap(bitmap, pixels, refBits, refMask);
+        bitmap.recycle();
+
+        boolean[] bits = new boolean[w * h];
+        boolean[] mask = new boolean[w * h];
+        for (int i = 0; i < jpegs.size(); i++) {
+            if (i == reference)
+                continue;
+            byte[] jpeg = jpegs.get(i);
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+            if (bitmap == null)
+                throw new IOException("Cannot decode bracket frame " + i);
+            if (bitmap.getWidth() != w || bitmap.getHeight() != h) {
+                bitmap.recycle();
+                throw new IllegalArgumentException("Bracket frames differ in size");
+            }
+            thresholdBitmap(bitmap, pixels, bits, mask);
+            bitmap.recycle();
+
+            int bestX = 0;
+            int bestY = 0;
+            long best = Long.MAX_VALUE;
+            for (int dy = -ALIGN_SEARCH_RANGE; dy <= ALIGN_SEARCH_RANGE; dy++) {
+                for (int dx = -ALIGN_SEARCH_RANGE; dx <= ALIGN_SEARCH_RANGE; dx++) {
+                    long cost = difference(refBits, refMask, bits, mask, w, h, dx, dy, best);
+                    if (cost < best) {
+                        best = cost;
+                        bestX = dx;
+                        bestY = dy;
+                    }
+                }
+            }
+            offsetX[i] = bestX * ALIGN_SAMPLE_SIZE;
+            offsetY[i] = bestY * ALIGN_SAMPLE_SIZE;
+        }
+    }
+
+    // Median threshold bitmap and exclusion mask of the luma
+    private static void thresholdBitmap(Bitmap bitmap, int[] pixels, boolean[] bits, boolean[] mask) {
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
+        int[] histogram = new int[256];
+        for (int i = 0; i < w * h; i++) {
+            int p = pixels[i];
+            int luma = (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29) >> 8;
+            pixels[i] = luma;
+            histogram[luma]++;
+        }
+        int median = 0;
+        for (int n = 0; median < 255; median++) {
+            n += histogram[median];
+            if (n * 2 >= w * h)
+                break;
+        }
+        for (int i = 0; i < w * h; i++) {
+            bits[i] = pixels[i] > median;
+            mask[i] = Math.abs(pixels[i] - median) > ALIGN_NOISE;
+        }
+    }
+
+    // Mismatching bits with frame shifted by (dx, dy), stopping early above limit
+    private static long difference(boolean[] refBits, boolean[] refMask, boolean[] bits,
+            boolean[] mask, int w, int h, int dx, int dy, long limit) {
+        long cost = 0;
+        for (int y = Math.max(0, -dy); y < Math.min(h, h - dy); y++) {
+            int r = y * w;
+            int s = (y + dy) * w + dx;
+            for (int x = Math.max(0, -dx); x < Math.min(w, w - dx); x++) {
+                if (refMask[r + x] && mask[s + x] && refBits[r + x] != bits[s + x])
+                    cost++;
+            }
+            if (cost >= limit)
+                return cost;
+        }
+        // normalize by the overlapping area so large shifts are not favoured
+        return cost * w * h / ((long) (w - Math.abs(dx)) * (h - Math.abs(dy)));
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The BurstSession class runs one burst capture end to end.
+ * <p>
+ * Create it with {@link IntelCamera#createBurstSession(File, Listener)}. It
+ * arms the burst from the burst length, speed, fps and start index
+ * parameters, calls takePicture and collects the JPEG callbacks in the
+ * order they are delivered. Each JPEG is written to the output directory by
+ * a pool of writer threads, so the callback thread only hands the data over.
+ * <p>
+ * The memory held by JPEGs waiting to be written is capped. A JPEG that
+ * would exceed the cap is dropped and reported through
+ * {@link Listener#onShotFailed(int, IOException)}; the callback thread,
+ * normally the main looper, never writes to storage itself.
+ * <p>
+ * {@link Listener#onCaptureComplete()} is called as soon as the last JPEG
+ * has been received, this is the earliest point where preview can be
+ * restarted. {@link Listener#onBurstComplete(BurstResult)} follows when all
+ * JPEGs are on disk. {@link #awaitCompletion(long, TimeUnit)} does not depend
+ * on the listener's looper and may be called on it. The writer threads stop
+ * when the burst completes; call {@link #release()} if it may not, e.g.
+ * after a failed or cancelled capture.
+ * @hide
+ */
+public class BurstSession
+{
+    private static final String TAG = "BurstSession";
+
+    /**
+     * The Listener interface is used for receiving burst progress. All
+     * methods are called on the thread of the looper the session was
+     * created on (or the main looper).
+     */
+    public interface Listener
+    {
+        /**
+         * One JPEG of the burst has been written.
+         * @param index position in the burst, starting from 0
+         * @param file the written file
+         */
+        void onShotSaved(int index, File file);
+
+        /**
+         * Writing one JPEG of the burst failed.
+         */
+        void onShotFailed(int index, IOException e);
+
+        /**
+         * All JPEG callbacks of the burst have been received. The
+         * application may restart preview now.
+         */
+        void onCaptureComplete();
+
+        /**
+         * All JPEGs of the burst have been written (or failed).
+         */
+        void onBurstComplete(BurstResult result);
+    }
+
+    /**
+     * The BurstResult class carries the latencies of one burst. All times
+     * are in milliseconds from the takePicture call, unless noted.
+     */
+    public static class BurstResult
+    {
+        public BurstResult(int length) {
+            files = new File[length];
+            receivedMs = new long[length];
+            savedMs = new long[length];
+        }
+
+        /** Written files, null for failed shots. */
+        public File[] files;
+        /** Per shot: time the JPEG callback arrived. */
+        public long[] receivedMs;
+        /** Per shot: time the JPEG was on disk. */
+        public long[] savedMs;
+        /** Time the last JPEG callback arrived. */
+        public long captureCompleteMs;
+        /** Time the last JPEG was on disk. */
+        public long totalMs;
+        /** Number of shots that could not be written, including dropped ones. */
+        public int failedCount;
+        /** Number of shots dropped because the memory cap was reached. */
+        public int droppedCount;
+    }
+
+    private static final int DEFAULT_WRITER_THREADS = 2;
+    private static final long DEFAULT_MEMORY_CAP = 16 * 1024 * 1024;
+
+    private final IntelCamera mCamera;
+    private final File mDirectory;
+    private final Listener mListener;
+    private final Handler mHandler;
+
+    private int mLength = 1;
+    private String mSpeed;
+    private int mFps;
+    private int mStartIndex;
+    private boolean mStartIndexSet = false;
+    private String mFilePrefix = "burst_";
+    private int mWriterThreads = DEFAULT_WRITER_THREADS;
+    private long mMemoryCap = DEFAULT_MEMORY_CAP;
+
+    private ThreadPoolExecutor mWriters;
+    private final AtomicLong mPendingBytes = new AtomicLong();
+    private CountDownLatch mSaved;
+    // updated under its own lock, the writer threads fill it in
+    private BurstResult mResult;
+    private long mStartTime;
+    private int mReceived;
+    // guarded by mResult
+    private int mWritten;
+    private boolean mStarted = false;
+
+    BurstSession(IntelCamera camera, File directory, Listener listener) {
+        mCamera = camera;
+        mDirectory = directory;
+        mListener = listener;
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    /**
+     * Sets the number of pictures in the burst.
+     * @see IntelCamera#setBurstLength(int, Parameters)
+     */
+    public void setLength(int length) {
+        mLength = length;
+    }
+
+    /**
+     * @see IntelCamera#setBurstSpeed(String, Parameters)
+     */
+    public void setSpeed(String speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * @see IntelCamera#setBurstFps(int, Parameters)
+     */
+    public void setFps(int fps) {
+        mFps = fps;
+    }
+
+    /**
+     * @see IntelCamera#setBurstStartIndex(int, Parameters)
+     */
+    public void setStartIndex(int index) {
+        mStartIndex = index;
+        mStartIndexSet = true;
+    }
+
+    /**
+     * Sets the file name prefix, files are named prefix + index + ".jpg".
+     */
+    public void setFilePrefix(String prefix) {
+        mFilePrefix = prefix;
+    }
+
+    /**
+     * Sets the number of writer threads. Default is 2.
+     */
+    public void setWriterThreads(int threads) {
+        mWriterThreads = threads;
+    }
+
+    /**
+     * Sets the maximum number of bytes of JPEG data waiting to be written.
+     * JPEGs arriving beyond it are dropped. Default is 16MB.
+     */
+    public void setMemoryCap(long bytes) {
+        mMemoryCap = bytes;
+    }
+
+    /**
+     * Arms the burst and calls takePicture. Can only be called once.
+     * @param shutter shutter callback passed to takePicture, may be null
+     */
+    public void start(Camera.ShutterCallback shutter) {
+        if (mStarted) {
+            throw new RuntimeException("Burst session already started");
+        }
+        mStarted = true;
+
+        Camera device = mCamera.getCameraDevice();
+        Parameters params = device.getParameters();
+        mCamera.setBurstLength(mLength, params);
+        if (mSpeed != null)
+            mCamera.setBurstSpeed(mSpeed, params);
+        if (mFps > 0)
+            mCamera.setBurstFps(mFps, params);
+        if (mStartIndexSet)
+            mCamera.setBurstStartIndex(mStartIndex, params);
+        device.setParameters(params);
+
+        mResult = new BurstResult(mLength);
+        mSaved = new CountDownLatch(mLength);
+        mWriters = new ThreadPoolExecutor(mWriterThreads, mWriterThreads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        mStartTime = SystemClock.elapsedRealtime();
+        device.takePicture(shutter, null, mJpegCallback);
+    }
+
+    /**
+     * Waits until all JPEGs of the burst have been written. The writes are
+     * counted on the writer threads, so this may be called on any thread,
+     * including the one of the listener's looper.
+     * @return the result, or null on timeout
+     */
+    public BurstResult awaitCompletion(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!mStarted || !mSaved.await(timeout, unit))
+            return null;
+        return mResult;
+    }
+
+    /**
+     * Stops the writer threads. JPEGs already received are still written,
+     * later ones are ignored. Needed when the burst does not deliver all its
+     * JPEGs; calling it after completion has no effect.
+     */
+    public void release() {
+        if (mWriters != null)
+            mWriters.shutdown();
+    }
+
+    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            if (mReceived >= mLength) {
+                Log.w(TAG, "Unexpected JPEG after burst of " + mLength);
+                return;
+            }
+            if (mWriters.isShutdown()) {
+                Log.w(TAG, "JPEG after release ignored");
+                return;
+            }
+            final int index = mReceived++;
+            long now = SystemClock.elapsedRealtime() - mStartTime;
+            synchronized (mResult) {
+                mResult.receivedMs[index] = now;
+            }
+
+            if (mPendingBytes.addAndGet(data.length) > mMemoryCap) {
+                // over the cap, drop rather than write on the callback thread
+                mPendingBytes.addAndGet(-data.length);
+                Log.w(TAG, "JPEG " + index + " dropped, " + mPendingBytes.get()
+                        + " bytes waiting to be written");
+                onDropped(index, new IOException("JPEG dropped, memory cap of "
+                        + mMemoryCap + " bytes reached"));
+            } else {
+                try {
+                    mWriters.execute(newWriteTask(index, data));
+                } catch (RejectedExecutionException e) {
+                    // released from another thread meanwhile
+                    mPendingBytes.addAndGet(-data.length);
+                    onDropped(index, new IOException("JPEG dropped, burst session released"));
+                }
+            }
+
+            if (mReceived == mLength) {
+                synchronized (mResult) {
+                    mResult.captureCompleteMs = now;
+                }
+                mListener.onCaptureComplete();
+            }
+        }
+    };
+
+    private Runnable newWriteTask(final int index, final byte[] data) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(mDirectory, mFilePrefix + index + ".jpg");
+                IOException error = null;
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    out.write(data);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            if (error == null)
+                                error = e;
+                        }
+                    }
+                    mPendingBytes.addAndGet(-data.length);
+                }
+                onWritten(index, error == null ? file : null, error);
+            }
+        };
+    }
+
+    private void onDropped(int index, IOException error) {
+        synchronized (mResult) {
+            mResult.droppedCount++;
+        }
+        onWritten(index, null, error);
+    }
+
+    // runs on the thread that wrote the shot, only the listener calls are posted
+    private void onWritten(final int index, final File file, final IOException error) {
+        long now = SystemClock.elapsedRealtime() - mStartTime;
+        final boolean complete;
+        synchronized (mResult) {
+            mResult.savedMs[index] = now;
+            mResult.totalMs = Math.max(mResult.totalMs, now);
+            if (file != null)
+                mResult.files[index] = file;
+            else
+                mResult.failedCount++;
+            complete = ++mWritten == mLength;
+        }
+        mSaved.countDown();
+        if (complete)
+            mWriters.shutdown();
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (file != null)
+                    mListener.onShotSaved(index, file);
+                else
+                    mListener.onShotFailed(index, error);
+                if (complete)
+                    mListener.onBurstComplete(mResult);
+            }
+        });
+    }
+}
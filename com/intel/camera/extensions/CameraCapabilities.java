@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera.Parameters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+/**
+ * The CameraCapabilities class is an immutable snapshot of what a camera
+ * supports: every "-values" and "-supported" entry of its parameters,
+ * together with the related maximum, minimum and step entries.
+ * <p>
+ * The flattened parameter string is parsed once; each supported value list
+ * is split on first use and kept. The snapshot does not depend on an open
+ * camera and can be shared across threads.
+ * @hide
+ */
+public class CameraCapabilities
+{
+    private final int mCameraId;
+    // sorted so the hash does not depend on the parameter order
+    private final TreeMap<String, String> mEntries;
+    private final HashMap<String, List<String>> mLists = new HashMap<String, List<String>>();
+    private final long mHash;
+
+    CameraCapabilities(int cameraId, TreeMap<String, String> entries) {
+        mCameraId = cameraId;
+        mEntries = entries;
+        mHash = hash(entries);
+    }
+
+    /**
+     * Takes the capabilities out of the camera parameters.
+     */
+    public static CameraCapabilities from(int cameraId, Parameters params) {
+        return from(cameraId, params.flatten());
+    }
+
+    /**
+     * Takes the capabilities out of a flattened parameter string.
+     */
+    public static CameraCapabilities from(int cameraId, String flattened) {
+        TreeMap<String, String> entries = new TreeMap<String, String>();
+        StringTokenizer tokenizer = new StringTokenizer(flattened, ";");
+        while (tokenizer.hasMoreElements()) {
+            String kv = tokenizer.nextToken();
+            int pos = kv.indexOf('=');
+            if (pos <= 0)
+                continue;
+            String key = kv.substring(0, pos);
+            if (isCapabilityKey(key))
+                entries.put(key, kv.substring(pos + 1));
+        }
+        return new CameraCapabilities(cameraId, entries);
+    }
+
+    static boolean isCapabilityKey(String key) {
+        return key.endsWith("-values") || key.endsWith("-supported")
+                || key.startsWith("max-") || key.startsWith("min-")
+                || key.endsWith("-step") || key.endsWith("-sizes")
+                || key.endsWith("-max") || key.endsWith("-count");
+    }
+
+    public int getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * Returns a 64 bit hash of all capability entries. Two snapshots with
+     * the same hash describe the same capabilities.
+     */
+    public long getHash() {
+        return mHash;
+    }
+
+    /**
+     * Returns the raw value of a capability entry, or null.
+     */
+    public String get(String key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Returns the supported values of a parameter, as
+     * IntelCamera.getSupportedXxx would, or null if not supported.
+     * @param key the parameter key, without the "-values" suffix
+     */
+    public synchronized List<String> getSupportedValues(String key) {
+        List<String> list = mLists.get(key);
+        if (list == null && !mLists.containsKey(key)) {
+            String str = mEntries.get(key + "-values");
+            if (str != null && str.length() > 0) {
+                ArrayList<String> values = new ArrayList<String>();
+                StringTokenizer tokenizer = new StringTokenizer(str, ",");
+                while (tokenizer.hasMoreElements())
+                    values.add(tokenizer.nextToken());
+                list = Collections.unmodifiableList(values);
+            }
+            mLists.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * Returns whether a parameter supports the given value.
+     */
+    public boolean isSupported(String key, String value) {
+        List<String> values = getSupportedValues(key);
+        return values != null && values.contains(value);
+    }
+
+    /**
+     * Returns all capability entries, sorted by key.
+     */
+    public Map<String, String> getEntries() {
+        return Collections.unmodifiableMap(mEntries);
+    }
+
+    // FNV-1a over key=value; pairs
+    private static long hash(TreeMap<String, String> entries) {
+        long h = 0xcbf29ce484222325L;
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            h = hash(h, e.getKey());
+            h = (h ^ '=') * 0x100000001b3L;
+            h = hash(h, e.getValue());
+            h = (h ^ ';') * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long hash(long h, String s) {
+        for (int i = 0; i < s.length(); i++)
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        return h;
+    }
+}
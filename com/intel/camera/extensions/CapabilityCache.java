@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera.Parameters;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The CapabilityCache class stores {@link CameraCapabilities} snapshots on
+ * disk so an application can build its UI before the camera is open.
+ * <p>
+ * Files are keyed by camera id and capability hash, and hold the entries in
+ * a compact binary form. The file is small and is read in one go; every
+ * entry is decoded on load, since the hash check needs all of them. Before
+ * the camera is open only its id is known, so {@link #load(int)} returns
+ * the newest file of that id. When the camera parameters become available,
+ * {@link #validate(int, Parameters)} looks for the file of their hash and,
+ * if the capabilities changed, for example after a system update, writes a
+ * new file and deletes the files of the old hashes. Files are synced to
+ * disk before they replace the old ones.
+ * <p>
+ * File layout, big endian: magic, version, camera id, entry count (ints),
+ * hash (long), then per entry a key length (short), the UTF-8 key, a
+ * value length (int) and the UTF-8 value.
+ * @hide
+ */
+public class CapabilityCache
+{
+    private static final String TAG = "CapabilityCache";
+
+    private static final int MAGIC = 0x49434331; // "ICC1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 4 + 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    /**
+     * @param directory where the cache files are kept, typically the
+     *        application cache directory
+     */
+    public CapabilityCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Loads the most recently written capabilities of a camera.
+     * @return the capabilities, or null if not cached or unreadable
+     */
+    public CameraCapabilities load(int cameraId) {
+        File newest = null;
+        for (File file : listFiles(cameraId)) {
+            if (newest == null || file.lastModified() > newest.lastModified())
+                newest = file;
+        }
+        return newest != null ? load(cameraId, newest) : null;
+    }
+
+    /**
+     * Loads the cached capabilities of a camera with the given hash.
+     * @return the capabilities, or null if not cached or unreadable
+     */
+    public CameraCapabilities load(int cameraId, long hash) {
+        File file = getFile(cameraId, hash);
+        return file.exists() ? load(cameraId, file) : null;
+    }
+
+    private CameraCapabilities load(int cameraId, File file) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE)
+                return null;
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    return null;
+            }
+            buffer.flip();
+            return decode(cameraId, buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the capabilities to the cache, replacing the file of the same
+     * hash atomically and deleting the files of other hashes.
+     */
+    public void store(CameraCapabilities capabilities) throws IOException {
+        Map<String, String> entries = capabilities.getEntries();
+        int size = HEADER_SIZE;
+        byte[][] keys = new byte[entries.size()][];
+        byte[][] values = new byte[entries.size()][];
+        int i = 0;
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            keys[i] = e.getKey().getBytes(UTF8);
+            values[i] = e.getValue().getBytes(UTF8);
+            size += 2 + keys[i].length + 4 + values[i].length;
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(capabilities.getCameraId());
+        buffer.putInt(keys.length);
+        buffer.putLong(capabilities.getHash());
+        for (i = 0; i < keys.length; i++) {
+            buffer.putShort((short) keys[i].length);
+            buffer.put(keys[i]);
+            buffer.putInt(values[i].length);
+            buffer.put(values[i]);
+        }
+        buffer.flip();
+
+        File file = getFile(capabilities.getCameraId(), capabilities.getHash());
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            // the data must be on disk before the rename can be
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        for (File old : listFiles(capabilities.getCameraId())) {
+            if (!old.equals(file))
+                old.delete();
+        }
+    }
+
+    /**
+     * Checks the cache against the actual parameters of the camera and
+     * rewrites it if they differ.
+     * @return true if the cache was up to date
+     */
+    public boolean validate(int cameraId, Parameters params) {
+        return validate(CameraCapabilities.from(cameraId, params));
+    }
+
+    /**
+     * Checks the cache against a fresh snapshot and rewrites it if they
+     * differ.
+     * @return true if the cache was up to date
+     */
+    public boolean validate(CameraCapabilities actual) {
+        File file = getFile(actual.getCameraId(), actual.getHash());
+        if (readHash(file) == actual.getHash())
+            return true;
+        try {
+            store(actual);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + file, e);
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the cache files of a camera.
+     */
+    public void invalidate(int cameraId) {
+        for (File file : listFiles(cameraId))
+            file.delete();
+    }
+
+    private static String getPrefix(int cameraId) {
+        return "intel_camera_caps_" + cameraId + "_";
+    }
+
+    private File getFile(int cameraId, long hash) {
+        return new File(mDirectory, getPrefix(cameraId) + Long.toHexString(hash) + ".bin");
+    }
+
+    private File[] listFiles(int cameraId) {
+        final String prefix = getPrefix(cameraId);
+        File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(prefix) && name.endsWith(".bin");
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    // hash in the header, or 0 if there is no valid file
+    private long readHash(File file) {
+        if (!file.exists())
+            return 0;
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            if (in.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION)
+                return 0;
+            in.readInt();
+            in.readInt();
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static CameraCapabilities decode(int cameraId, ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != cameraId)
+                return null;
+            int count = buffer.getInt();
+            long hash = buffer.getLong();
+            TreeMap<String, String> entries = new TreeMap<String, String>();
+            for (int i = 0; i < count; i++) {
+                String key = readString(buffer, buffer.getShort() & 0xffff);
+                String value = readString(buffer, buffer.getInt());
+                entries.put(key, value);
+            }
+            CameraCapabilities capabilities = new CameraCapabilities(cameraId, entries);
+            if (capabilities.getHash() != hash) {
+                Log.w(TAG, "Capability cache of camera " + cameraId + " is corrupt");
+                return null;
+            }
+            return capabilities;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The CaptureLatencyTracer class measures where shutter lag goes.
+ * <p>
+ * Pictures taken through {@link #takePicture(Camera.ShutterCallback, Camera.PictureCallback, Camera.PictureCallback)}
+ * are timestamped at the request, the first capture frame id, the shutter,
+ * the raw callback, and the first and last JPEG. Once attached with
+ * {@link #attach(IntelCamera)}, the tracer also sees the frame id and ULL
+ * events of the camera, whatever listeners the application has set. The
+ * timestamps are taken when the callbacks run, so they include the
+ * message queue delay the application sees.
+ * <p>
+ * A capture is complete when all its JPEGs have arrived: the burst length
+ * for bursts and brackets, two for HDR with the original saved, one
+ * otherwise. HDR captures take their input frames before the fused JPEG
+ * is encoded, so they take every frame id up to their first JPEG, and
+ * their latency to the last JPEG is also kept as {@link #METRIC_HDR}. A
+ * continuous shooting capture has no fixed length: it takes every JPEG and
+ * frame id until {@link #stopContinuousShooting()}, and only its first JPEG
+ * and JPEG interval are recorded. The latencies of the last {@link #HISTORY}
+ * completed captures are kept per metric for percentile queries and
+ * {@link #dump()}. ULL captures are measured from the ULL trigger to the
+ * delivered snapshot.
+ * <p>
+ * A capture that sees no callback for the capture timeout is aborted, so a
+ * lost JPEG does not leave it open to absorb the frame ids of later
+ * captures. Aborted captures are counted but not recorded.
+ * <p>
+ * All methods must be called on the thread delivering the camera
+ * callbacks.
+ * @hide
+ */
+public class CaptureLatencyTracer
+{
+    private static final String TAG = "CaptureLatencyTracer";
+
+    public static final int HISTORY = 256;
+    public static final long DEFAULT_CAPTURE_TIMEOUT_MS = 10000;
+
+    /** takePicture to the first capture frame id. */
+    public static final int METRIC_FRAME_ID = 0;
+    /** takePicture to the shutter callback. */
+    public static final int METRIC_SHUTTER = 1;
+    /** takePicture to the raw callback. */
+    public static final int METRIC_RAW = 2;
+    /** takePicture to the first JPEG. */
+    public static final int METRIC_FIRST_JPEG = 3;
+    /** takePicture to the last JPEG of the capture. */
+    public static final int METRIC_LAST_JPEG = 4;
+    /** Average interval between the JPEGs of a burst or bracket. */
+    public static final int METRIC_JPEG_INTERVAL = 5;
+    /** ULL trigger to the ULL snapshot. */
+    public static final int METRIC_ULL = 6;
+    /** takePicture to the last JPEG of an HDR capture. */
+    public static final int METRIC_HDR = 7;
+    private static final int METRIC_COUNT = 8;
+
+    private static final String[] METRIC_NAMES = {
+        "frame-id", "shutter", "raw", "first-jpeg", "last-jpeg", "jpeg-interval", "ull", "hdr"
+    };
+
+    // capture kinds
+    private static final int KIND_SINGLE = 0;
+    private static final int KIND_BURST = 1;
+    private static final int KIND_HDR = 2;
+    private static final int KIND_CONTINUOUS = 3;
+
+    private static class Capture
+    {
+        final int mId;
+        final String mMode;
+        final int mKind;
+        // JPEGs, and frame ids except for HDR; unused for continuous shooting
+        final int mExpected;
+        final long mRequestNs;
+        long mLastEventNs;
+        boolean mDone;
+        long mFrameIdNs;
+        long mShutterNs;
+        long mRawNs;
+        long mFirstJpegNs;
+        long mLastJpegNs;
+        int mJpegs;
+        final ArrayList<Integer> mFrameIds = new ArrayList<Integer>();
+
+        Capture(int id, String mode, int kind, int expected, long requestNs) {
+            mId = id;
+            mMode = mode;
+            mKind = kind;
+            mExpected = expected;
+            mRequestNs = requestNs;
+            mLastEventNs = requestNs;
+        }
+
+        boolean acceptsFrameId() {
+            switch (mKind) {
+            case KIND_CONTINUOUS:
+                return true;
+            case KIND_HDR:
+                return mJpegs == 0;
+            default:
+                return mFrameIds.size() < mExpected;
+            }
+        }
+
+        boolean isComplete() {
+            return mKind != KIND_CONTINUOUS && mJpegs >= mExpected;
+        }
+    }
+
+    // latencies in us, ring buffers per metric
+    private final long[][] mSamples = new long[METRIC_COUNT][HISTORY];
+    private final int[] mSampleCount = new int[METRIC_COUNT];
+
+    // captures in request order, waiting for frame ids or JPEGs
+    private final ArrayList<Capture> mOpen = new ArrayList<Capture>();
+    private final HashMap<Integer, Long> mUllTriggers = new HashMap<Integer, Long>();
+    private IntelCamera mCamera;
+    private int mNextId = 0;
+    private int mExpected = 1;
+    private int mKind = KIND_SINGLE;
+    private String mMode = "single";
+    private long mTimeoutNs = DEFAULT_CAPTURE_TIMEOUT_MS * 1000000L;
+    private int mCompleted = 0;
+    private int mAborted = 0;
+
+    /**
+     * Starts receiving the frame id and ULL events of the camera.
+     */
+    public void attach(IntelCamera camera) {
+        mCamera = camera;
+        camera.mLatencyTracer = this;
+    }
+
+    public void detach() {
+        if (mCamera != null && mCamera.mLatencyTracer == this)
+            mCamera.mLatencyTracer = null;
+        mCamera = null;
+    }
+
+    /**
+     * Reads the number of JPEGs per capture and the capture mode from the
+     * parameters. Call after changing burst, bracket, HDR or continuous
+     * shooting settings.
+     * @param continuous whether continuous shooting has been started
+     */
+    public void configure(Parameters params, boolean continuous) {
+        if (mCamera == null)
+            throw new IllegalStateException("Not attached");
+        int burst = Math.max(1, mCamera.getBurstLength(params));
+        String bracket = mCamera.getCaptureBracket(params);
+        String hdr = mCamera.getHDRImaging(params);
+        if (bracket != null && !"none".equals(bracket)) {
+            mKind = KIND_BURST;
+            mExpected = burst;
+            mMode = "bracket-" + bracket;
+        } else if (continuous) {
+            mKind = KIND_CONTINUOUS;
+            mExpected = burst;
+            mMode = "continuous";
+        } else if ("on".equals(hdr)) {
+            mKind = KIND_HDR;
+            mExpected = "on".equals(mCamera.getHDRSaveOriginal(params)) ? 2 : 1;
+            mMode = "hdr";
+        } else if (burst > 1) {
+            mKind = KIND_BURST;
+            mExpected = burst;
+            mMode = "burst";
+        } else {
+            mKind = KIND_SINGLE;
+            mExpected = 1;
+            mMode = "single";
+        }
+    }
+
+    /**
+     * Sets how long a capture may go without a callback before it is aborted.
+     */
+    public void setCaptureTimeout(long ms) {
+        mTimeoutNs = Math.max(1, ms) * 1000000L;
+    }
+
+    /**
+     * Starts continuous shooting on the camera and traces the following
+     * pictures as continuous captures.
+     */
+    public void startContinuousShooting(Parameters params) {
+        if (mCamera == null)
+            throw new IllegalStateException("Not attached");
+        mCamera.startContinuousShooting();
+        configure(params, true);
+    }
+
+    /**
+     * Stops continuous shooting on the camera and completes the continuous
+     * captures. JPEGs still arriving for them are not counted.
+     */
+    public void stopContinuousShooting() {
+        if (mCamera == null)
+            throw new IllegalStateException("Not attached");
+        mCamera.stopContinuousShooting();
+        for (Capture capture : new ArrayList<Capture>(mOpen)) {
+            if (capture.mKind == KIND_CONTINUOUS)
+                complete(capture);
+        }
+        mKind = mExpected > 1 ? KIND_BURST : KIND_SINGLE;
+        mMode = mExpected > 1 ? "burst" : "single";
+    }
+
+    /**
+     * Takes a picture and traces it.
+     */
+    public void takePicture(final Camera.ShutterCallback shutter, final Camera.PictureCallback raw,
+            final Camera.PictureCallback jpeg) {
+        if (mCamera == null)
+            throw new IllegalStateException("Not attached");
+        long now = System.nanoTime();
+        expireStale(now);
+        final Capture capture = new Capture(mNextId++, mMode, mKind, mExpected, now);
+        mOpen.add(capture);
+        mCamera.getCameraDevice().takePicture(new Camera.ShutterCallback() {
+            @Override
+            public void onShutter() {
+                if (capture.mShutterNs == 0 && !capture.mDone) {
+                    capture.mShutterNs = System.nanoTime();
+                    capture.mLastEventNs = capture.mShutterNs;
+                }
+                if (shutter != null)
+                    shutter.onShutter();
+            }
+        }, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                if (capture.mRawNs == 0 && !capture.mDone) {
+                    capture.mRawNs = System.nanoTime();
+                    capture.mLastEventNs = capture.mRawNs;
+                }
+                if (raw != null)
+                    raw.onPictureTaken(data, camera);
+            }
+        }, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                onJpeg(capture);
+                if (jpeg != null)
+                    jpeg.onPictureTaken(data, camera);
+            }
+        });
+    }
+
+    void onFrameId(int frameId) {
+        long now = System.nanoTime();
+        expireStale(now);
+        // the oldest capture still waiting for frame ids
+        for (Capture capture : mOpen) {
+            if (capture.acceptsFrameId()) {
+                if (capture.mFrameIds.isEmpty())
+                    capture.mFrameIdNs = now;
+                capture.mFrameIds.add(frameId);
+                capture.mLastEventNs = now;
+                return;
+            }
+        }
+    }
+
+    void onUllTriggered(int id) {
+        mUllTriggers.put(id, System.nanoTime());
+    }
+
+    void onUllSnapshot(int id) {
+        Long triggered = mUllTriggers.remove(id);
+        if (triggered != null)
+            add(METRIC_ULL, System.nanoTime() - triggered);
+    }
+
+    private void onJpeg(Capture capture) {
+        long now = System.nanoTime();
+        expireStale(now);
+        if (capture.mDone)
+            return;
+        if (capture.mJpegs == 0)
+            capture.mFirstJpegNs = now;
+        capture.mLastJpegNs = now;
+        capture.mLastEventNs = now;
+        capture.mJpegs++;
+        if (capture.isComplete())
+            complete(capture);
+    }
+
+    // Aborts the captures that have seen no callback for the timeout
+    private void expireStale(long now) {
+        for (int i = mOpen.size() - 1; i >= 0; i--) {
+            Capture capture = mOpen.get(i);
+            if (now - capture.mLastEventNs <= mTimeoutNs)
+                continue;
+            mOpen.remove(i);
+            capture.mDone = true;
+            mAborted++;
+            Log.w(TAG, "capture " + capture.mId + " (" + capture.mMode + ") aborted after "
+                    + capture.mJpegs + " jpegs, " + capture.mFrameIds.size() + " frame ids");
+        }
+    }
+
+    private void complete(Capture capture) {
+        mOpen.remove(capture);
+        capture.mDone = true;
+        mCompleted++;
+        if (capture.mFrameIdNs != 0)
+            add(METRIC_FRAME_ID, capture.mFrameIdNs - capture.mRequestNs);
+        if (capture.mShutterNs != 0)
+            add(METRIC_SHUTTER, capture.mShutterNs - capture.mRequestNs);
+        if (capture.mRawNs != 0)
+            add(METRIC_RAW, capture.mRawNs - capture.mRequestNs);
+        if (capture.mJpegs > 0)
+            add(METRIC_FIRST_JPEG, capture.mFirstJpegNs - capture.mRequestNs);
+        // a continuous capture ends when it is stopped, not with a known last JPEG
+        if (capture.mJpegs > 0 && capture.mKind != KIND_CONTINUOUS)
+            add(METRIC_LAST_JPEG, capture.mLastJpegNs - capture.mRequestNs);
+        if (capture.mKind == KIND_HDR)
+            add(METRIC_HDR, capture.mLastJpegNs - capture.mRequestNs);
+        if (capture.mJpegs > 1)
+            add(METRIC_JPEG_INTERVAL, (capture.mLastJpegNs - capture.mFirstJpegNs) / (capture.mJpegs - 1));
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "capture " + capture.mId + " (" + capture.mMode + ", " + capture.mJpegs
+                    + " jpegs, frame ids " + capture.mFrameIds + ") shutter "
+                    + us(capture.mShutterNs, capture.mRequestNs) + "us last jpeg "
+                    + us(capture.mLastJpegNs, capture.mRequestNs) + "us");
+        }
+    }
+
+    private static long us(long t, long start) {
+        return t != 0 ? (t - start) / 1000 : -1;
+    }
+
+    private void add(int metric, long ns) {
+        mSamples[metric][mSampleCount[metric] % HISTORY] = ns / 1000;
+        mSampleCount[metric]++;
+    }
+
+    /**
+     * Returns a percentile of a metric in microseconds, or -1 if there are
+     * no samples.
+     * @param percentile 0 to 100
+     */
+    public long getPercentile(int metric, float percentile) {
+        int n = Math.min(mSampleCount[metric], HISTORY);
+        if (n == 0)
+            return -1;
+        long[] sorted = Arrays.copyOf(mSamples[metric], n);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100f * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    /**
+     * Returns the number of samples of a metric, including those no longer
+     * kept.
+     */
+    public int getSampleCount(int metric) {
+        return mSampleCount[metric];
+    }
+
+    /**
+     * Returns the number of captures aborted for exceeding the capture timeout.
+     */
+    public int getAbortedCount() {
+        return mAborted;
+    }
+
+    /**
+     * Returns the number of captures started but not complete.
+     */
+    public int getPendingCount() {
+        return mOpen.size();
+    }
+
+    /**
+     * Logs and returns the p50, p90 and p99 of every metric.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mCompleted).append(" captures, ").append(mOpen.size()).append(" pending, ")
+                .append(mAborted).append(" aborted, mode ")
+                .append(mMode).append('\n');
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            if (mSampleCount[metric] == 0)
+                continue;
+            sb.append(METRIC_NAMES[metric]).append(": p50 ").append(getPercentile(metric, 50))
+                    .append("us p90 ").append(getPercentile(metric, 90))
+                    .append("us p99 ").append(getPercentile(metric, 99))
+                    .append("us (").append(mSampleCount[metric]).append(" samples)\n");
+        }
+        String result = sb.toString();
+        Log.i(TAG, result);
+        return result;
+    }
+
+    /**
+     * Drops all samples and pending captures.
+     */
+    public void reset() {
+        Arrays.fill(mSampleCount, 0);
+        for (Capture capture : mOpen)
+            capture.mDone = true;
+        mOpen.clear();
+        mUllTriggers.clear();
+        mCompleted = 0;
+        mAborted = 0;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The DualCameraFrameSynchronizer class pairs the frames of two camera
+ * streams, for dual camera depth mode and dual video.
+ * <p>
+ * Each stream's frames are offered with their timestamp and optionally the
+ * sensor frame id. The HAL timestamps are not passed to Java with callback
+ * buffers; a stream rendered to a {@link android.graphics.SurfaceTexture}
+ * has its frame's HAL timestamp in
+ * {@link android.graphics.SurfaceTexture#getTimestamp()} after
+ * updateTexImage. For callback buffers only the arrival time,
+ * {@link System#nanoTime()}, is available, and the tolerance has to cover
+ * the delivery jitter of both streams as well. Frames wait in a lock-free queue per stream. Whichever thread offers
+ * a frame also drains the queues, one thread at a time: the oldest frames
+ * of both streams are paired when their timestamps are within the
+ * tolerance, or their frame ids are equal when matching by id; otherwise
+ * the older of the two can no longer be paired and is dropped. Pairs and
+ * dropped frames go to the {@link Consumer} on the draining thread.
+ * <p>
+ * Pairing latency, drops per stream and a histogram of the timestamp skew
+ * of the pairs are kept in {@link Stats}.
+ * @see IntelCamera#setDualCameraMode(String, android.hardware.Camera.Parameters)
+ * @see IntelCamera#setDualVideo(boolean, android.hardware.Camera.Parameters)
+ * @hide
+ */
+public class DualCameraFrameSynchronizer
+{
+    public static final int STREAM_PRIMARY = 0;
+    public static final int STREAM_SECONDARY = 1;
+
+    public static final int MATCH_TIMESTAMP = 0;
+    public static final int MATCH_FRAME_ID = 1;
+
+    /** Buckets of the skew histogram, each tolerance / SKEW_BUCKETS wide. */
+    public static final int SKEW_BUCKETS = 8;
+
+    /**
+     * The Consumer interface is used for receiving pairs. Both methods are
+     * called on the thread draining the queues, never concurrently.
+     */
+    public interface Consumer
+    {
+        void onFramePair(Object primary, Object secondary, long primaryTimestampNs,
+                long secondaryTimestampNs);
+
+        /**
+         * Called for a frame that will not be paired, so its buffer can be
+         * reused.
+         */
+        void onFrameDropped(int stream, Object frame);
+    }
+
+    /**
+     * Statistics snapshot.
+     */
+    public static class Stats
+    {
+        public long pairs;
+        public long primaryDropped;
+        public long secondaryDropped;
+        /** Time from arrival of the first frame of a pair to its delivery. */
+        public long averageLatencyUs;
+        public long maxLatencyUs;
+        /**
+         * Absolute skew of the pairs, bucket i counts skews in
+         * [i, i + 1) * tolerance / SKEW_BUCKETS. The last bucket also
+         * counts pairs matched by id beyond the tolerance.
+         */
+        public long[] skewHistogram;
+    }
+
+    private static class Entry
+    {
+        final Object frame;
+        final long timestampNs;
+        final int frameId;
+        final long arrivalNs;
+
+        Entry(Object frame, long timestampNs, int frameId, long arrivalNs) {
+            this.frame = frame;
+            this.timestampNs = timestampNs;
+            this.frameId = frameId;
+            this.arrivalNs = arrivalNs;
+        }
+    }
+
+    private final Consumer mConsumer;
+    private final long mToleranceNs;
+    private final int mMatchMode;
+    private final int mMaxPending;
+
+    private final ConcurrentLinkedQueue<Entry> mPrimary = new ConcurrentLinkedQueue<Entry>();
+    private final ConcurrentLinkedQueue<Entry> mSecondary = new ConcurrentLinkedQueue<Entry>();
+    // approximate queue sizes, ConcurrentLinkedQueue.size() is linear
+    private final AtomicInteger[] mPending = {
+        new AtomicInteger(), new AtomicInteger()
+    };
+    // drain requests, the thread raising it from 0 drains
+    private final AtomicInteger mWip = new AtomicInteger();
+    // set by flush, honoured by the draining thread
+    private final AtomicBoolean mFlushRequested = new AtomicBoolean();
+
+    private final AtomicLong mPairs = new AtomicLong();
+    private final AtomicLongArray mDropped = new AtomicLongArray(2);
+    private final AtomicLong mLatencySumNs = new AtomicLong();
+    private final AtomicLong mLatencyMaxNs = new AtomicLong();
+    private final AtomicLongArray mSkew = new AtomicLongArray(SKEW_BUCKETS);
+
+    /**
+     * @param toleranceNs largest timestamp difference of a pair
+     * @param matchMode MATCH_TIMESTAMP or MATCH_FRAME_ID
+     * @param maxPending frames kept waiting per stream before the oldest is dropped
+     */
+    public DualCameraFrameSynchronizer(Consumer consumer, long toleranceNs, int matchMode, int maxPending) {
+        if (toleranceNs <= 0)
+            throw new IllegalArgumentException("Tolerance must be positive");
+        mConsumer = consumer;
+        mToleranceNs = toleranceNs;
+        mMatchMode = matchMode;
+        mMaxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * Offers a frame of one stream. May be called from any thread.
+     * @param frameId sensor frame id, ignored when matching by timestamp
+     */
+    public void offer(int stream, Object frame, long timestampNs, int frameId) {
+        queue(stream).offer(new Entry(frame, timestampNs, frameId, System.nanoTime()));
+        mPending[stream].incrementAndGet();
+        drain();
+    }
+
+    /**
+     * Drops every waiting frame, for example when a stream stops. If another
+     * thread is draining, that thread drops the frames before it returns.
+     */
+    public void flush() {
+        mFlushRequested.set(true);
+        drain();
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.pairs = mPairs.get();
+        stats.primaryDropped = mDropped.get(STREAM_PRIMARY);
+        stats.secondaryDropped = mDropped.get(STREAM_SECONDARY);
+        stats.averageLatencyUs = stats.pairs > 0 ? mLatencySumNs.get() / stats.pairs / 1000 : 0;
+        stats.maxLatencyUs = mLatencyMaxNs.get() / 1000;
+        stats.skewHistogram = new long[SKEW_BUCKETS];
+        for (int i = 0; i < SKEW_BUCKETS; i++)
+            stats.skewHistogram[i] = mSkew.get(i);
+        return stats;
+    }
+
+    private void drain() {
+        if (mWip.getAndIncrement() != 0)
+            return;
+        do {
+            drainOnce();
+        } while (mWip.decrementAndGet() != 0);
+    }
+
+    private void drainOnce() {
+        if (mFlushRequested.getAndSet(false)) {
+            for (int stream = 0; stream < 2; stream++) {
+                Entry e;
+                while ((e = poll(stream)) != null)
+                    drop(stream, e);
+            }
+            return;
+        }
+
+        ConcurrentLinkedQueue<Entry> primary = mPrimary;
+        ConcurrentLinkedQueue<Entry> secondary = mSecondary;
+        while (true) {
+            Entry a = primary.peek();
+            Entry b = secondary.peek();
+            if (a == null || b == null)
+                break;
+
+            long skew = a.timestampNs - b.timestampNs;
+            boolean match;
+            if (mMatchMode == MATCH_FRAME_ID)
+                match = a.frameId == b.frameId;
+            else
+                match = Math.abs(skew) <= mToleranceNs;
+
+            if (match) {
+                poll(STREAM_PRIMARY);
+                poll(STREAM_SECONDARY);
+                recordPair(a, b, Math.abs(skew));
+                mConsumer.onFramePair(a.frame, b.frame, a.timestampNs, b.timestampNs);
+                continue;
+            }
+
+            // the older head cannot pair with anything that comes later
+            boolean primaryOlder = mMatchMode == MATCH_FRAME_ID ? a.frameId - b.frameId < 0 : skew < 0;
+            int stream = primaryOlder ? STREAM_PRIMARY : STREAM_SECONDARY;
+            drop(stream, poll(stream));
+        }
+
+        // one stream may have stalled, keep its partner's backlog bounded
+        for (int stream = 0; stream < 2; stream++) {
+            while (mPending[stream].get() > mMaxPending) {
+                Entry e = poll(stream);
+                if (e == null)
+                    break;
+                drop(stream, e);
+            }
+        }
+    }
+
+    private Entry poll(int stream) {
+        Entry e = queue(stream).poll();
+        if (e != null)
+            mPending[stream].decrementAndGet();
+        return e;
+    }
+
+    private ConcurrentLinkedQueue<Entry> queue(int stream) {
+        return stream == STREAM_PRIMARY ? mPrimary : mSecondary;
+    }
+
+    private void drop(int stream, Entry e) {
+        mDropped.incrementAndGet(stream);
+        mConsumer.onFrameDropped(stream, e.frame);
+    }
+
+    private void recordPair(Entry a, Entry b, long skew) {
+        long latency = System.nanoTime() - Math.min(a.arrivalNs, b.arrivalNs);
+        mPairs.incrementAndGet();
+        mLatencySumNs.addAndGet(latency);
+        long max;
+        while (latency > (max = mLatencyMaxNs.get()) && !mLatencyMaxNs.compareAndSet(max, latency)) {
+        }
+        int bucket = (int) Math.min(SKEW_BUCKETS - 1, skew * SKEW_BUCKETS / mToleranceNs);
+        mSkew.incrementAndGet(bucket);
+    }
+}
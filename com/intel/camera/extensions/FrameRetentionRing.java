@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The FrameRetentionRing class keeps the last N delivered frames in a fixed
+ * off-heap buffer, for zero shutter lag use with continuous shooting and a
+ * negative burst start index.
+ * <p>
+ * All storage is allocated once: a direct buffer of N slots of the maximum
+ * frame size. Adding a frame copies it into the oldest slot, so retaining
+ * frames creates no garbage. When the ring is attached to preview with
+ * {@link #attachPreview(Camera, int)} the same callback buffer is handed back
+ * to the camera after each copy, and no byte[] is allocated per frame at all.
+ * <p>
+ * Frames are looked up relative to a shutter press time in the
+ * {@link System#nanoTime()} time base: index 0 is the last frame captured at
+ * or before the press, -1 the one before it, and 1 the first frame after it.
+ * <p>
+ * The timestamp of a frame should be its capture time, not its arrival time.
+ * Preview frames reach Java a frame or so after capture and are stamped on
+ * arrival. JPEG frames from continuous shooting arrive after encoding, which
+ * would make "N frames before the press" select frames that are too late.
+ * When the ring is also registered with
+ * {@link IntelCamera#setFrameIdListener(IntelCamera.CaptureFrameIdCallback)},
+ * the HAL posts the sensor frame id of each capture before its JPEG is
+ * encoded; each JPEG is then stamped with the arrival time of its frame id
+ * and can be looked up by that id with {@link #extractByFrameId(int, ByteBuffer)}.
+ * Without frame ids the JPEG is stamped on arrival minus the latency set with
+ * {@link #setJpegLatencyNs(long)}, which is only an estimate of the encode
+ * time. Callers that know the capture time use {@link #add(byte[], int, long, int)}.
+ * @see IntelCamera#getMaxBurstLengthWithNegativeStartIndex(Parameters)
+ * @see IntelCamera#startContinuousShooting()
+ * @hide
+ */
+public class FrameRetentionRing implements Camera.PreviewCallback, Camera.PictureCallback,
+        IntelCamera.CaptureFrameIdCallback
+{
+    public static final int NO_FRAME_ID = -1;
+
+    private final int mSlotCount;
+    private final int mSlotSize;
+    private final ByteBuffer mStorage;
+    private final long[] mTimestamps;
+    private final int[] mLengths;
+    private final int[] mFrameIds;
+
+    // frame ids posted ahead of their JPEG, oldest first
+    private final int[] mPendingIds;
+    private final long[] mPendingTimes;
+    private int mPendingHead = 0;
+    private int mPendingCount = 0;
+    private long mJpegLatencyNs = 0;
+
+    // total number of frames added, the newest frame is in slot (mAdded - 1) % mSlotCount
+    private long mAdded = 0;
+    private int mDropped = 0;
+
+    /**
+     * Creates a ring sized for the current burst configuration: it retains
+     * as many frames as the HAL can deliver from before the shutter press.
+     * @param maxFrameSize largest frame size in bytes
+     */
+    public static FrameRetentionRing create(IntelCamera camera, Parameters params, int maxFrameSize) {
+        int count = Math.max(1, camera.getMaxBurstLengthWithNegativeStartIndex(params));
+        return new FrameRetentionRing(count, maxFrameSize);
+    }
+
+    public FrameRetentionRing(int slotCount, int maxFrameSize) {
+        if (slotCount <= 0 || maxFrameSize <= 0) {
+            throw new IllegalArgumentException("slot count and frame size must be positive");
+        }
+        mSlotCount = slotCount;
+        mSlotSize = maxFrameSize;
+        mStorage = ByteBuffer.allocateDirect(slotCount * maxFrameSize);
+        mTimestamps = new long[slotCount];
+        mLengths = new int[slotCount];
+        mFrameIds = new int[slotCount];
+        mPendingIds = new int[slotCount];
+        mPendingTimes = new long[slotCount];
+    }
+
+    /**
+     * Sets the estimated delay between capture and JPEG arrival, subtracted
+     * from the arrival time of JPEG frames that have no frame id.
+     */
+    public synchronized void setJpegLatencyNs(long latencyNs) {
+        mJpegLatencyNs = Math.max(0, latencyNs);
+    }
+
+    /**
+     * Registers the ring as the preview callback of the camera, using a
+     * single recycled callback buffer.
+     * @param frameSize size of one preview frame in bytes
+     */
+    public void attachPreview(Camera camera, int frameSize) {
+        camera.setPreviewCallbackWithBuffer(this);
+        camera.addCallbackBuffer(new byte[frameSize]);
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null)
+            return;
+        add(data, data.length, System.nanoTime(), NO_FRAME_ID);
+        // give the buffer straight back, its content now lives in the ring
+        camera.addCallbackBuffer(data);
+    }
+
+    /**
+     * Records the capture time of the next JPEG. The HAL posts the frame id
+     * of a capture before the JPEG of that capture.
+     */
+    @Override
+    public synchronized void onCaptureFrameIdAvailable(int frameId) {
+        long now = System.nanoTime();
+        if (mPendingCount == mPendingIds.length) {
+            // the JPEGs of the oldest ids never arrived
+            mPendingHead = (mPendingHead + 1) % mPendingIds.length;
+            mPendingCount--;
+        }
+        int tail = (mPendingHead + mPendingCount) % mPendingIds.length;
+        mPendingIds[tail] = frameId;
+        mPendingTimes[tail] = now;
+        mPendingCount++;
+    }
+
+    /**
+     * Retains continuous shooting frames when used as the JPEG callback.
+     */
+    @Override
+    public void onPictureTaken(byte[] data, Camera camera) {
+        if (data == null)
+            return;
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (mPendingCount > 0) {
+                int id = mPendingIds[mPendingHead];
+                long captureNs = mPendingTimes[mPendingHead];
+                mPendingHead = (mPendingHead + 1) % mPendingIds.length;
+                mPendingCount--;
+                add(data, data.length, captureNs, id);
+            } else {
+                add(data, data.length, now - mJpegLatencyNs, NO_FRAME_ID);
+            }
+        }
+    }
+
+    /**
+     * Copies a frame into the ring, replacing the oldest frame. Frames larger
+     * than the slot size are dropped.
+     * @param timestampNs capture time in the {@link System#nanoTime()} time base
+     * @return false if the frame was dropped
+     */
+    public boolean add(byte[] data, int length, long timestampNs) {
+        return add(data, length, timestampNs, NO_FRAME_ID);
+    }
+
+    /**
+     * Copies a frame into the ring, replacing the oldest frame, and records
+     * the sensor frame id it was captured with.
+     * @param frameId sensor frame id, or {@link #NO_FRAME_ID}
+     * @return false if the frame was dropped
+     */
+    public synchronized boolean add(byte[] data, int length, long timestampNs, int frameId) {
+        if (length > mSlotSize) {
+            mDropped++;
+            return false;
+        }
+        int slot = (int) (mAdded % mSlotCount);
+        ByteBuffer dst = mStorage.duplicate();
+        dst.position(slot * mSlotSize);
+        dst.put(data, 0, length);
+        mTimestamps[slot] = timestampNs;
+        mLengths[slot] = length;
+        mFrameIds[slot] = frameId;
+        mAdded++;
+        return true;
+    }
+
+    /**
+     * Copies a retained frame into dst.
+     * @param pressTimeNs shutter press time, in the {@link System#nanoTime()} time base
+     * @param relativeIndex position relative to the press, 0 is the last frame
+     *        at or before the press
+     * @param dst destination, written from its position
+     * @return number of bytes copied, -1 if that frame is not retained
+     */
+    public synchronized int extract(long pressTimeNs, int relativeIndex, ByteBuffer dst) {
+        return copyFrame(findFrame(pressTimeNs, relativeIndex), dst);
+    }
+
+    /**
+     * Copies the retained frame captured with the given sensor frame id into dst.
+     * @return number of bytes copied, -1 if that frame is not retained
+     */
+    public synchronized int extractByFrameId(int frameId, ByteBuffer dst) {
+        if (frameId == NO_FRAME_ID)
+            return -1;
+        long oldest = Math.max(0, mAdded - mSlotCount);
+        for (long frame = mAdded - 1; frame >= oldest; frame--) {
+            if (mFrameIds[(int) (frame % mSlotCount)] == frameId)
+                return copyFrame(frame, dst);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the sensor frame id of a retained frame, {@link #NO_FRAME_ID}
+     * if it has none or is not retained.
+     * @see #extract(long, int, ByteBuffer)
+     */
+    public synchronized int getFrameId(long pressTimeNs, int relativeIndex) {
+        long frame = findFrame(pressTimeNs, relativeIndex);
+        return frame < 0 ? NO_FRAME_ID : mFrameIds[(int) (frame % mSlotCount)];
+    }
+
+    private int copyFrame(long frame, ByteBuffer dst) {
+        if (frame < 0)
+            return -1;
+
+        int slot = (int) (frame % mSlotCount);
+        int length = mLengths[slot];
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("destination too small, " + length + " bytes needed");
+        }
+        ByteBuffer src = mStorage.duplicate();
+        src.position(slot * mSlotSize);
+        src.limit(slot * mSlotSize + length);
+        dst.put(src);
+        return length;
+    }
+
+    /**
+     * Returns the capture time of a retained frame, or -1 if it is not retained.
+     * @see #extract(long, int, ByteBuffer)
+     */
+    public synchronized long getTimestamp(long pressTimeNs, int relativeIndex) {
+        long frame = findFrame(pressTimeNs, relativeIndex);
+        return frame < 0 ? -1 : mTimestamps[(int) (frame % mSlotCount)];
+    }
+
+    /**
+     * Returns the size in bytes of a retained frame, or -1 if it is not retained.
+     * @see #extract(long, int, ByteBuffer)
+     */
+    public synchronized int getLength(long pressTimeNs, int relativeIndex) {
+        long frame = findFrame(pressTimeNs, relativeIndex);
+        return frame < 0 ? -1 : mLengths[(int) (frame % mSlotCount)];
+    }
+
+    /**
+     * Returns the number of frames currently retained.
+     */
+    public synchronized int size() {
+        return (int) Math.min(mAdded, mSlotCount);
+    }
+
+    /**
+     * Returns the number of frames dropped for being larger than a slot.
+     */
+    public synchronized int getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized void clear() {
+        mAdded = 0;
+        mPendingCount = 0;
+    }
+
+    // Returns the absolute number of the frame at relativeIndex, -1 if not retained
+    private long findFrame(long pressTimeNs, int relativeIndex) {
+        long oldest = Math.max(0, mAdded - mSlotCount);
+        // walk back from the newest frame to the last one at or before the press
+        long anchor = mAdded - 1;
+        while (anchor >= oldest && mTimestamps[(int) (anchor % mSlotCount)] > pressTimeNs)
+            anchor--;
+
+        long frame = anchor + relativeIndex;
+        if (frame < oldest || frame >= mAdded)
+            return -1;
+        return frame;
+    }
+}
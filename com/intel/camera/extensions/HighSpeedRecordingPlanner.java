@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The HighSpeedRecordingPlanner class picks a high speed recording
+ * configuration for a slow motion target.
+ * <p>
+ * The supported resolution and frame rate pairs, recording frame rates,
+ * slow motion rates and preview sizes are parsed once into sorted int
+ * arrays. {@link #plan(int, int, int, long)} then returns the largest
+ * resolution that records fast enough for the slow motion factor within
+ * the bandwidth limit, with the matching recording frame rate, slow motion
+ * rate and preview size.
+ * @see IntelCamera#getSupportedHighSpeedResolutionFps(Parameters)
+ * @hide
+ */
+public class HighSpeedRecordingPlanner
+{
+    /** Frame rate the slow motion factor is relative to. */
+    public static final int PLAYBACK_FPS = 30;
+
+    /**
+     * One recording configuration.
+     */
+    public static class Plan
+    {
+        public int width;
+        public int height;
+        /** Sensor frame rate of the chosen resolution. */
+        public int sensorFps;
+        public int recordingFps;
+        /** Slow motion rate value, null if slow motion rates are not reported. */
+        public String slowMotionRate;
+        public int previewWidth;
+        public int previewHeight;
+
+        /**
+         * Sets the recording frame rate, slow motion rate and preview size.
+         */
+        public void apply(IntelCamera camera, Parameters params) {
+            camera.setRecordingFrameRate(recordingFps, params);
+            if (slowMotionRate != null)
+                camera.setSlowMotionRate(slowMotionRate, params);
+            params.setPreviewSize(previewWidth, previewHeight);
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + sensorFps + " recording " + recordingFps
+                    + "fps slow motion " + slowMotionRate + " preview "
+                    + previewWidth + "x" + previewHeight;
+        }
+    }
+
+    // fps and entry index share the low 24 bits of an entry sort key
+    private static final int MAX_INDEX = 0xfff;
+
+    // resolution/fps entries, sorted by area descending, then fps ascending
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final int[] mFps;
+    // ascending
+    private final int[] mRecordingFps;
+    private final int[] mSlowMotionRates;
+    // preview sizes, sorted by area descending
+    private final int[] mPreviewWidths;
+    private final int[] mPreviewHeights;
+
+    public HighSpeedRecordingPlanner(IntelCamera camera, Parameters params) {
+        this(camera.getSupportedHighSpeedResolutionFps(params),
+                camera.getSupportedRecordingFrameRate(params),
+                camera.getSupportedSlowMotionRate(params),
+                params.getSupportedPreviewSizes());
+    }
+
+    /**
+     * Creates a planner from the supported values, in the formats returned by
+     * the {@link IntelCamera} getters, without a camera.
+     * @param previewSizes may be null
+     */
+    public HighSpeedRecordingPlanner(List<String> entries, List<String> recordingFps,
+            List<String> slowMotionRates, List<Camera.Size> previewSizes) {
+        this(entries, recordingFps, slowMotionRates, widths(previewSizes), heights(previewSizes));
+    }
+
+    /**
+     * @param previewWidths widths of the supported preview sizes
+     * @param previewHeights heights of the supported preview sizes, same order
+     */
+    public HighSpeedRecordingPlanner(List<String> entries, List<String> recordingFps,
+            List<String> slowMotionRates, int[] previewWidths, int[] previewHeights) {
+        if (previewWidths.length != previewHeights.length)
+            throw new IllegalArgumentException("Preview widths and heights differ in count");
+        int count = entries != null ? entries.size() : 0;
+        long[] packed = new long[count];
+        int n = 0;
+        int[] values = new int[3];
+        for (int i = 0; i < count && i <= MAX_INDEX; i++) {
+            if (parseInts(entries.get(i), values) < 3 || values[2] > MAX_INDEX)
+                continue;
+            packed[n++] = entryKey(values[0], values[1], values[2], i);
+        }
+        Arrays.sort(packed, 0, n);
+        mWidths = new int[n];
+        mHeights = new int[n];
+        mFps = new int[n];
+        for (int i = 0; i < n; i++) {
+            parseInts(entries.get((int) (packed[i] & MAX_INDEX)), values);
+            mWidths[i] = values[0];
+            mHeights[i] = values[1];
+            mFps[i] = values[2];
+        }
+
+        mRecordingFps = parseSorted(recordingFps);
+        mSlowMotionRates = parseSorted(slowMotionRates);
+
+        int sizeCount = previewWidths.length;
+        long[] packedSizes = new long[sizeCount];
+        for (int i = 0; i < sizeCount; i++)
+            packedSizes[i] = sizeKey(previewWidths[i], previewHeights[i], i);
+        Arrays.sort(packedSizes);
+        mPreviewWidths = new int[sizeCount];
+        mPreviewHeights = new int[sizeCount];
+        for (int i = 0; i < sizeCount; i++) {
+            int index = (int) (packedSizes[i] & 0xffffffffL);
+            mPreviewWidths[i] = previewWidths[index];
+            mPreviewHeights[i] = previewHeights[index];
+        }
+    }
+
+    /**
+     * Returns the best configuration, or null if none meets the target.
+     * @param slowMotionFactor playback slow down, 1 for real time
+     * @param minWidth minimum recording width
+     * @param minHeight minimum recording height
+     * @param maxPixelsPerSecond bandwidth limit, 0 for none
+     */
+    public Plan plan(int slowMotionFactor, int minWidth, int minHeight, long maxPixelsPerSecond) {
+        int factor = Math.max(1, slowMotionFactor);
+        int requiredFps = factor * PLAYBACK_FPS;
+        String rate = null;
+        if (mSlowMotionRates.length > 0) {
+            if (Arrays.binarySearch(mSlowMotionRates, factor) < 0)
+                return null;
+            rate = factor + "x";
+        }
+
+        for (int i = 0; i < mWidths.length; i++) {
+            int w = mWidths[i];
+            int h = mHeights[i];
+            if (w < minWidth || h < minHeight)
+                continue;
+            int fps = mFps[i];
+            if (fps < requiredFps)
+                continue;
+            int recording = recordingFps(requiredFps, fps);
+            if (recording == 0)
+                continue;
+            if (maxPixelsPerSecond > 0 && (long) w * h * recording > maxPixelsPerSecond)
+                continue;
+
+            Plan plan = new Plan();
+            plan.width = w;
+            plan.height = h;
+            plan.sensorFps = fps;
+            plan.recordingFps = recording;
+            plan.slowMotionRate = rate;
+            choosePreviewSize(plan);
+            return plan;
+        }
+        return null;
+    }
+
+    /** Number of resolution/fps entries indexed. */
+    public int getEntryCount() {
+        return mWidths.length;
+    }
+
+    // lowest supported recording rate in [required, max], or 0
+    private int recordingFps(int required, int max) {
+        if (mRecordingFps.length == 0)
+            return required;
+        int index = Arrays.binarySearch(mRecordingFps, required);
+        if (index < 0)
+            index = -index - 1;
+        if (index < mRecordingFps.length && mRecordingFps[index] <= max)
+            return mRecordingFps[index];
+        return 0;
+    }
+
+    // largest preview size of the recording aspect ratio not above the recording size
+    private void choosePreviewSize(Plan plan) {
+        plan.previewWidth = plan.width;
+        plan.previewHeight = plan.height;
+        for (int i = 0; i < mPreviewWidths.length; i++) {
+            int w = mPreviewWidths[i];
+            int h = mPreviewHeights[i];
+            if (w <= plan.width && h <= plan.height && (long) w * plan.height == (long) h * plan.width) {
+                plan.previewWidth = w;
+                plan.previewHeight = h;
+                return;
+            }
+        }
+    }
+
+    // Sort key of a resolution/fps entry: area descending, then fps ascending,
+    // index in the low bits; fps and index must not exceed MAX_INDEX
+    private static long entryKey(int width, int height, int fps, int index) {
+        long area = (long) width * height;
+        return ((Long.MAX_VALUE >> 24) - area) << 24 | (long) fps << 12 | index;
+    }
+
+    // Sort key of a preview size: area descending, index in the low 32 bits
+    private static long sizeKey(int width, int height, int index) {
+        long area = Math.min((long) width * height, Integer.MAX_VALUE);
+        return (Integer.MAX_VALUE - area) << 32 | index;
+    }
+
+    private static int[] widths(List<Camera.Size> sizes) {
+        int[] out = new int[sizes != null ? sizes.size() : 0];
+        for (int i = 0; i < out.length; i++)
+            out[i] = sizes.get(i).width;
+        return out;
+    }
+
+    private static int[] heights(List<Camera.Size> sizes) {
+        int[] out = new int[sizes != null ? sizes.size() : 0];
+        for (int i = 0; i < out.length; i++)
+            out[i] = sizes.get(i).height;
+        return out;
+    }
+
+    // Parses the numbers of an entry such as "1280x720@120", returns the count
+    private static int parseInts(String str, int[] out) {
+        int count = 0;
+        int value = -1;
+        for (int i = 0; i <= str.length() && count < out.length; i++) {
+            char c = i < str.length() ? str.charAt(i) : ' ';
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+            } else if (value >= 0) {
+                out[count++] = value;
+                value = -1;
+            }
+        }
+        return count;
+    }
+
+    private static int[] parseSorted(List<String> values) {
+        if (values == null)
+            return new int[0];
+        int[] out = new int[values.size()];
+        int[] one = new int[1];
+        int n = 0;
+        for (String value : values) {
+            if (parseInts(value, one) == 1)
+                out[n++] = one[0];
+        }
+        out = Arrays.copyOf(out, n);
+        Arrays.sort(out);
+        return out;
+    }
+}
@@ -25,11 +25,17 @@ import android.hardware.Camera.Parameters;
 import android.util.Log;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.io.File;
 import java.io.IOException;
 import java.util.StringTokenizer;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * The IntelCamera class is used for accessing Intel's camera extensions.
@@ -61,17 +67,17 @@ import java.util.Iterator;
 public class IntelCamera {
     private static final String SUPPORTED_VALUES_SUFFIX = "-values";
     private static final String KEY_FOCUS_WINDOW = "focus-window";
-    private static final String KEY_XNR = "xnr";
-    private static final String KEY_ANR = "anr";
+    static final String KEY_XNR = "xnr";
+    static final String KEY_ANR = "anr";
     private static final String KEY_GDC = "gdc";
-    private static final String KEY_TEMPORAL_NOISE_REDUCTION = "temporal-noise-reduction";
+    static final String KEY_TEMPORAL_NOISE_REDUCTION = "temporal-noise-reduction";
     private static final String KEY_NOISE_REDUCTION_AND_EDGE_ENHANCEMENT = "noise-reduction-and-edge-enhancement";
     private static final String KEY_MULTI_ACCESS_COLOR_CORRECTION = "multi-access-color-correction";
-    private static final String KEY_AE_MODE = "ae-mode";
+    static final String KEY_AE_MODE = "ae-mode";
     private static final String KEY_AE_METERING_MODE = "ae-metering-mode";
     private static final String KEY_SHUTTER = "shutter";
     private static final String KEY_APERTURE = "aperture";
-    private static final String KEY_ISO = "iso";
+    static final String KEY_ISO = "iso";
     private static final String KEY_AF_METERING_MODE = "af-metering-mode";
     private static final String KEY_AWB_MAPPING_MODE = "awb-mapping-mode";
     private static final String KEY_COLOR_TEMPERATURE = "color-temperature";
@@ -84,11 +90,11 @@ public class IntelCamera {
     private static final String KEY_SHARPNESS_MODE = "sharpness-mode";
 
     // HDR
-    private static final String KEY_HDR_IMAGING = "hdr-imaging";
+    static final String KEY_HDR_IMAGING = "hdr-imaging";
     private static final String KEY_HDR_SAVE_ORIGINAL = "hdr-save-original";
 
     // Ultra low light
-    private static final String KEY_ULL = "ull";
+    static final String KEY_ULL = "ull";
 
     // panorama
     private static final String KEY_PANORAMA = "panorama";
@@ -119,7 +125,7 @@ public class IntelCamera {
     private static final String KEY_HW_OVERLAY_RENDERING = "overlay-render";
 
     // burst capture
-    private static final String KEY_BURST_LENGTH = "burst-length";
+    static final String KEY_BURST_LENGTH = "burst-length";
     private static final String KEY_BURST_FPS = "burst-fps"; // TODO: old API, remove it in the future
     private static final String KEY_BURST_SPEED = "burst-speed";
     public static final String KEY_BURST_START_INDEX = "burst-start-index";
@@ -150,7 +156,7 @@ public class IntelCamera {
     // high speed recording, slow motion playback
     private static final String KEY_SLOW_MOTION_RATE = "slow-motion-rate";
     private static final String KEY_HIGH_SPEED_RESOLUTION_FPS = "high-speed-resolution-fps";
-    private static final String KEY_RECORDING_FRAME_RATE = "recording-fps";
+    static final String KEY_RECORDING_FRAME_RATE = "recording-fps";
 
     // dual video
     private static final String KEY_DUAL_VIDEO = "dual-video";
@@ -249,20 +255,42 @@ public class IntelCamera {
     public static final String SHARPNESS_MODE_HARD = "hard";
 
     private Camera mCameraDevice = null;
+    private int mCameraId = -1;
     private Parameters mParameters;
     private EventHandler mEventHandler;
+    private FutureTask<CameraCapabilities> mCapabilities;
     private SceneDetectionListener mSceneDetectionListener;
     private PanoramaListener mPanoramaListener;
     private UllListener mUllListener;
     private LowBatteryListener mLowBatteryListener;
     private CaptureFrameIdCallback mCaptureFrameIdCallback;
+    private AccPreviewListener mAccPreviewListener;
+    // accelerator preview frames delivered and not released, guarded by itself
+    private final ArrayList<AccPreviewFrame> mAccFrames = new ArrayList<AccPreviewFrame>();
+    // set by CaptureLatencyTracer.attach()
+    volatile CaptureLatencyTracer mLatencyTracer;
     private boolean mSceneDetectionRunning = false;
+    private boolean mFaceRecognitionRunning = false;
     private boolean mPanoramaRunning = false;
     private boolean mSmileShutterRunning = false;
     private boolean mBlinkShutterRunning = false;
     private int mNativeContext; //accessed by native methods
 
     private static final String TAG = "com.intel.cameraext.Camera";
+    // per-event logging, the native trace ring covers these events at runtime
+    private static final boolean DEBUG = false;
+
+    /** @hide */
+    public static final int TRACE_LEVEL_OFF = 0;
+    /** @hide */
+    public static final int TRACE_LEVEL_EVENT = 1;
+    /** @hide */
+    public static final int TRACE_LEVEL_VERBOSE = 2;
+
+    /** Trace event of one callback into Java, see {@link #getTraceSummary(int)}. @hide */
+    public static final int TRACE_EVENT_JAVA_CALLBACK = 3;
+    /** Trace event of the first callback on a HAL thread, see {@link #getTraceSummary(int)}. @hide */
+    public static final int TRACE_EVENT_CALLBACK_ATTACH = 4;
 
     private native final void native_setup(Object camera_this, Camera cameraDevice);
     private native final void native_release();
@@ -285,6 +313,11 @@ public class IntelCamera {
     private native final void native_setPreviewFrameCaptureId(int id);
     private native final void native_pausePreviewFrameUpdate();
     private native final void native_resumePreviewFrameUpdate();
+    private native final void native_setAccPreviewCallback(boolean enable);
+    private native final void native_returnAccPreviewBuffer(int frameCounter);
+    private static native final void native_setTraceLevel(int level);
+    private static native final void native_dumpTrace();
+    private static native final void native_getTraceSummary(int event, long[] summary);
 
     // here need keep pace with native msgType
     private static final int CAMERA_MSG_SCENE_DETECT = 0x2001;
@@ -293,6 +326,7 @@ public class IntelCamera {
     private static final int CAMERA_MSG_ULL_SNAPSHOT = 0x2007;
     private static final int CAMERA_MSG_ULL_TRIGGERED = 0x2009;
     private static final int CAMERA_MSG_LOW_BATTERY = 0x200B;
+    private static final int CAMERA_MSG_ACC_PREVIEW_BUFFER = 0x2011;
     private static final int CAMERA_MSG_FRAME_ID = 0x2017;
 
     static {
@@ -313,11 +347,13 @@ public class IntelCamera {
     public IntelCamera(int cameraId, boolean lowPriority) {
         native_setPriority(cameraId, lowPriority);
         mCameraDevice = android.hardware.Camera.open(cameraId);
+        mCameraId = cameraId;
         init();
     }
 
     public IntelCamera(int cameraId) {
         mCameraDevice = android.hardware.Camera.open(cameraId);
+        mCameraId = cameraId;
         init();
     }
 
@@ -326,7 +362,96 @@ public class IntelCamera {
         init();
     }
 
+    private IntelCamera(int cameraId, Camera cameraDevice, Looper looper) {
+        mCameraDevice = cameraDevice;
+        mCameraId = cameraId;
+        init(looper);
+    }
+
+    /**
+     * Opens the camera on the given executor. Camera.open, native_setup and
+     * native_enableIntelCamera all run there, so the calling thread can go
+     * on with its own initialization. The Intel extension events are
+     * delivered on the looper of the calling thread, or the main looper, as
+     * with the constructors.
+     * <p>
+     * The callbacks of the {@link android.hardware.Camera} device itself,
+     * such as preview frames, shutter, pictures and errors, bind to the
+     * looper of the thread that calls Camera.open. Executor threads have no
+     * looper, so these callbacks are delivered on the main looper, not the
+     * calling thread's. To receive them on another thread, construct the
+     * IntelCamera on a looper thread such as a {@link android.os.HandlerThread}
+     * instead.
+     * @hide
+     */
+    public static Future<IntelCamera> openAsync(int cameraId, Executor executor) {
+        return openAsync(cameraId, executor, false);
+    }
+
+    /**
+     * Opens the camera on the given executor, optionally taking the
+     * capability snapshot on a second task once the Intel extensions are set
+     * up, while the caller goes on with its own initialization. The snapshot
+     * is then available from {@link #getCapabilitiesAsync()}.
+     * @see #openAsync(int, Executor)
+     * @hide
+     */
+    public static Future<IntelCamera> openAsync(final int cameraId, final Executor executor,
+            final boolean prefetchCapabilities) {
+        final Looper looper = Looper.myLooper();
+        FutureTask<IntelCamera> task = new FutureTask<IntelCamera>(new Callable<IntelCamera>() {
+            @Override
+            public IntelCamera call() {
+                final Camera device = Camera.open(cameraId);
+                IntelCamera camera;
+                try {
+                    camera = new IntelCamera(cameraId, device, looper);
+                } catch (RuntimeException e) {
+                    device.release();
+                    throw e;
+                }
+                if (prefetchCapabilities) {
+                    // the parameters include the Intel keys only once the extensions are enabled
+                    FutureTask<CameraCapabilities> capabilities = newCapabilitiesTask(cameraId, device);
+                    synchronized (camera) {
+                        camera.mCapabilities = capabilities;
+                    }
+                    executor.execute(capabilities);
+                }
+                return camera;
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Returns the capability snapshot of the camera. It is taken on first
+     * call, unless {@link #openAsync(int, Executor, boolean)} already started
+     * taking it.
+     * @hide
+     */
+    public synchronized Future<CameraCapabilities> getCapabilitiesAsync() {
+        if (mCapabilities == null) {
+            mCapabilities = newCapabilitiesTask(mCameraId, mCameraDevice);
+            mCapabilities.run();
+        }
+        return mCapabilities;
+    }
+
+    private static FutureTask<CameraCapabilities> newCapabilitiesTask(final int cameraId,
+            final Camera device) {
+        return new FutureTask<CameraCapabilities>(new Callable<CameraCapabilities>() {
+            @Override
+            public CameraCapabilities call() {
+                return CameraCapabilities.from(cameraId, device.getParameters());
+            }
+        });
+    }
+
     public final void release() {
+        // the preview heaps may be unmapped once the camera is gone
+        invalidateAccPreviewFrames(null);
         native_release();
         if (mCameraDevice != null) {
             mCameraDevice.release();
@@ -334,11 +459,42 @@ public class IntelCamera {
         }
     }
 
+    /**
+     * Releases the camera on the given executor.
+     * @hide
+     */
+    public final Future<Void> releaseAsync(Executor executor) {
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        }, null);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Releases the camera on a new background thread.
+     * @hide
+     */
+    public final Future<Void> releaseAsync() {
+        return releaseAsync(new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                new Thread(r, "IntelCamera release").start();
+            }
+        });
+    }
+
     private void init() {
+        init(Looper.myLooper());
+    }
+
+    private void init(Looper looper) {
         native_setup(new WeakReference<IntelCamera>(this), mCameraDevice);
 
-        Looper looper;
-        if ((looper = Looper.myLooper()) != null) {
+        if (looper != null) {
             mEventHandler = new EventHandler(this, looper);
         } else if ((looper = Looper.getMainLooper()) != null) {
             mEventHandler = new EventHandler(this, looper);
@@ -379,7 +535,7 @@ public class IntelCamera {
         public void handleMessage(Message msg) {
             switch(msg.what) {
             case CAMERA_MSG_SCENE_DETECT:
-                Log.d(TAG, "Scene Detection Listener Data");
+                if (DEBUG) Log.d(TAG, "Scene Detection Listener Data");
                 SceneDetectionMetadata sceneDetected = (SceneDetectionMetadata) msg.obj;
                 if (mSceneDetectionListener != null) {
                     mSceneDetectionListener.onSceneChange(sceneDetected);
@@ -396,28 +552,52 @@ public class IntelCamera {
                     mPanoramaListener.onSnapshotTaken(snapshot);
                 break;
             case CAMERA_MSG_ULL_SNAPSHOT:
-                Log.d(TAG, "ULL snapshot data");
+                if (DEBUG) Log.d(TAG, "ULL snapshot data");
                 UllSnapshot ullSnapshot = (UllSnapshot) msg.obj;
+                if (mLatencyTracer != null)
+                    mLatencyTracer.onUllSnapshot(ullSnapshot.id);
                 if (mUllListener != null) {
                     mUllListener.onSnapshotTaken(ullSnapshot);
                 }
+                break;
             case CAMERA_MSG_ULL_TRIGGERED:
+                if (mLatencyTracer != null)
+                    mLatencyTracer.onUllTriggered(msg.arg1);
                 if (mUllListener != null) {
                     mUllListener.onUllTriggered(msg.arg1);
                 }
                 break;
             case CAMERA_MSG_LOW_BATTERY:
-                Log.v(TAG, "LowBatteryListener");
+                if (DEBUG) Log.v(TAG, "LowBatteryListener");
                 if (mLowBatteryListener != null) {
                     mLowBatteryListener.lowBattery();
                 }
                 break;
             case CAMERA_MSG_FRAME_ID:
-                Log.v(TAG, "CaptureFrameIdCallback");
+                if (DEBUG) Log.v(TAG, "CaptureFrameIdCallback");
+                if (mLatencyTracer != null)
+                    mLatencyTracer.onFrameId(msg.arg1);
                 if (mCaptureFrameIdCallback != null) {
                     mCaptureFrameIdCallback.onCaptureFrameIdAvailable(msg.arg1);
                 }
                 break;
+            case CAMERA_MSG_ACC_PREVIEW_BUFFER:
+                AccPreviewFrame accFrame = (AccPreviewFrame) msg.obj;
+                accFrame.mCamera = mCamera;
+                // the read-only view is shared by the frames of one heap
+                accFrame.mData.clear();
+                AccPreviewListener accListener;
+                synchronized (mAccFrames) {
+                    accListener = mAccPreviewListener;
+                    if (accListener != null)
+                        mAccFrames.add(accFrame);
+                }
+                if (accListener != null) {
+                    accListener.onAccPreviewFrame(accFrame);
+                } else {
+                    accFrame.release();
+                }
+                break;
             default:
                 Log.e(TAG, "Unknown intel message type " + msg.what);
                 return;
@@ -425,6 +605,45 @@ public class IntelCamera {
         }
     }
 
+    /**
+     * Sets the runtime level of the native trace ring.
+     * <p>
+     * Trace records are binary and kept in a fixed size in-memory ring, so
+     * even {@link #TRACE_LEVEL_VERBOSE} is cheap enough to leave on while
+     * previewing. The initial level is read from the "camera.intel.trace"
+     * system property.
+     *
+     * @param level one of TRACE_LEVEL_OFF, TRACE_LEVEL_EVENT or TRACE_LEVEL_VERBOSE
+     * @see #dumpTrace()
+     * @hide
+     */
+    public static void setTraceLevel(int level) {
+        native_setTraceLevel(level);
+    }
+
+    /**
+     * Prints the contents of the native trace ring to the log.
+     * @see #setTraceLevel(int)
+     * @hide
+     */
+    public static void dumpTrace() {
+        native_dumpTrace();
+    }
+
+    /**
+     * Summarizes the durations recorded for one event in the native trace
+     * ring, in microseconds. Only the records still in the ring are counted.
+     *
+     * @param event {@link #TRACE_EVENT_JAVA_CALLBACK} or {@link #TRACE_EVENT_CALLBACK_ATTACH}
+     * @return the record count, the sum and the maximum of the durations
+     * @hide
+     */
+    public static long[] getTraceSummary(int event) {
+        long[] summary = new long[3];
+        native_getTraceSummary(event, summary);
+        return summary;
+    }
+
     /**
      * The PanoramaSnapshot class is used to carry information in the PanoramaListener
      * callbacks.
@@ -687,6 +906,138 @@ public class IntelCamera {
         mCaptureFrameIdCallback = listener;
     }
 
+    /**
+     * The AccPreviewFrame class carries an accelerator preview frame to the
+     * AccPreviewListener.
+     * <p>
+     * The image data is a read-only direct buffer over the HAL preview buffer;
+     * no copy is made. The buffer is lent to the application and must be
+     * given back with {@link #release()} as soon as possible, the HAL stalls
+     * when it runs out of preview buffers.
+     * <p>
+     * The frame becomes invalid when it is released, when the listener is
+     * unsubscribed and when the camera is released; {@link #getData()} then
+     * throws. The buffer returned earlier by {@link #getData()} must not be
+     * kept past that point, the memory behind it may be reused or unmapped.
+     * @see #setAccPreviewListener(AccPreviewListener listener)
+     * @hide
+     */
+    public static class AccPreviewFrame
+    {
+        public AccPreviewFrame() {
+        }
+
+        /**
+         * Id for debugging data flow path
+         */
+        public int id;
+        /**
+         * Frame counter. Reset upon preview start.
+         */
+        public int frameCounter;
+        public int width;
+        public int height;
+        public int format;
+        /**
+         * Stride of the buffer in bytes. For NV12 size == 1.5 * stride * height.
+         */
+        public int stride;
+        /**
+         * Size of the image data in bytes.
+         */
+        public int size;
+
+        // set from native code, read-only once delivered
+        ByteBuffer mData;
+        IntelCamera mCamera;
+        private boolean mReleased = false;
+
+        /**
+         * Returns the read-only image data.
+         * @throws IllegalStateException if the frame is no longer valid
+         */
+        public synchronized ByteBuffer getData() {
+            if (mReleased)
+                throw new IllegalStateException("Accelerator preview frame " + frameCounter
+                        + " was released");
+            return mData;
+        }
+
+        public synchronized boolean isReleased() {
+            return mReleased;
+        }
+
+        /**
+         * Returns the buffer to the HAL. Calling this more than once has no effect.
+         */
+        public void release() {
+            synchronized (this) {
+                if (mReleased)
+                    return;
+                mReleased = true;
+                mData = null;
+            }
+            if (mCamera != null) {
+                synchronized (mCamera.mAccFrames) {
+                    mCamera.mAccFrames.remove(this);
+                }
+                mCamera.native_returnAccPreviewBuffer(frameCounter);
+            }
+        }
+
+        // invalidates the frame, its buffer is returned by the caller
+        synchronized void invalidate() {
+            mReleased = true;
+            mData = null;
+        }
+    }
+
+    /**
+     * The AccPreviewListener interface is used for receiving accelerator
+     * preview frames.
+     * @hide
+     */
+    public interface AccPreviewListener
+    {
+        /**
+         * Called for each accelerator preview frame. The application owns the
+         * frame until it calls {@link AccPreviewFrame#release()}.
+         */
+        void onAccPreviewFrame(AccPreviewFrame frame);
+    }
+
+    /**
+     * Subscribes to accelerator preview frames. While a listener is set the
+     * preview buffers are not returned to the HAL automatically; each frame
+     * must be released by the application. Setting null unsubscribes and
+     * returns any buffers still held.
+     * @param listener the listener to notify, or null
+     * @hide
+     */
+    public final void setAccPreviewListener(AccPreviewListener listener)
+    {
+        if (listener == null) {
+            invalidateAccPreviewFrames(null);
+        } else {
+            synchronized (mAccFrames) {
+                mAccPreviewListener = listener;
+            }
+        }
+        native_setAccPreviewCallback(listener != null);
+    }
+
+    // unsubscribes and invalidates the frames still held by the application
+    private void invalidateAccPreviewFrames(AccPreviewListener listener) {
+        AccPreviewFrame[] frames;
+        synchronized (mAccFrames) {
+            mAccPreviewListener = listener;
+            frames = mAccFrames.toArray(new AccPreviewFrame[mAccFrames.size()]);
+            mAccFrames.clear();
+        }
+        for (AccPreviewFrame frame : frames)
+            frame.invalidate();
+    }
+
     /**
     * Set capture id of preview frame.
     *
@@ -747,6 +1098,11 @@ public class IntelCamera {
         mSceneDetectionRunning = false;
     }
 
+    final boolean isSceneDetectionRunning()
+    {
+        return mSceneDetectionRunning;
+    }
+
     /**
      * Starts the panorama mode. Preview must be started before you can call this function.
      * <p>
@@ -892,6 +1248,7 @@ public class IntelCamera {
     public final void startFaceRecognition()
     {
         native_startFaceRecognition();
+        mFaceRecognitionRunning = true;
     }
 
     /**
@@ -902,6 +1259,12 @@ public class IntelCamera {
     public final void stopFaceRecognition()
     {
         native_stopFaceRecognition();
+        mFaceRecognitionRunning = false;
+    }
+
+    final boolean isFaceRecognitionRunning()
+    {
+        return mFaceRecognitionRunning;
     }
 
     /**
@@ -1581,18 +1944,77 @@ public class IntelCamera {
     }
 
     /**
-     * Deprecated (TODO: remove)
+     * Creates a session that captures one burst and persists its JPEGs.
+     * @see BurstSession
+     * @hide
+     */
+    public BurstSession createBurstSession(File directory, BurstSession.Listener listener) {
+        return new BurstSession(this, directory, listener);
+    }
+
+    /**
+     * Gets the supported values of continuous viewfinder, using the current
+     * camera parameters.
+     *
+     * Note: every call fetches the parameters from the camera service and
+     * parses them. Callers that already hold the parameters, or query
+     * repeatedly, should use {@link #getSupportedContinuousViewfinder(Parameters)}.
+     *
+     * @see #getSupportedContinuousViewfinder(Parameters)
      * @hide
      */
     public List<String> getSupportedContinuousViewfinder() {
-        return null;
+        return getSupportedContinuousViewfinder(mCameraDevice.getParameters());
     }
 
     /**
-     * Deprecated (TODO: remove)
+     * Gets the supported values of continuous viewfinder. Continuous
+     * viewfinder is built on PREVIEW_UPDATE_MODE_CONTINUOUS and is
+     * supported when that preview update mode is.
+     *
+     * @return "true" and "false" if supported. null if this feature is not
+     *         supported.
+     * @hide
+     */
+    public List<String> getSupportedContinuousViewfinder(Parameters params) {
+        List<String> modes = getSupportedPreviewUpdateMode(params);
+        if (modes == null || !modes.contains(PREVIEW_UPDATE_MODE_CONTINUOUS))
+            return null;
+        ArrayList<String> values = new ArrayList<String>();
+        values.add(TRUE);
+        values.add(FALSE);
+        return values;
+    }
+
+    /**
+     * Enables or disables continuous viewfinder.
+     *
+     * When enabled the viewfinder keeps updating through takePicture() and
+     * preview processing is given priority over the capture, see
+     * PREVIEW_UPDATE_MODE_CONTINUOUS in {@link #setPreviewUpdateMode(String, Parameters)}.
+     * Disabling it returns to PREVIEW_UPDATE_MODE_STANDARD if the mode is
+     * PREVIEW_UPDATE_MODE_CONTINUOUS, and leaves any other preview update
+     * mode, such as windowless, unchanged.
+     *
+     * @see ViewfinderMonitor
+     * @hide
+     */
+    public void setContinuousViewfinder(boolean value, Parameters params) {
+        if (value)
+            setPreviewUpdateMode(PREVIEW_UPDATE_MODE_CONTINUOUS, params);
+        else if (getContinuousViewfinder(params))
+            setPreviewUpdateMode(PREVIEW_UPDATE_MODE_STANDARD, params);
+    }
+
+    /**
+     * Gets the continuous viewfinder state.
+     *
+     * @return true if continuous viewfinder is enabled.
      * @hide
      */
-    public void setContinuousViewfinder(boolean value, Parameters params) {}
+    public boolean getContinuousViewfinder(Parameters params) {
+        return PREVIEW_UPDATE_MODE_CONTINUOUS.equals(getPreviewUpdateMode(params));
+    }
 
     /**
      * Gets the supported values of preview update mode.
@@ -1652,6 +2074,44 @@ public class IntelCamera {
         params.set(KEY_PREVIEW_UPDATE_MODE, value);
     }
 
+    /**
+     * Sets the preview keep alive state.
+     *
+     * When enabled, the preview pipeline is kept running across single and
+     * burst captures instead of being torn down by takePicture(), so the
+     * next preview start does not pay the full pipeline restart. Combine it
+     * with PREVIEW_UPDATE_MODE_DURING_CAPTURE or
+     * PREVIEW_UPDATE_MODE_CONTINUOUS to also keep preview frames flowing
+     * during the capture.
+     *
+     * @see PreviewKeepAlive
+     * @hide
+     */
+    public void setPreviewKeepAlive(boolean toggle, Parameters params) {
+        params.set(KEY_PREVIEW_KEEP_ALIVE, toggle ? TRUE : FALSE);
+    }
+
+    /**
+     * Gets the preview keep alive state.
+     *
+     * @return true if preview keep alive is enabled.
+     * @hide
+     */
+    public boolean getPreviewKeepAlive(Parameters params) {
+        return TRUE.equals(params.get(KEY_PREVIEW_KEEP_ALIVE));
+    }
+
+    /**
+     * Gets the supported values of preview keep alive.
+     *
+     * @return a list of supported values. null if this feature is not
+     *         supported.
+     * @hide
+     */
+    public List<String> getSupportedPreviewKeepAlive(Parameters params) {
+        return getSupportedValues(KEY_PREVIEW_KEEP_ALIVE + SUPPORTED_VALUES_SUFFIX, params);
+    }
+
     /**
      * Gets the current raw data format.
      *
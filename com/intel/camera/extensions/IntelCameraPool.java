@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The IntelCameraPool class keeps IntelCamera instances open between uses
+ * and brings preempted low priority cameras back.
+ * <p>
+ * {@link #acquire(int, boolean)} returns the warm instance of a camera id
+ * if there is one and opens it otherwise; {@link #recycle(int)} stops
+ * preview and keeps the camera open for the next acquire, remembering its
+ * parameters. The capabilities of each camera are captured once as a
+ * {@link CameraCapabilities} snapshot.
+ * <p>
+ * A low priority camera is closed by the camera service when a normal
+ * priority client opens it, which the pool sees as an error callback. The
+ * pool then releases the dead instance and retries opening the camera in
+ * the background, backing off exponentially from the retry interval up to
+ * a maximum interval, until the other client is gone or the attempts run
+ * out. The open runs without the pool lock held, so the other methods do
+ * not wait for it. The new instance gets the last saved parameters and is
+ * handed to {@link Listener#onCameraReacquired(int, IntelCamera)};
+ * listeners set on the old instance must be set again. When the attempts
+ * run out {@link Listener#onReacquireFailed(int)} is called, and the next
+ * {@link #acquire(int, boolean)} opens the camera again.
+ * <p>
+ * {@link #startPreview(int)} measures the time from startPreview to the
+ * first preview frame, and for the first preview after an open also the
+ * time from the open.
+ * @hide
+ */
+public class IntelCameraPool
+{
+    private static final String TAG = "IntelCameraPool";
+
+    public static final long DEFAULT_RETRY_INTERVAL_MS = 50;
+    public static final long DEFAULT_MAX_RETRY_INTERVAL_MS = 5000;
+    public static final int DEFAULT_MAX_REOPEN_ATTEMPTS = 30;
+
+    /**
+     * The Listener interface is used for receiving preemption events. The
+     * methods are called on the looper thread the pool was created on, or
+     * the main looper.
+     */
+    public interface Listener
+    {
+        void onCameraPreempted(int cameraId);
+
+        /**
+         * @param camera the new instance, with the saved parameters applied
+         */
+        void onCameraReacquired(int cameraId, IntelCamera camera);
+
+        /**
+         * The camera could not be opened again within the reopen attempts.
+         */
+        void onReacquireFailed(int cameraId);
+    }
+
+    // A camera opened without the pool lock, published with publish()
+    private static class Opened
+    {
+        IntelCamera mCamera;
+        CameraCapabilities mCapabilities;
+        long mOpenStartMs;
+        long mOpenMs;
+    }
+
+    private class Entry implements Camera.ErrorCallback
+    {
+        final int mCameraId;
+        boolean mLowPriority;
+        IntelCamera mCamera;
+        boolean mInUse;
+        boolean mReacquiring;
+        int mReopenAttempts;
+        String mSavedParameters;
+        CameraCapabilities mCapabilities;
+        Camera.ErrorCallback mErrorCallback;
+
+        long mOpenStartMs;
+        long mOpenMs;
+        long mOpenToFirstFrameMs;
+        long mStartToFirstFrameMs;
+        // no preview started since the last open
+        boolean mFreshlyOpened;
+        long mPreemptedAtMs;
+        long mReacquireMs;
+        int mPreemptions;
+
+        Entry(int cameraId) {
+            mCameraId = cameraId;
+        }
+
+        @Override
+        public void onError(int error, Camera camera) {
+            Camera.ErrorCallback forward;
+            synchronized (IntelCameraPool.this) {
+                forward = mErrorCallback;
+                if (mCamera != null && mCamera.getCameraDevice() == camera)
+                    onPreempted(this, error);
+            }
+            if (forward != null)
+                forward.onError(error, camera);
+        }
+    }
+
+    private final HashMap<Integer, Entry> mEntries = new HashMap<Integer, Entry>();
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final ScheduledThreadPoolExecutor mReopener = new ScheduledThreadPoolExecutor(1);
+    private long mRetryIntervalMs = DEFAULT_RETRY_INTERVAL_MS;
+    private long mMaxRetryIntervalMs = DEFAULT_MAX_RETRY_INTERVAL_MS;
+    private int mMaxReopenAttempts = DEFAULT_MAX_REOPEN_ATTEMPTS;
+
+    public IntelCameraPool(Listener listener) {
+        mListener = listener;
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    /**
+     * Sets the interval before the first retry of a reopen. It doubles with
+     * each failed attempt up to the maximum retry interval.
+     */
+    public synchronized void setRetryInterval(long ms) {
+        mRetryIntervalMs = Math.max(1, ms);
+    }
+
+    public synchronized void setMaxRetryInterval(long ms) {
+        mMaxRetryIntervalMs = ms;
+    }
+
+    /**
+     * Sets how many times a preempted camera is tried to be opened again.
+     */
+    public synchronized void setMaxReopenAttempts(int attempts) {
+        mMaxReopenAttempts = Math.max(1, attempts);
+    }
+
+    /**
+     * Returns an open camera for the id, opening it if needed. The camera
+     * stays owned by the pool; give it back with {@link #recycle(int)} or
+     * {@link #release(int)}.
+     * @throws RuntimeException if the camera cannot be opened
+     */
+    public synchronized IntelCamera acquire(int cameraId, boolean lowPriority) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null) {
+            entry = new Entry(cameraId);
+            mEntries.put(cameraId, entry);
+        }
+        if (entry.mInUse)
+            throw new IllegalStateException("Camera " + cameraId + " is already in use");
+        if (entry.mCamera == null || entry.mLowPriority != lowPriority) {
+            closeCamera(entry);
+            entry.mLowPriority = lowPriority;
+            open(entry);
+        }
+        entry.mInUse = true;
+        return entry.mCamera;
+    }
+
+    /**
+     * Stops preview and keeps the camera open for the next acquire. The
+     * current parameters are saved for reacquiring.
+     */
+    public synchronized void recycle(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null || entry.mCamera == null)
+            return;
+        Camera device = entry.mCamera.getCameraDevice();
+        entry.mSavedParameters = device.getParameters().flatten();
+        device.stopPreview();
+        device.setPreviewCallback(null);
+        entry.mInUse = false;
+    }
+
+    /**
+     * Saves the current parameters of the camera, to be restored when it is
+     * reacquired after preemption.
+     */
+    public synchronized void saveParameters(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry != null && entry.mCamera != null)
+            entry.mSavedParameters = entry.mCamera.getCameraDevice().getParameters().flatten();
+    }
+
+    /**
+     * Sets an error callback to forward the camera errors to. The pool uses
+     * the camera error callback itself, so it must not be set directly.
+     */
+    public synchronized void setErrorCallback(int cameraId, Camera.ErrorCallback callback) {
+        Entry entry = mEntries.get(cameraId);
+        if (entry != null)
+            entry.mErrorCallback = callback;
+    }
+
+    /**
+     * Returns the capabilities of the camera, captured when it was first
+     * opened, or null if it never was.
+     */
+    public synchronized CameraCapabilities getCapabilities(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry != null ? entry.mCapabilities : null;
+    }
+
+    /**
+     * Starts preview and records the time to the first preview frame, from
+     * this call and, on the first preview after an open, from the open.
+     * Replaces any preview callback for the first frame.
+     */
+    public synchronized void startPreview(int cameraId) {
+        final Entry entry = mEntries.get(cameraId);
+        if (entry == null || entry.mCamera == null)
+            return;
+        final long startMs = SystemClock.elapsedRealtime();
+        final boolean fromOpen = entry.mFreshlyOpened;
+        entry.mFreshlyOpened = false;
+        entry.mStartToFirstFrameMs = 0;
+        if (fromOpen)
+            entry.mOpenToFirstFrameMs = 0;
+        Camera device = entry.mCamera.getCameraDevice();
+        device.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                long now = SystemClock.elapsedRealtime();
+                long fromOpenMs;
+                synchronized (IntelCameraPool.this) {
+                    entry.mStartToFirstFrameMs = now - startMs;
+                    fromOpenMs = now - entry.mOpenStartMs;
+                    if (fromOpen)
+                        entry.mOpenToFirstFrameMs = fromOpenMs;
+                }
+                Log.i(TAG, "Camera " + entry.mCameraId + " start to first frame "
+                        + (now - startMs) + "ms" + (fromOpen ? ", open to first frame "
+                        + fromOpenMs + "ms" : ", warm"));
+            }
+        });
+        device.startPreview();
+    }
+
+    /** Duration of the last open of the camera. */
+    public synchronized long getOpenMs(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry != null ? entry.mOpenMs : 0;
+    }
+
+    /**
+     * Time from the last open to the first frame of the first preview after
+     * it, 0 if not seen yet. Warm reuse does not change it.
+     */
+    public synchronized long getOpenToFirstFrameMs(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry != null ? entry.mOpenToFirstFrameMs : 0;
+    }
+
+    /** Time from the last startPreview to its first frame, 0 if not seen yet. */
+    public synchronized long getStartToFirstFrameMs(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry != null ? entry.mStartToFirstFrameMs : 0;
+    }
+
+    /** Time from the last preemption until the camera was opened again. */
+    public synchronized long getReacquireMs(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry != null ? entry.mReacquireMs : 0;
+    }
+
+    public synchronized int getPreemptionCount(int cameraId) {
+        Entry entry = mEntries.get(cameraId);
+        return entry != null ? entry.mPreemptions : 0;
+    }
+
+    /**
+     * Closes the camera and forgets it.
+     */
+    public synchronized void release(int cameraId) {
+        Entry entry = mEntries.remove(cameraId);
+        if (entry != null)
+            closeCamera(entry);
+    }
+
+    /**
+     * Closes every camera and stops reacquiring.
+     */
+    public synchronized void releaseAll() {
+        for (Entry entry : mEntries.values())
+            closeCamera(entry);
+        mEntries.clear();
+        mReopener.shutdownNow();
+    }
+
+    private void open(Entry entry) {
+        publish(entry, openCamera(entry.mCameraId, entry.mLowPriority,
+                entry.mCapabilities == null, entry.mSavedParameters, entry));
+    }
+
+    // Opens the camera and restores the parameters, does not touch the pool
+    private static Opened openCamera(int cameraId, boolean lowPriority, boolean capabilities,
+            String savedParameters, Camera.ErrorCallback errorCallback) {
+        Opened opened = new Opened();
+        opened.mOpenStartMs = SystemClock.elapsedRealtime();
+        opened.mCamera = new IntelCamera(cameraId, lowPriority);
+        Camera device = opened.mCamera.getCameraDevice();
+        device.setErrorCallback(errorCallback);
+        if (capabilities || savedParameters != null) {
+            Parameters params = device.getParameters();
+            if (capabilities)
+                opened.mCapabilities = CameraCapabilities.from(cameraId, params);
+            if (savedParameters != null) {
+                params.unflatten(savedParameters);
+                try {
+                    device.setParameters(params);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Restoring parameters of camera " + cameraId + " failed", e);
+                }
+            }
+        }
+        opened.mOpenMs = SystemClock.elapsedRealtime() - opened.mOpenStartMs;
+        return opened;
+    }
+
+    // called with the pool locked
+    private void publish(Entry entry, Opened opened) {
+        entry.mCamera = opened.mCamera;
+        if (entry.mCapabilities == null)
+            entry.mCapabilities = opened.mCapabilities;
+        entry.mOpenStartMs = opened.mOpenStartMs;
+        entry.mOpenMs = opened.mOpenMs;
+        entry.mFreshlyOpened = true;
+        entry.mOpenToFirstFrameMs = 0;
+    }
+
+    private void closeCamera(Entry entry) {
+        entry.mReacquiring = false;
+        if (entry.mCamera != null) {
+            entry.mCamera.release();
+            entry.mCamera = null;
+        }
+        entry.mInUse = false;
+    }
+
+    // called with the pool locked
+    private void onPreempted(final Entry entry, int error) {
+        Log.w(TAG, "Camera " + entry.mCameraId + " lost, error " + error);
+        entry.mCamera.release();
+        entry.mCamera = null;
+        entry.mPreemptions++;
+        entry.mPreemptedAtMs = SystemClock.elapsedRealtime();
+        final int cameraId = entry.mCameraId;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null)
+                    mListener.onCameraPreempted(cameraId);
+            }
+        });
+        if (!entry.mLowPriority)
+            return;
+        entry.mReacquiring = true;
+        entry.mReopenAttempts = 0;
+        scheduleReopen(entry, 0);
+    }
+
+    // called with the pool locked
+    private boolean isReacquiring(Entry entry) {
+        return entry.mReacquiring && mEntries.get(entry.mCameraId) == entry;
+    }
+
+    private void scheduleReopen(final Entry entry, long delayMs) {
+        mReopener.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean capabilities;
+                String savedParameters;
+                synchronized (IntelCameraPool.this) {
+                    if (!isReacquiring(entry))
+                        return;
+                    capabilities = entry.mCapabilities == null;
+                    savedParameters = entry.mSavedParameters;
+                }
+
+                Opened opened;
+                try {
+                    opened = openCamera(entry.mCameraId, true, capabilities, savedParameters, entry);
+                } catch (RuntimeException e) {
+                    // still held by the other client
+                    onReopenFailed(entry);
+                    return;
+                }
+
+                final IntelCamera camera;
+                final long reacquireMs;
+                synchronized (IntelCameraPool.this) {
+                    // released, or acquired again, while opening
+                    if (!isReacquiring(entry) || entry.mCamera != null) {
+                        camera = null;
+                        reacquireMs = 0;
+                    } else {
+                        publish(entry, opened);
+                        entry.mReacquiring = false;
+                        entry.mReacquireMs = SystemClock.elapsedRealtime() - entry.mPreemptedAtMs;
+                        camera = entry.mCamera;
+                        reacquireMs = entry.mReacquireMs;
+                    }
+                }
+                if (camera == null) {
+                    opened.mCamera.release();
+                    return;
+                }
+                Log.i(TAG, "Camera " + entry.mCameraId + " reacquired after " + reacquireMs
+                        + "ms, " + (entry.mReopenAttempts + 1) + " attempts");
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mListener != null)
+                            mListener.onCameraReacquired(entry.mCameraId, camera);
+                    }
+                });
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void onReopenFailed(final Entry entry) {
+        synchronized (this) {
+            if (!isReacquiring(entry))
+                return;
+            entry.mReopenAttempts++;
+            if (entry.mReopenAttempts < mMaxReopenAttempts) {
+                int doublings = Math.min(entry.mReopenAttempts - 1, 16);
+                scheduleReopen(entry, Math.min(mRetryIntervalMs << doublings, mMaxRetryIntervalMs));
+                return;
+            }
+            entry.mReacquiring = false;
+        }
+        Log.w(TAG, "Camera " + entry.mCameraId + " not reacquired after "
+                + entry.mReopenAttempts + " attempts");
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null)
+                    mListener.onReacquireFailed(entry.mCameraId);
+            }
+        });
+    }
+}
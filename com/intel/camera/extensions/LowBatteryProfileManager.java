@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The LowBatteryProfileManager class switches the camera to a cheaper
+ * configuration when the battery runs low, and back.
+ * <p>
+ * The low-cost profile is computed from the supported values of the
+ * current parameters each time it is entered, so it follows a camera that
+ * was reconfigured in the meantime: XNR, ANR and temporal noise reduction off,
+ * the lowest recording frame rate and the shortest burst. Entering the
+ * profile saves the current value of each setting it changes and applies
+ * all of them with a single setParameters call, then stops scene detection
+ * and face recognition if they are running. Restoring puts back the saved
+ * values the same way and restarts what was stopped.
+ * <p>
+ * Set the manager with {@link IntelCamera#setLowBatteryListener(IntelCamera.LowBatteryListener)}
+ * to enter the profile when the HAL reports low battery.
+ * @hide
+ */
+public class LowBatteryProfileManager implements IntelCamera.LowBatteryListener
+{
+    private static final String TAG = "LowBatteryProfileManager";
+
+    private final IntelCamera mCamera;
+    private final IntelCamera.LowBatteryListener mForward;
+
+    // the low-cost profile
+    private final ArrayList<String> mKeys = new ArrayList<String>();
+    private final ArrayList<String> mValues = new ArrayList<String>();
+
+    // values replaced when the profile was entered, and what replaced them
+    private final ArrayList<String> mSavedKeys = new ArrayList<String>();
+    private final ArrayList<String> mSavedValues = new ArrayList<String>();
+    private final ArrayList<String> mAppliedValues = new ArrayList<String>();
+    private boolean mActive = false;
+    private boolean mStoppedSceneDetection = false;
+    private boolean mStoppedFaceRecognition = false;
+
+    private long mLastSwitchMs = 0;
+
+    /**
+     * @param forward listener to forward the low battery notification to,
+     *        may be null
+     */
+    public LowBatteryProfileManager(IntelCamera camera, IntelCamera.LowBatteryListener forward) {
+        mCamera = camera;
+        mForward = forward;
+    }
+
+    /**
+     * Computes the low-cost profile from the supported values.
+     * {@link #enter()} calls it with the current parameters, so this is only
+     * needed to inspect the profile beforehand.
+     */
+    public synchronized void prepare(Parameters params) {
+        mKeys.clear();
+        mValues.clear();
+        addOff(IntelCamera.KEY_XNR, mCamera.getSupportedXNR(params));
+        addOff(IntelCamera.KEY_ANR, mCamera.getSupportedANR(params));
+        addOff(IntelCamera.KEY_TEMPORAL_NOISE_REDUCTION, mCamera.getSupportedTemporalNoiseReduction(params));
+        addLowest(IntelCamera.KEY_RECORDING_FRAME_RATE, mCamera.getSupportedRecordingFrameRate(params));
+        addLowest(IntelCamera.KEY_BURST_LENGTH, mCamera.getSupportedBurstLength(params));
+    }
+
+    @Override
+    public void lowBattery() {
+        enter();
+        if (mForward != null)
+            mForward.lowBattery();
+    }
+
+    /**
+     * Switches to the low-cost profile. Does nothing if already active.
+     * @return false if the camera rejected the parameters
+     */
+    public synchronized boolean enter() {
+        if (mActive)
+            return true;
+        long start = SystemClock.elapsedRealtime();
+        Camera device = mCamera.getCameraDevice();
+        Parameters params = device.getParameters();
+        prepare(params);
+
+        mSavedKeys.clear();
+        mSavedValues.clear();
+        mAppliedValues.clear();
+        for (int i = 0; i < mKeys.size(); i++) {
+            String key = mKeys.get(i);
+            String current = params.get(key);
+            if (current == null || current.equals(mValues.get(i)))
+                continue;
+            mSavedKeys.add(key);
+            mSavedValues.add(current);
+            mAppliedValues.add(mValues.get(i));
+            params.set(key, mValues.get(i));
+        }
+        if (!mSavedKeys.isEmpty()) {
+            try {
+                device.setParameters(params);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Entering the low battery profile failed", e);
+                mSavedKeys.clear();
+                mSavedValues.clear();
+                mAppliedValues.clear();
+                return false;
+            }
+        }
+
+        mStoppedSceneDetection = mCamera.isSceneDetectionRunning();
+        if (mStoppedSceneDetection)
+            mCamera.stopSceneDetection();
+        mStoppedFaceRecognition = mCamera.isFaceRecognitionRunning();
+        if (mStoppedFaceRecognition)
+            mCamera.stopFaceRecognition();
+
+        mActive = true;
+        mLastSwitchMs = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Low battery profile entered in " + mLastSwitchMs + "ms, changed " + getChangedSettings());
+        return true;
+    }
+
+    /**
+     * Restores the settings replaced by {@link #enter()}. Settings the
+     * application changed in the meantime are overwritten.
+     * @return false if the camera rejected the parameters
+     */
+    public synchronized boolean restore() {
+        if (!mActive)
+            return true;
+        long start = SystemClock.elapsedRealtime();
+        if (!mSavedKeys.isEmpty()) {
+            Camera device = mCamera.getCameraDevice();
+            Parameters params = device.getParameters();
+            for (int i = 0; i < mSavedKeys.size(); i++)
+                params.set(mSavedKeys.get(i), mSavedValues.get(i));
+            try {
+                device.setParameters(params);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Restoring from the low battery profile failed", e);
+                return false;
+            }
+        }
+
+        if (mStoppedFaceRecognition)
+            mCamera.startFaceRecognition();
+        if (mStoppedSceneDetection && !mCamera.isSceneDetectionRunning())
+            mCamera.startSceneDetection();
+
+        mActive = false;
+        mLastSwitchMs = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Low battery profile restored in " + mLastSwitchMs + "ms");
+        return true;
+    }
+
+    public synchronized boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Returns the settings changed by the active profile as
+     * "key=old-&gt;new" entries, including the features stopped.
+     */
+    public synchronized List<String> getChangedSettings() {
+        ArrayList<String> changed = new ArrayList<String>();
+        for (int i = 0; i < mSavedKeys.size(); i++) {
+            changed.add(mSavedKeys.get(i) + "=" + mSavedValues.get(i) + "->" + mAppliedValues.get(i));
+        }
+        if (mStoppedSceneDetection)
+            changed.add("scene-detection=running->stopped");
+        if (mStoppedFaceRecognition)
+            changed.add("face-recognition=running->stopped");
+        return changed;
+    }
+
+    /**
+     * Returns the time the last switch in either direction took.
+     */
+    public synchronized long getLastSwitchMs() {
+        return mLastSwitchMs;
+    }
+
+    private void addOff(String key, List<String> supported) {
+        if (supported == null)
+            return;
+        if (supported.contains("false"))
+            add(key, "false");
+        else if (supported.contains("off"))
+            add(key, "off");
+    }
+
+    private void addLowest(String key, List<String> supported) {
+        if (supported == null)
+            return;
+        int lowest = Integer.MAX_VALUE;
+        for (String value : supported) {
+            try {
+                lowest = Math.min(lowest, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                // not a plain number, ignore
+            }
+        }
+        if (lowest != Integer.MAX_VALUE)
+            add(key, Integer.toString(lowest));
+    }
+
+    private void add(String key, String value) {
+        mKeys.add(key);
+        mValues.add(value);
+    }
+}
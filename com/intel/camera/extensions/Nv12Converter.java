@@ -0,0 +1,459 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Nv12Converter class converts and transforms NV12 images, such as
+ * {@link IntelCamera.PanoramaSnapshot#snapshot} and
+ * {@link IntelCamera.AccPreviewFrame#getData()}.
+ * <p>
+ * Every operation splits the output into bands of rows and converts them on
+ * a pool of worker threads, the calling thread taking the last band. The
+ * output is written to a caller supplied array so the same buffer can be
+ * reused frame after frame. One converter may be shared, but its operations
+ * run one at a time.
+ * <p>
+ * Call {@link #release()} when done to stop the worker threads.
+ * @hide
+ */
+public class Nv12Converter
+{
+    // rows per band are kept even so that a band covers whole chroma rows
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+    // row buffers of each band, reused from frame to frame
+    private final byte[][] mScratch;
+    private long mLastDurationNs = 0;
+
+    /**
+     * Creates a converter with one thread per available core.
+     */
+    public Nv12Converter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a converter running on the given number of threads, including
+     * the calling thread.
+     */
+    public Nv12Converter(int threads) {
+        mThreads = Math.max(1, threads);
+        mScratch = new byte[mThreads][];
+        mExecutor = mThreads > 1 ? Executors.newFixedThreadPool(mThreads - 1, new ThreadFactory() {
+            private int mCount = 0;
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Nv12Converter-" + (mCount++));
+                t.setDaemon(true);
+                return t;
+            }
+        }) : null;
+    }
+
+    /**
+     * Stops the worker threads. The converter may not be used afterwards.
+     */
+    public void release() {
+        if (mExecutor != null)
+            mExecutor.shutdown();
+    }
+
+    /**
+     * Returns the duration of the last operation in nanoseconds.
+     */
+    public synchronized long getLastDurationNanos() {
+        return mLastDurationNs;
+    }
+
+    /**
+     * Converts to ARGB_8888 pixels.
+     * @param out at least width * height elements
+     */
+    public synchronized void toArgb(final byte[] src, final int width, final int height, final int[] out) {
+        checkSize(src.length, width, height);
+        checkLength(out.length, width * height);
+        run(height, new Band() {
+            void run(int band, int y0, int y1) {
+                int uvBase = width * height;
+                for (int y = y0; y < y1; y++) {
+                    int yRow = y * width;
+                    int uvRow = uvBase + (y >> 1) * width;
+                    for (int x = 0; x < width; x++) {
+                        int uv = uvRow + (x & ~1);
+                        out[yRow + x] = yuvToArgb(src[yRow + x] & 0xff, src[uv] & 0xff, src[uv + 1] & 0xff);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Converts to ARGB_8888 pixels from a buffer with row stride, such as an
+     * accelerator preview frame. The buffer position is not changed.
+     * @param out at least width * height elements
+     */
+    public synchronized void toArgb(final ByteBuffer src, final int width, final int height,
+            final int stride, final int[] out) {
+        if (stride < width || src.capacity() < stride * height * 3 / 2)
+            throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + " stride " + stride);
+        checkLength(out.length, width * height);
+        run(height, new Band() {
+            void run(int band, int y0, int y1) {
+                ByteBuffer in = src.duplicate();
+                // luma row, then chroma row
+                byte[] rows = scratch(band, width * 2);
+                int uvBase = stride * height;
+                for (int y = y0; y < y1; y++) {
+                    in.position(y * stride);
+                    in.get(rows, 0, width);
+                    if (y == y0 || (y & 1) == 0) {
+                        in.position(uvBase + (y >> 1) * stride);
+                        in.get(rows, width, width);
+                    }
+                    int o = y * width;
+                    for (int x = 0; x < width; x++) {
+                        int uv = width + (x & ~1);
+                        out[o + x] = yuvToArgb(rows[x] & 0xff, rows[uv] & 0xff, rows[uv + 1] & 0xff);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Converts to RGB_565 pixels.
+     * @param out at least width * height elements
+     */
+    public synchronized void toRgb565(final byte[] src, final int width, final int height, final short[] out) {
+        checkSize(src.length, width, height);
+        checkLength(out.length, width * height);
+        run(height, new Band() {
+            void run(int band, int y0, int y1) {
+                int uvBase = width * height;
+                for (int y = y0; y < y1; y++) {
+                    int yRow = y * width;
+                    int uvRow = uvBase + (y >> 1) * width;
+                    for (int x = 0; x < width; x++) {
+                        int uv = uvRow + (x & ~1);
+                        int argb = yuvToArgb(src[yRow + x] & 0xff, src[uv] & 0xff, src[uv + 1] & 0xff);
+                        out[yRow + x] = (short) (((argb >> 8) & 0xf800) | ((argb >> 5) & 0x07e0) | ((argb >> 3) & 0x001f));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Converts to planar I420 (Y, then U, then V).
+     * @param out at least width * height * 3 / 2 bytes
+     */
+    public synchronized void toI420(final byte[] src, final int width, final int height, final byte[] out) {
+        checkSize(src.length, width, height);
+        checkLength(out.length, width * height * 3 / 2);
+        run(height, new Band() {
+            void run(int band, int y0, int y1) {
+                System.arraycopy(src, y0 * width, out, y0 * width, (y1 - y0) * width);
+                int uvBase = width * height;
+                int uBase = uvBase;
+                int vBase = uvBase + uvBase / 4;
+                int cw = width / 2;
+                for (int cy = y0 / 2; cy < y1 / 2; cy++) {
+                    int in = uvBase + cy * width;
+                    int o = cy * cw;
+                    for (int cx = 0; cx < cw; cx++) {
+                        out[uBase + o + cx] = src[in + cx * 2];
+                        out[vBase + o + cx] = src[in + cx * 2 + 1];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Downscales by an integer factor, averaging each factor x factor block.
+     * The output is NV12 of (width / factor) x (height / factor), both
+     * rounded down to even.
+     * @param out at least outWidth * outHeight * 3 / 2 bytes
+     */
+    public synchronized void downscale(final byte[] src, final int width, final int height,
+            final int factor, final byte[] out) {
+        checkSize(src.length, width, height);
+        if (factor < 1)
+            throw new IllegalArgumentException("Invalid downscale factor " + factor);
+        final int ow = (width / factor) & ~1;
+        final int oh = (height / factor) & ~1;
+        checkLength(out.length, ow * oh * 3 / 2);
+        final int area = factor * factor;
+        run(oh, new Band() {
+            void run(int band, int y0, int y1) {
+                for (int oy = y0; oy < y1; oy++) {
+                    for (int ox = 0; ox < ow; ox++) {
+                        int sum = 0;
+                        for (int dy = 0; dy < factor; dy++) {
+                            int s = (oy * factor + dy) * width + ox * factor;
+                            for (int dx = 0; dx < factor; dx++)
+                                sum += src[s + dx] & 0xff;
+                        }
+                        out[oy * ow + ox] = (byte) (sum / area);
+                    }
+                }
+                int uvBase = width * height;
+                int outUvBase = ow * oh;
+                for (int cy = y0 / 2; cy < y1 / 2; cy++) {
+                    for (int cx = 0; cx < ow / 2; cx++) {
+                        int u = 0;
+                        int v = 0;
+                        for (int dy = 0; dy < factor; dy++) {
+                            int s = uvBase + (cy * factor + dy) * width + cx * factor * 2;
+                            for (int dx = 0; dx < factor; dx++) {
+                                u += src[s + dx * 2] & 0xff;
+                                v += src[s + dx * 2 + 1] & 0xff;
+                            }
+                        }
+                        int o = outUvBase + cy * ow + cx * 2;
+                        out[o] = (byte) (u / area);
+                        out[o + 1] = (byte) (v / area);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Crops a rectangle. x, y, cropWidth and cropHeight are rounded down to
+     * even values.
+     * @param out at least cropWidth * cropHeight * 3 / 2 bytes
+     */
+    public synchronized void crop(final byte[] src, final int width, final int height,
+            int x, int y, int cropWidth, int cropHeight, final byte[] out) {
+        checkSize(src.length, width, height);
+        final int cx = x & ~1;
+        final int cy = y & ~1;
+        final int cw = cropWidth & ~1;
+        final int ch = cropHeight & ~1;
+        if (cx < 0 || cy < 0 || cw <= 0 || ch <= 0 || cx + cw > width || cy + ch > height)
+            throw new IllegalArgumentException("Crop rectangle outside of the image");
+        checkLength(out.length, cw * ch * 3 / 2);
+        run(ch, new Band() {
+            void run(int band, int y0, int y1) {
+                for (int row = y0; row < y1; row++)
+                    System.arraycopy(src, (cy + row) * width + cx, out, row * cw, cw);
+                int uvBase = width * height;
+                for (int row = y0 / 2; row < y1 / 2; row++)
+                    System.arraycopy(src, uvBase + (cy / 2 + row) * width + cx, out, cw * ch + row * cw, cw);
+            }
+        });
+    }
+
+    /**
+     * Rotates clockwise, optionally mirroring horizontally first. The output
+     * is width x height for 0 and 180 degrees and height x width for 90 and
+     * 270 degrees.
+     * @param degrees 0, 90, 180 or 270, see {@link #parseRotation(String)}
+     * @param mirror see {@link #parseMirrored(String)}
+     * @param out at least width * height * 3 / 2 bytes
+     */
+    public synchronized void rotate(final byte[] src, final int width, final int height,
+            final int degrees, final boolean mirror, final byte[] out) {
+        checkSize(src.length, width, height);
+        checkLength(out.length, width * height * 3 / 2);
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270)
+            throw new IllegalArgumentException("Invalid rotation " + degrees);
+        final boolean swap = degrees == 90 || degrees == 270;
+        final int ow = swap ? height : width;
+        final int oh = swap ? width : height;
+        run(oh, new Band() {
+            void run(int band, int y0, int y1) {
+                for (int oy = y0; oy < y1; oy++) {
+                    for (int ox = 0; ox < ow; ox++) {
+                        int s = sourceIndex(ox, oy, width, height, degrees, mirror);
+                        out[oy * ow + ox] = src[(s >> 16) * width + (s & 0xffff)];
+                    }
+                }
+                int uvBase = width * height;
+                int outUvBase = ow * oh;
+                for (int cy = y0 / 2; cy < y1 / 2; cy++) {
+                    for (int cx = 0; cx < ow / 2; cx++) {
+                        int s = sourceIndex(cx, cy, width / 2, height / 2, degrees, mirror);
+                        int in = uvBase + (s >> 16) * width + (s & 0xffff) * 2;
+                        int o = outUvBase + cy * ow + cx * 2;
+                        out[o] = src[in];
+                        out[o + 1] = src[in + 1];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses a rotation mode as returned by
+     * {@link IntelCamera#getRotationMode(android.hardware.Camera.Parameters)}
+     * into clockwise degrees. Modes without an angle rotate by 0.
+     */
+    public static int parseRotation(String rotationMode) {
+        if (rotationMode == null)
+            return 0;
+        int degrees = 0;
+        boolean digits = false;
+        for (int i = 0; i < rotationMode.length(); i++) {
+            char c = rotationMode.charAt(i);
+            if (c >= '0' && c <= '9') {
+                degrees = degrees * 10 + (c - '0');
+                digits = true;
+            } else if (digits) {
+                break;
+            }
+        }
+        degrees %= 360;
+        return degrees - degrees % 90;
+    }
+
+    /**
+     * Parses a save mirrored value as set with
+     * {@link IntelCamera#setSaveMirrored(String, android.hardware.Camera.Parameters)}.
+     */
+    public static boolean parseMirrored(String saveMirrored) {
+        return "true".equals(saveMirrored) || "on".equals(saveMirrored);
+    }
+
+    /**
+     * Converts one BT.601 video range pixel to ARGB_8888.
+     */
+    public static int yuvToArgb(int y, int u, int v) {
+        int c = Math.max(0, y - 16) * 298;
+        int d = u - 128;
+        int e = v - 128;
+        int r = clampByte((c + 409 * e + 128) >> 8);
+        int g = clampByte((c - 100 * d - 208 * e + 128) >> 8);
+        int b = clampByte((c + 516 * d + 128) >> 8);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clampByte(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    // Source (y << 16 | x) of output pixel (ox, oy) of a width x height plane
+    private static int sourceIndex(int ox, int oy, int width, int height, int degrees, boolean mirror) {
+        int sx;
+        int sy;
+        switch (degrees) {
+        case 90:
+            sx = oy;
+            sy = height - 1 - ox;
+            break;
+        case 180:
+            sx = width - 1 - ox;
+            sy = height - 1 - oy;
+            break;
+        case 270:
+            sx = width - 1 - oy;
+            sy = ox;
+            break;
+        default:
+            sx = ox;
+            sy = oy;
+            break;
+        }
+        if (mirror)
+            sx = width - 1 - sx;
+        return (sy << 16) | sx;
+    }
+
+    private static void checkSize(int length, int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0)
+            throw new IllegalArgumentException("Invalid NV12 size " + width + "x" + height);
+        if (length < width * height * 3 / 2)
+            throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + " NV12");
+    }
+
+    private static void checkLength(int length, int required) {
+        if (length < required)
+            throw new IllegalArgumentException("Output too small, " + required + " required");
+    }
+
+    private static abstract class Band {
+        // converts output rows [y0, y1), y0 and y1 even unless y1 is the last row,
+        // band is the index of the band, below the thread count
+        abstract void run(int band, int y0, int y1);
+    }
+
+    // Returns the scratch buffer of a band, only one operation runs at a time
+    private byte[] scratch(int band, int length) {
+        byte[] buffer = mScratch[band];
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+            mScratch[band] = buffer;
+        }
+        return buffer;
+    }
+
+    private void run(int rows, final Band band) {
+        long start = System.nanoTime();
+        int bands = Math.min(mThreads, Math.max(1, rows / MIN_BAND_ROWS));
+        int bandRows = ((rows + bands - 1) / bands + 1) & ~1;
+        bands = (rows + bandRows - 1) / bandRows;
+
+        final CountDownLatch done = new CountDownLatch(bands - 1);
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < bands - 1; i++) {
+            final int index = i;
+            final int y0 = i * bandRows;
+            final int y1 = y0 + bandRows;
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        band.run(index, y0, y1);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        band.run(bands - 1, (bands - 1) * bandRows, rows);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        synchronized (failure) {
+            if (failure[0] instanceof RuntimeException)
+                throw (RuntimeException) failure[0];
+            if (failure[0] != null)
+                throw new RuntimeException(failure[0]);
+        }
+        mLastDurationNs = System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The PanoramaStitcher class composes panorama live preview snapshots into
+ * one NV12 image as they arrive.
+ * <p>
+ * Each snapshot is placed on an off-heap canvas using the displacement the
+ * panorama engine reported relative to the previous snapshot, and the
+ * overlap with the previous snapshot is feathered linearly along the
+ * stitching direction. The engine reports displacements in preview pixels,
+ * they are scaled to the live preview size of the snapshots before the
+ * snapshot is placed. The canvas is allocated once, sized for
+ * {@link IntelCamera#getMaximumPanoramaSnapshotCount(Parameters)} snapshots.
+ * <p>
+ * A downscaled ARGB mosaic is updated with every snapshot, so a preview of
+ * the panorama is available at any time, and {@link #finish()} only has to
+ * crop the canvas.
+ * <p>
+ * Set the stitcher with {@link IntelCamera#setPanoramaListener(IntelCamera.PanoramaListener)}
+ * directly, or pass it a listener to forward the callbacks to.
+ * @hide
+ */
+public class PanoramaStitcher implements IntelCamera.PanoramaListener
+{
+    // values of PanoramaMetadata.direction
+    public static final int DIRECTION_RIGHT = 1;
+    public static final int DIRECTION_LEFT = 2;
+    public static final int DIRECTION_DOWN = 3;
+    public static final int DIRECTION_UP = 4;
+
+    /** Downscale factor of the mosaic. */
+    public static final int MOSAIC_SCALE = 4;
+
+    private final int mTileWidth;
+    private final int mTileHeight;
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+    private final int mMaxSnapshots;
+    private final IntelCamera.PanoramaListener mForward;
+
+    private int mDirection = 0;
+    private int mCanvasWidth;
+    private int mCanvasHeight;
+    private ByteBuffer mCanvas;     // NV12, mCanvasWidth x mCanvasHeight
+    private int[] mMosaic;          // ARGB, canvas size / MOSAIC_SCALE
+
+    // snapshot received before the direction was known
+    private IntelCamera.PanoramaSnapshot mPending;
+
+    private int mCount = 0;
+    // position of the last placed snapshot on the canvas
+    private int mX;
+    private int mY;
+    // bounding box of all placed snapshots
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+
+    /**
+     * Creates a stitcher for the current panorama live preview size and
+     * maximum snapshot count.
+     * @param forward listener to forward the panorama callbacks to, may be null
+     */
+    public static PanoramaStitcher create(IntelCamera camera, Parameters params,
+            IntelCamera.PanoramaListener forward) {
+        Camera.Size size = camera.getPanoramaLivePreviewSize(params);
+        if (size == null)
+            throw new IllegalStateException("Panorama live preview size is not set");
+        Camera.Size preview = params.getPreviewSize();
+        if (preview == null)
+            throw new IllegalStateException("Preview size is not set");
+        return new PanoramaStitcher(size.width, size.height, preview.width, preview.height,
+                camera.getMaximumPanoramaSnapshotCount(params), forward);
+    }
+
+    /**
+     * Creates a stitcher for displacements that are already in live preview
+     * size units.
+     */
+    public PanoramaStitcher(int tileWidth, int tileHeight, int maxSnapshots,
+            IntelCamera.PanoramaListener forward) {
+        this(tileWidth, tileHeight, tileWidth, tileHeight, maxSnapshots, forward);
+    }
+
+    /**
+     * @param tileWidth width of the live preview snapshots
+     * @param tileHeight height of the live preview snapshots
+     * @param previewWidth width of the preview the displacements are measured in
+     * @param previewHeight height of the preview the displacements are measured in
+     */
+    public PanoramaStitcher(int tileWidth, int tileHeight, int previewWidth, int previewHeight,
+            int maxSnapshots, IntelCamera.PanoramaListener forward) {
+        if (previewWidth <= 0 || previewHeight <= 0) {
+            throw new IllegalArgumentException("Invalid preview size " + previewWidth + "x" + previewHeight);
+        }
+        if (tileWidth <= 0 || tileHeight <= 0 || (tileWidth & 1) != 0 || (tileHeight & 1) != 0) {
+            throw new IllegalArgumentException("Invalid live preview size " + tileWidth + "x" + tileHeight);
+        }
+        mTileWidth = tileWidth;
+        mTileHeight = tileHeight;
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+        mMaxSnapshots = Math.max(1, maxSnapshots);
+        mForward = forward;
+    }
+
+    @Override
+    public void onDisplacementChange(IntelCamera.PanoramaMetadata metadata) {
+        if (mForward != null)
+            mForward.onDisplacementChange(metadata);
+    }
+
+    @Override
+    public void onSnapshotTaken(IntelCamera.PanoramaSnapshot snapshot) {
+        addSnapshot(snapshot);
+        if (mForward != null)
+            mForward.onSnapshotTaken(snapshot);
+    }
+
+    /**
+     * Places one snapshot on the canvas.
+     */
+    public synchronized void addSnapshot(IntelCamera.PanoramaSnapshot snapshot) {
+        if (snapshot.snapshot == null || snapshot.snapshot.length < mTileWidth * mTileHeight * 3 / 2) {
+            throw new IllegalArgumentException("Snapshot is not a " + mTileWidth + "x" + mTileHeight + " NV12 image");
+        }
+        if (mCount >= mMaxSnapshots)
+            return;
+
+        if (mCanvas == null) {
+            int direction = snapshot.metadataDuringSnap != null ? snapshot.metadataDuringSnap.direction : 0;
+            if (direction == 0 && mPending == null) {
+                // the engine picks the direction after the first snapshot
+                mPending = snapshot;
+                return;
+            }
+            allocateCanvas(direction);
+            if (mPending != null) {
+                place(mPending.snapshot, mX, mY, false);
+                mPending = null;
+            }
+        }
+
+        if (mCount == 0) {
+            place(snapshot.snapshot, mX, mY, false);
+        } else {
+            IntelCamera.PanoramaMetadata m = snapshot.metadataDuringSnap;
+            int dx = m != null ? scale(m.horizontalDisplacement, mTileWidth, mPreviewWidth) : 0;
+            int dy = m != null ? scale(m.verticalDisplacement, mTileHeight, mPreviewHeight) : 0;
+            int x = clamp(mX + dx, mCanvasWidth - mTileWidth);
+            int y = clamp(mY + dy, mCanvasHeight - mTileHeight);
+            place(snapshot.snapshot, x, y, true);
+        }
+    }
+
+    /**
+     * Returns the number of snapshots placed so far.
+     */
+    public synchronized int getSnapshotCount() {
+        return mCount;
+    }
+
+    public synchronized int getMosaicWidth() {
+        return mCanvas == null ? 0 : (mRight - mLeft) / MOSAIC_SCALE;
+    }
+
+    public synchronized int getMosaicHeight() {
+        return mCanvas == null ? 0 : (mBottom - mTop) / MOSAIC_SCALE;
+    }
+
+    /**
+     * Copies the current low resolution mosaic, cropped to the placed
+     * snapshots, into out as ARGB pixels.
+     * @param out at least getMosaicWidth() * getMosaicHeight() elements
+     * @return false if no snapshot has been placed yet
+     */
+    public synchronized boolean getMosaic(int[] out) {
+        if (mCanvas == null || mCount == 0)
+            return false;
+        int mosaicStride = mCanvasWidth / MOSAIC_SCALE;
+        int w = getMosaicWidth();
+        int h = getMosaicHeight();
+        int left = mLeft / MOSAIC_SCALE;
+        int top = mTop / MOSAIC_SCALE;
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(mMosaic, (top + row) * mosaicStride + left, out, row * w, w);
+        }
+        return true;
+    }
+
+    public synchronized int getWidth() {
+        return mRight - mLeft;
+    }
+
+    public synchronized int getHeight() {
+        return mBottom - mTop;
+    }
+
+    /**
+     * Returns the stitched panorama as a new NV12 buffer of
+     * {@link #getWidth()} x {@link #getHeight()} pixels, or null if no
+     * snapshot has been received. The canvas is already composed, this
+     * only crops it.
+     */
+    public synchronized ByteBuffer finish() {
+        if (mCanvas == null && mPending != null) {
+            allocateCanvas(DIRECTION_RIGHT);
+            place(mPending.snapshot, mX, mY, false);
+            mPending = null;
+        }
+        if (mCanvas == null || mCount == 0)
+            return null;
+
+        int w = getWidth();
+        int h = getHeight();
+        ByteBuffer out = ByteBuffer.allocateDirect(w * h * 3 / 2);
+        ByteBuffer src = mCanvas.duplicate();
+        for (int row = 0; row < h; row++) {
+            int start = (mTop + row) * mCanvasWidth + mLeft;
+            src.limit(start + w).position(start);
+            out.put(src);
+        }
+        int uvBase = mCanvasWidth * mCanvasHeight;
+        for (int row = 0; row < h / 2; row++) {
+            int start = uvBase + (mTop / 2 + row) * mCanvasWidth + mLeft;
+            src.limit(start + w).position(start);
+            out.put(src);
+        }
+        out.flip();
+        return out;
+    }
+
+    private void allocateCanvas(int direction) {
+        mDirection = direction != 0 ? direction : DIRECTION_RIGHT;
+        boolean horizontal = mDirection == DIRECTION_RIGHT || mDirection == DIRECTION_LEFT;
+        // full length along the stitching direction, half a tile of drift across it
+        if (horizontal) {
+            mCanvasWidth = mTileWidth * mMaxSnapshots;
+            mCanvasHeight = mTileHeight * 3 / 2;
+        } else {
+            mCanvasWidth = mTileWidth * 3 / 2;
+            mCanvasHeight = mTileHeight * mMaxSnapshots;
+        }
+        mCanvasWidth = roundUp(mCanvasWidth, MOSAIC_SCALE);
+        mCanvasHeight = roundUp(mCanvasHeight, MOSAIC_SCALE);
+        mCanvas = ByteBuffer.allocateDirect(mCanvasWidth * mCanvasHeight * 3 / 2);
+        mMosaic = new int[(mCanvasWidth / MOSAIC_SCALE) * (mCanvasHeight / MOSAIC_SCALE)];
+
+        mX = mDirection == DIRECTION_LEFT ? mCanvasWidth - mTileWidth : (horizontal ? 0 : (mCanvasWidth - mTileWidth) / 2);
+        mY = mDirection == DIRECTION_UP ? mCanvasHeight - mTileHeight : (horizontal ? (mCanvasHeight - mTileHeight) / 2 : 0);
+        mX &= ~1;
+        mY &= ~1;
+    }
+
+    // Copies the tile to (x, y), feathering the overlap with the previous tile
+    private void place(byte[] tile, int x, int y, boolean blend) {
+        int px = mX;
+        int py = mY;
+        int w = mTileWidth;
+        int h = mTileHeight;
+
+        // overlap with the previous tile
+        int ox0 = Math.max(x, px);
+        int oy0 = Math.max(y, py);
+        int ox1 = Math.min(x + w, px + w);
+        int oy1 = Math.min(y + h, py + h);
+        boolean overlap = blend && ox0 < ox1 && oy0 < oy1;
+
+        // luma
+        for (int row = 0; row < h; row++) {
+            int cy = y + row;
+            int dst = cy * mCanvasWidth + x;
+            int src = row * w;
+            for (int col = 0; col < w; col++) {
+                int value = tile[src + col] & 0xff;
+                int cx = x + col;
+                if (overlap && cx >= ox0 && cx < ox1 && cy >= oy0 && cy < oy1) {
+                    int a = weight(cx, cy, ox0, oy0, ox1, oy1);
+                    int old = mCanvas.get(dst + col) & 0xff;
+                    value = old + (((value - old) * a) >> 8);
+                }
+                mCanvas.put(dst + col, (byte) value);
+            }
+        }
+
+        // interleaved chroma, one UV pair per 2x2 pixels
+        int uvBase = mCanvasWidth * mCanvasHeight;
+        int tileUvBase = w * h;
+        for (int row = 0; row < h / 2; row++) {
+            int cy = y + row * 2;
+            int dst = uvBase + (y / 2 + row) * mCanvasWidth + x;
+            int src = tileUvBase + row * w;
+            for (int col = 0; col < w; col++) {
+                int value = tile[src + col] & 0xff;
+                int cx = x + (col & ~1);
+                if (overlap && cx >= ox0 && cx < ox1 && cy >= oy0 && cy < oy1) {
+                    int a = weight(cx, cy, ox0, oy0, ox1, oy1);
+                    int old = mCanvas.get(dst + col) & 0xff;
+                    value = old + (((value - old) * a) >> 8);
+                }
+                mCanvas.put(dst + col, (byte) value);
+            }
+        }
+
+        mX = x;
+        mY = y;
+        if (mCount == 0) {
+            mLeft = x;
+            mTop = y;
+            mRight = x + w;
+            mBottom = y + h;
+        } else {
+            mLeft = Math.min(mLeft, x);
+            mTop = Math.min(mTop, y);
+            mRight = Math.max(mRight, x + w);
+            mBottom = Math.max(mBottom, y + h);
+        }
+        // keep the crop aligned to the mosaic grid
+        mLeft -= mLeft % MOSAIC_SCALE;
+        mTop -= mTop % MOSAIC_SCALE;
+        mRight = Math.min(mCanvasWidth, roundUp(mRight, MOSAIC_SCALE));
+        mBottom = Math.min(mCanvasHeight, roundUp(mBottom, MOSAIC_SCALE));
+        mCount++;
+
+        updateMosaic(x, y, w, h);
+    }
+
+    // Weight (0..256) of the new tile, ramping up away from the old content
+    private int weight(int cx, int cy, int ox0, int oy0, int ox1, int oy1) {
+        switch (mDirection) {
+        case DIRECTION_LEFT:
+            return ((ox1 - cx) << 8) / (ox1 - ox0 + 1);
+        case DIRECTION_DOWN:
+            return ((cy - oy0 + 1) << 8) / (oy1 - oy0 + 1);
+        case DIRECTION_UP:
+            return ((oy1 - cy) << 8) / (oy1 - oy0 + 1);
+        default:
+            return ((cx - ox0 + 1) << 8) / (ox1 - ox0 + 1);
+        }
+    }
+
+    // Refreshes the mosaic pixels covered by the canvas rectangle
+    private void updateMosaic(int x, int y, int w, int h) {
+        int mosaicStride = mCanvasWidth / MOSAIC_SCALE;
+        int uvBase = mCanvasWidth * mCanvasHeight;
+        for (int my = y / MOSAIC_SCALE; my < (y + h + MOSAIC_SCALE - 1) / MOSAIC_SCALE; my++) {
+            int cy = my * MOSAIC_SCALE;
+            int yRow = cy * mCanvasWidth;
+            int uvRow = uvBase + (cy / 2) * mCanvasWidth;
+            for (int mx = x / MOSAIC_SCALE; mx < (x + w + MOSAIC_SCALE - 1) / MOSAIC_SCALE; mx++) {
+                int cx = mx * MOSAIC_SCALE;
+                int uv = uvRow + (cx & ~1);
+                mMosaic[my * mosaicStride + mx] = Nv12Converter.yuvToArgb(mCanvas.get(yRow + cx) & 0xff,
+                        mCanvas.get(uv) & 0xff, mCanvas.get(uv + 1) & 0xff);
+            }
+        }
+    }
+
+    // Converts a displacement in preview pixels to tile pixels, rounding to nearest
+    private static int scale(int displacement, int tileSize, int previewSize) {
+        long scaled = (long) displacement * tileSize;
+        long half = previewSize / 2;
+        return (int) (scaled >= 0 ? (scaled + half) / previewSize : -((-scaled + half) / previewSize));
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value)) & ~1;
+    }
+
+    private static int roundUp(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
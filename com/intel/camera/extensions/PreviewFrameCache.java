@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The PreviewFrameCache class keeps the most recent windowless preview
+ * frames keyed by frame id, so that the preview frame of a capture is at
+ * hand as soon as {@link IntelCamera.CaptureFrameIdCallback#onCaptureFrameIdAvailable(int)}
+ * reports its id.
+ * <p>
+ * Attach the cache with {@link #attach(IntelCamera)}. It becomes the frame
+ * id listener and the accelerator preview listener of the camera, since the
+ * accelerator preview frames are the ones delivered with the HAL frame
+ * counter; the standard preview callback carries no id, and a Java side
+ * counter drifts from the HAL as soon as a frame is dropped. Each frame is
+ * copied into the buffer of the oldest unpinned slot and handed back to the
+ * HAL right away, so the cache never holds HAL preview buffers. Slot
+ * buffers are reused, no allocation is made once they have grown to the
+ * frame size.
+ * <p>
+ * A matched frame is pinned and is not evicted until it is released, so
+ * the application can build a review thumbnail from it without a copy.
+ * @see IntelCamera#setWindowlessPreviewFrameCaptureId(int)
+ * @hide
+ */
+public class PreviewFrameCache implements IntelCamera.CaptureFrameIdCallback,
+        IntelCamera.AccPreviewListener
+{
+    /**
+     * The Listener interface is used for receiving the preview frames of
+     * captures.
+     */
+    public interface Listener
+    {
+        /**
+         * Called with the cached preview frame of a capture. The frame stays
+         * pinned until {@link CachedFrame#release()}.
+         */
+        void onCaptureFrameMatched(CachedFrame frame);
+
+        /**
+         * Called when the frame of a capture is no longer, or not yet, cached.
+         */
+        void onCaptureFrameMissed(int frameId);
+    }
+
+    /**
+     * A cached preview frame.
+     */
+    public static class CachedFrame
+    {
+        /** HAL frame counter, see {@link IntelCamera.AccPreviewFrame#frameCounter}. */
+        public int frameId;
+        /** Time the frame was added, {@link System#nanoTime()}. */
+        public long timestampNs;
+        public int width;
+        public int height;
+        public int format;
+        public int stride;
+        /** Preview data, valid until released or evicted. */
+        public byte[] data;
+        public int size;
+
+        // data holds a frame, the buffer is kept for reuse otherwise
+        private boolean mValid = false;
+
+        private final PreviewFrameCache mCache;
+        private boolean mPinned = false;
+
+        CachedFrame(PreviewFrameCache cache) {
+            mCache = cache;
+        }
+
+        /**
+         * Unpins the frame. It may be evicted from then on.
+         */
+        public void release() {
+            synchronized (mCache) {
+                mPinned = false;
+            }
+        }
+    }
+
+    private final CachedFrame[] mSlots;
+    private final Listener mListener;
+    private final IntelCamera.CaptureFrameIdCallback mForward;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mDropped = 0;
+
+    /**
+     * @param slots number of frames kept
+     * @param listener receives the frames of captures
+     * @param forward listener to forward the frame ids to, may be null
+     */
+    public PreviewFrameCache(int slots, Listener listener, IntelCamera.CaptureFrameIdCallback forward) {
+        mSlots = new CachedFrame[Math.max(1, slots)];
+        for (int i = 0; i < mSlots.length; i++)
+            mSlots[i] = new CachedFrame(this);
+        mListener = listener;
+        mForward = forward;
+    }
+
+    /**
+     * Sets the cache as frame id listener and accelerator preview listener
+     * of the camera, replacing the ones set before.
+     */
+    public void attach(IntelCamera camera) {
+        camera.setFrameIdListener(this);
+        camera.setAccPreviewListener(this);
+    }
+
+    /**
+     * Stops feeding the cache. The cached frames stay available.
+     */
+    public void detach(IntelCamera camera) {
+        camera.setAccPreviewListener(null);
+        camera.setFrameIdListener(mForward);
+    }
+
+    /**
+     * Drops the cached frames that are not pinned, for example when preview
+     * is restarted and the frame counter starts over. Their buffers are kept
+     * for reuse.
+     */
+    public synchronized void reset() {
+        for (CachedFrame slot : mSlots) {
+            if (!slot.mPinned)
+                slot.mValid = false;
+        }
+    }
+
+    /**
+     * Tags the preview frame with the given id for capture.
+     * @see IntelCamera#setWindowlessPreviewFrameCaptureId(int)
+     */
+    public void requestCapture(IntelCamera camera, int frameId) {
+        camera.setWindowlessPreviewFrameCaptureId(frameId);
+    }
+
+    @Override
+    public void onAccPreviewFrame(IntelCamera.AccPreviewFrame frame) {
+        try {
+            synchronized (this) {
+                store(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void onCaptureFrameIdAvailable(int frameId) {
+        CachedFrame match = null;
+        synchronized (this) {
+            for (CachedFrame slot : mSlots) {
+                if (slot.mValid && slot.frameId == frameId) {
+                    slot.mPinned = true;
+                    match = slot;
+                    break;
+                }
+            }
+            if (match != null)
+                mHits++;
+            else
+                mMisses++;
+        }
+        if (mListener != null) {
+            if (match != null)
+                mListener.onCaptureFrameMatched(match);
+            else
+                mListener.onCaptureFrameMissed(frameId);
+        }
+        if (mForward != null)
+            mForward.onCaptureFrameIdAvailable(frameId);
+    }
+
+    /**
+     * Returns the cached frame with the given id without pinning it, or null.
+     */
+    public synchronized CachedFrame peek(int frameId) {
+        for (CachedFrame slot : mSlots) {
+            if (slot.mValid && slot.frameId == frameId)
+                return slot;
+        }
+        return null;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /** Number of frames not cached because every slot was pinned. */
+    public synchronized int getDroppedCount() {
+        return mDropped;
+    }
+
+    // Copies the frame into the oldest unpinned slot
+    private void store(IntelCamera.AccPreviewFrame frame) {
+        CachedFrame victim = null;
+        for (CachedFrame slot : mSlots) {
+            if (slot.mPinned)
+                continue;
+            if (!slot.mValid) {
+                victim = slot;
+                break;
+            }
+            if (victim == null || slot.timestampNs < victim.timestampNs)
+                victim = slot;
+        }
+        if (victim == null) {
+            mDropped++;
+            return;
+        }
+
+        // the view is shared by the frames of one heap, leave its position alone
+        ByteBuffer src = frame.getData().duplicate();
+        int size = Math.min(frame.size, src.remaining());
+        if (victim.data == null || victim.data.length < size)
+            victim.data = new byte[size];
+        src.get(victim.data, 0, size);
+        victim.frameId = frame.frameCounter;
+        victim.timestampNs = System.nanoTime();
+        victim.width = frame.width;
+        victim.height = frame.height;
+        victim.format = frame.format;
+        victim.stride = frame.stride;
+        victim.size = size;
+        victim.mValid = true;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.SystemClock;
+
+import java.util.List;
+
+/**
+ * The PreviewKeepAlive class takes pictures with the preview pipeline kept
+ * warm between shots, and measures the shot-to-shot latency.
+ * <p>
+ * {@link #configure(boolean, String)} sets preview keep alive and the
+ * preview update mode with one setParameters call. Pictures are then taken
+ * with {@link #takePicture(Camera.ShutterCallback, Camera.PictureCallback, Camera.PictureCallback)}.
+ * When the last JPEG of the shot arrives (all of them for a burst), preview
+ * is restarted if the update mode stopped it, and the camera is ready for
+ * the next shot. The time from takePicture to that point is recorded
+ * separately for shots with and without keep alive, so both can be
+ * compared on the same device.
+ * <p>
+ * All methods must be called on the thread delivering the camera callbacks.
+ * @hide
+ */
+public class PreviewKeepAlive
+{
+    /**
+     * Shot-to-shot latency statistics, in milliseconds.
+     */
+    public static class Stats
+    {
+        public int shots;
+        public long averageMs;
+        public long minMs;
+        public long maxMs;
+        /** Time spent restarting preview, summed over the shots. */
+        public long restartMs;
+
+        private long mTotalMs;
+
+        void add(long latencyMs, long restartMs) {
+            if (shots == 0 || latencyMs < minMs)
+                minMs = latencyMs;
+            maxMs = Math.max(maxMs, latencyMs);
+            shots++;
+            mTotalMs += latencyMs;
+            averageMs = mTotalMs / shots;
+            this.restartMs += restartMs;
+        }
+
+        @Override
+        public String toString() {
+            return shots + " shots avg " + averageMs + "ms min " + minMs + "ms max " + maxMs
+                    + "ms restart " + restartMs + "ms";
+        }
+    }
+
+    private final IntelCamera mCamera;
+    private boolean mKeepAlive = false;
+    private String mUpdateMode = IntelCamera.PREVIEW_UPDATE_MODE_STANDARD;
+    private int mBurstLength = 1;
+
+    private long mShotStartMs = 0;
+    private int mJpegsPending = 0;
+    private final Stats mWithKeepAlive = new Stats();
+    private final Stats mWithoutKeepAlive = new Stats();
+
+    public PreviewKeepAlive(IntelCamera camera) {
+        mCamera = camera;
+    }
+
+    /**
+     * Returns whether the camera supports preview keep alive.
+     */
+    public boolean isSupported(Parameters params) {
+        List<String> values = mCamera.getSupportedPreviewKeepAlive(params);
+        return values != null && values.contains("true");
+    }
+
+    /**
+     * Sets preview keep alive and the preview update mode.
+     * @param updateMode one of the PREVIEW_UPDATE_MODE_ values, null to keep
+     *        the current mode
+     */
+    public void configure(boolean keepAlive, String updateMode) {
+        Camera device = mCamera.getCameraDevice();
+        Parameters params = device.getParameters();
+        if (keepAlive && !isSupported(params))
+            throw new IllegalStateException("Preview keep alive is not supported");
+        mCamera.setPreviewKeepAlive(keepAlive, params);
+        if (updateMode != null)
+            mCamera.setPreviewUpdateMode(updateMode, params);
+        device.setParameters(params);
+
+        mKeepAlive = keepAlive;
+        String mode = mCamera.getPreviewUpdateMode(params);
+        mUpdateMode = mode != null ? mode : IntelCamera.PREVIEW_UPDATE_MODE_STANDARD;
+        mBurstLength = Math.max(1, mCamera.getBurstLength(params));
+    }
+
+    /**
+     * Takes a picture and tracks it until the camera is ready for the next
+     * one. Preview must be running.
+     */
+    public void takePicture(Camera.ShutterCallback shutter, Camera.PictureCallback raw,
+            final Camera.PictureCallback jpeg) {
+        if (mJpegsPending > 0)
+            throw new IllegalStateException("Previous shot still in progress");
+        mJpegsPending = mBurstLength;
+        mShotStartMs = SystemClock.elapsedRealtime();
+        mCamera.getCameraDevice().takePicture(shutter, raw, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                if (jpeg != null)
+                    jpeg.onPictureTaken(data, camera);
+                if (mJpegsPending > 0 && --mJpegsPending == 0)
+                    onShotComplete(camera);
+            }
+        });
+    }
+
+    /**
+     * Returns whether a shot is in progress.
+     */
+    public boolean isBusy() {
+        return mJpegsPending > 0;
+    }
+
+    public Stats getStats(boolean keepAlive) {
+        return keepAlive ? mWithKeepAlive : mWithoutKeepAlive;
+    }
+
+    private void onShotComplete(Camera camera) {
+        long restartMs = 0;
+        // in standard mode takePicture stops preview
+        if (IntelCamera.PREVIEW_UPDATE_MODE_STANDARD.equals(mUpdateMode)) {
+            long start = SystemClock.elapsedRealtime();
+            camera.startPreview();
+            restartMs = SystemClock.elapsedRealtime() - start;
+        }
+        long latency = SystemClock.elapsedRealtime() - mShotStartMs;
+        (mKeepAlive ? mWithKeepAlive : mWithoutKeepAlive).add(latency, restartMs);
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The RawCaptureWriter class streams RAW captures to storage as TIFF files,
+ * DNG-style when the CFA layout is known.
+ * <p>
+ * Pass it as the raw callback of {@link Camera#takePicture} once a format
+ * has been chosen with {@link IntelCamera#setRAWDataFormat(String, Parameters)},
+ * and call {@link #configure(Parameters)} with the parameters the capture
+ * uses. Each frame is written to {@code raw_<n>.dng}, or {@code raw_<n>.tif}
+ * without a CFA layout, in the given directory
+ * behind a little-endian TIFF header carrying the picture size, the raw
+ * format and the active AE mode, white balance, ISO and shutter. The pixel
+ * data is copied in fixed-size chunks through a reusable direct buffer and
+ * written with a {@link FileChannel}, so no second full-size copy is made.
+ * <p>
+ * Bayer frames are tagged as CFA images, with the CFA repeat pattern and
+ * the pattern set with {@link #setCfaPattern(String)}. Without a pattern
+ * the sensor layout is unknown, so the file is labeled a plain grayscale
+ * TIFF instead.
+ * <p>
+ * Frames are written by a background thread. The writer holds at most
+ * maxFramesInMemory frames, counting the one being written. The callback
+ * thread is normally the main looper, which must not block on the disk,
+ * so a frame arriving when the writer is full is dropped. The drop is
+ * reported to {@link Listener#onRawFailed(int, IOException)} on the
+ * callback thread and counted in {@link #getDroppedCount()}.
+ * @hide
+ */
+public class RawCaptureWriter implements Camera.PictureCallback
+{
+    private static final String TAG = "RawCaptureWriter";
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    // TIFF tags
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_PHOTOMETRIC = 262;
+    private static final int TAG_IMAGE_DESCRIPTION = 270;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_CFA_REPEAT_PATTERN_DIM = 33421;
+    private static final int TAG_CFA_PATTERN = 33422;
+    private static final int TAG_ISO_SPEED = 34855;
+    private static final int TAG_DNG_VERSION = 50706;
+
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final int PHOTOMETRIC_BLACK_IS_ZERO = 1;
+    private static final int PHOTOMETRIC_CFA = 32803;
+
+    /**
+     * Interface for the outcome of each written frame.
+     */
+    public interface Listener
+    {
+        void onRawWritten(Result result);
+
+        void onRawFailed(int index, IOException error);
+    }
+
+    /**
+     * Outcome of one written frame. Times are in milliseconds of
+     * {@link SystemClock#elapsedRealtime()}.
+     */
+    public static class Result
+    {
+        public int index;
+        public File file;
+        public long size;
+        public long receivedMs;
+        public long writtenMs;
+    }
+
+    /**
+     * The capture settings written into each header.
+     */
+    private static class Metadata
+    {
+        int width;
+        int height;
+        String format;
+        String aeMode;
+        String whiteBalance;
+        String awbMapping;
+        String iso;
+        String shutter;
+        // CFA colors of the 2x2 repeat pattern, 0 red, 1 green, 2 blue; null if unknown
+        byte[] cfaPattern;
+    }
+
+    private final IntelCamera mCamera;
+    private final File mDirectory;
+    private final int mMaxFramesInMemory;
+    private final Listener mListener;
+    private final ThreadPoolExecutor mWriter;
+    private final AtomicInteger mQueuedFrames = new AtomicInteger();
+    private final AtomicInteger mNextIndex = new AtomicInteger();
+
+    // chunk buffer of the writer thread
+    private final ByteBuffer mWriterChunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+    private volatile Metadata mMetadata;
+    private volatile byte[] mCfaPattern;
+
+    // guarded by this
+    private int mWrittenCount = 0;
+    private int mDroppedCount = 0;
+    private int mFailedCount = 0;
+    private long mWrittenBytes = 0;
+    private long mWriteTimeMs = 0;
+
+    /**
+     * @param camera the camera whose parameters describe the captures
+     * @param directory where the frames are written
+     * @param maxFramesInMemory bound on the frames held by the writer,
+     *        including the one being written
+     * @param listener receives the outcome of each frame, may be null
+     */
+    public RawCaptureWriter(IntelCamera camera, File directory, int maxFramesInMemory,
+            Listener listener) {
+        if (maxFramesInMemory < 1)
+            throw new IllegalArgumentException("maxFramesInMemory must be positive");
+        mCamera = camera;
+        mDirectory = directory;
+        mMaxFramesInMemory = maxFramesInMemory;
+        mListener = listener;
+        mWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Sets the Bayer order of the sensor, one of "RGGB", "GRBG", "GBRG" and
+     * "BGGR", or null if unknown. Call it before {@link #configure(Parameters)}.
+     */
+    public void setCfaPattern(String pattern) {
+        if (pattern == null) {
+            mCfaPattern = null;
+            return;
+        }
+        if (pattern.length() != 4)
+            throw new IllegalArgumentException("Invalid CFA pattern " + pattern);
+        byte[] colors = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int color = "RGB".indexOf(Character.toUpperCase(pattern.charAt(i)));
+            if (color < 0)
+                throw new IllegalArgumentException("Invalid CFA pattern " + pattern);
+            colors[i] = (byte) color;
+        }
+        mCfaPattern = colors;
+    }
+
+    /**
+     * Records the settings written into the headers of the following frames.
+     * Call it after the capture parameters are set.
+     */
+    public void configure(Parameters params) {
+        Metadata metadata = new Metadata();
+        Camera.Size size = params.getPictureSize();
+        if (size != null) {
+            metadata.width = size.width;
+            metadata.height = size.height;
+        }
+        metadata.format = mCamera.getRAWDataFormat(params);
+        metadata.aeMode = mCamera.getAEMode(params);
+        metadata.whiteBalance = params.get("whitebalance");
+        metadata.awbMapping = mCamera.getAWBMappingMode(params);
+        metadata.iso = mCamera.getISO(params);
+        metadata.shutter = mCamera.getShutter(params);
+        metadata.cfaPattern = mCfaPattern;
+        mMetadata = metadata;
+    }
+
+    @Override
+    public void onPictureTaken(byte[] data, Camera camera) {
+        if (data != null)
+            write(data);
+    }
+
+    /**
+     * Queues one RAW frame for writing, or drops it if the writer is full.
+     * The array must not be modified until the frame is reported to the
+     * listener.
+     * @return the index of the frame in the file names
+     */
+    public int write(final byte[] data) {
+        final Metadata metadata = mMetadata;
+        if (metadata == null)
+            throw new IllegalStateException("configure() has not been called");
+
+        final int index = mNextIndex.getAndIncrement();
+        final long receivedMs = SystemClock.elapsedRealtime();
+
+        if (mQueuedFrames.incrementAndGet() <= mMaxFramesInMemory) {
+            try {
+                mWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writeFrame(index, data, metadata, receivedMs, mWriterChunk);
+                        } finally {
+                            mQueuedFrames.decrementAndGet();
+                        }
+                    }
+                });
+                return index;
+            } catch (RejectedExecutionException e) {
+                mQueuedFrames.decrementAndGet();
+                throw new IllegalStateException("RAW capture writer released");
+            }
+        }
+
+        mQueuedFrames.decrementAndGet();
+        Log.w(TAG, "RAW frame " + index + " dropped, " + mMaxFramesInMemory
+                + " frames already held");
+        synchronized (this) {
+            mDroppedCount++;
+        }
+        if (mListener != null) {
+            mListener.onRawFailed(index, new IOException("RAW frame dropped, "
+                    + mMaxFramesInMemory + " frames already held"));
+        }
+        return index;
+    }
+
+    private void writeFrame(int index, byte[] data, Metadata metadata, long receivedMs,
+            ByteBuffer chunk) {
+        File file = new File(mDirectory, "raw_" + index + (isCfa(metadata) ? ".dng" : ".tif"));
+        ByteBuffer header = buildHeader(metadata, data.length);
+        long size = header.remaining() + data.length;
+        IOException error = null;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining())
+                channel.write(header);
+            for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+                chunk.clear();
+                chunk.put(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+                chunk.flip();
+                while (chunk.hasRemaining())
+                    channel.write(chunk);
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+        }
+
+        if (error != null) {
+            Log.e(TAG, "Failed to write RAW frame " + index, error);
+            synchronized (this) {
+                mFailedCount++;
+            }
+            if (mListener != null)
+                mListener.onRawFailed(index, error);
+            return;
+        }
+
+        Result result = new Result();
+        result.index = index;
+        result.file = file;
+        result.size = size;
+        result.receivedMs = receivedMs;
+        result.writtenMs = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mWrittenCount++;
+            mWrittenBytes += size;
+            mWriteTimeMs += result.writtenMs - receivedMs;
+        }
+        if (mListener != null)
+            mListener.onRawWritten(result);
+    }
+
+    /**
+     * Builds a single-strip TIFF header for a frame of the given length. CFA
+     * frames get the CFA pattern tags and the DNG version tag. The pixel
+     * data follows the header directly.
+     */
+    private static ByteBuffer buildHeader(Metadata metadata, int dataLength) {
+        int width = metadata.width;
+        int height = metadata.height;
+        int pixels = width * height;
+        int bits = (pixels > 0 && dataLength >= 2 * pixels) ? 16 : 8;
+        boolean cfa = isCfa(metadata);
+        int photometric = cfa ? PHOTOMETRIC_CFA : PHOTOMETRIC_BLACK_IS_ZERO;
+        int iso = parseIso(metadata.iso);
+
+        byte[] description = describe(metadata).getBytes();
+        int entries = 10 + (cfa ? 3 : 0) + (iso > 0 ? 1 : 0);
+        int ifdSize = 2 + entries * 12 + 4;
+        int descriptionOffset = 8 + ifdSize;
+        int dataOffset = descriptionOffset + description.length + 1;
+        // keep the pixel data word aligned
+        dataOffset = (dataOffset + 3) & ~3;
+
+        ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        header.putShort((short) entries);
+        putEntry(header, TAG_IMAGE_WIDTH, TYPE_LONG, 1, width);
+        putEntry(header, TAG_IMAGE_LENGTH, TYPE_LONG, 1, height);
+        putEntry(header, TAG_BITS_PER_SAMPLE, TYPE_SHORT, 1, bits);
+        putEntry(header, TAG_COMPRESSION, TYPE_SHORT, 1, 1);
+        putEntry(header, TAG_PHOTOMETRIC, TYPE_SHORT, 1, photometric);
+        putEntry(header, TAG_IMAGE_DESCRIPTION, TYPE_ASCII, description.length + 1,
+                descriptionOffset);
+        putEntry(header, TAG_STRIP_OFFSETS, TYPE_LONG, 1, dataOffset);
+        putEntry(header, TAG_SAMPLES_PER_PIXEL, TYPE_SHORT, 1, 1);
+        putEntry(header, TAG_ROWS_PER_STRIP, TYPE_LONG, 1, height);
+        putEntry(header, TAG_STRIP_BYTE_COUNTS, TYPE_LONG, 1, dataLength);
+        if (cfa) {
+            // 2x2 repeat pattern, both shorts packed into the value field
+            header.putShort((short) TAG_CFA_REPEAT_PATTERN_DIM).putShort((short) TYPE_SHORT).putInt(2);
+            header.putShort((short) 2).putShort((short) 2);
+            header.putShort((short) TAG_CFA_PATTERN).putShort((short) TYPE_BYTE).putInt(4);
+            header.put(metadata.cfaPattern);
+        }
+        if (iso > 0)
+            putEntry(header, TAG_ISO_SPEED, TYPE_SHORT, 1, Math.min(iso, 0xffff));
+        if (cfa) {
+            // DNG version 1.4.0.0, four bytes packed into the value field
+            header.putShort((short) TAG_DNG_VERSION).putShort((short) TYPE_BYTE).putInt(4);
+            header.put((byte) 1).put((byte) 4).put((byte) 0).put((byte) 0);
+        }
+        header.putInt(0);
+
+        header.put(description).put((byte) 0);
+        header.position(0);
+        return header;
+    }
+
+    private static boolean isCfa(Metadata metadata) {
+        return "bayer".equals(metadata.format) && metadata.cfaPattern != null;
+    }
+
+    private static void putEntry(ByteBuffer header, int tag, int type, int count, int value) {
+        header.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == TYPE_SHORT && count == 1)
+            header.putShort((short) value).putShort((short) 0);
+        else
+            header.putInt(value);
+    }
+
+    private static String describe(Metadata metadata) {
+        return "raw-data-format=" + metadata.format
+                + ";ae-mode=" + metadata.aeMode
+                + ";whitebalance=" + metadata.whiteBalance
+                + ";awb-mapping-mode=" + metadata.awbMapping
+                + ";iso=" + metadata.iso
+                + ";shutter=" + metadata.shutter;
+    }
+
+    /**
+     * Parses the numeric part of an ISO setting such as "iso-400" or "400".
+     * @return the ISO speed, or 0 for "auto" and unparsable values
+     */
+    static int parseIso(String iso) {
+        if (iso == null)
+            return 0;
+        int value = 0;
+        boolean found = false;
+        for (int i = 0; i < iso.length(); i++) {
+            char c = iso.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                found = true;
+                if (value > 0xffff)
+                    return 0xffff;
+            } else if (found) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    public int getQueuedFrames() {
+        return mQueuedFrames.get();
+    }
+
+    public synchronized int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /** Number of frames dropped because the writer was full. */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /** Average time from a frame arriving to its file being closed. */
+    public synchronized long getAverageWriteMs() {
+        return mWrittenCount > 0 ? mWriteTimeMs / mWrittenCount : 0;
+    }
+
+    /**
+     * Stops accepting frames. Queued frames are still written.
+     */
+    public void release() {
+        mWriter.shutdown();
+    }
+}
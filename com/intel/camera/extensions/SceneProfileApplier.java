@@ -0,0 +1,337 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The SceneProfileApplier class applies a parameter profile for the scene
+ * reported by scene detection.
+ * <p>
+ * Set it with {@link IntelCamera#setSceneDetectionListener(IntelCamera.SceneDetectionListener)}.
+ * Each detected scene, with or without the HDR hint, maps to a
+ * {@link Profile}. A different profile only becomes active after it has
+ * stayed detected for a confirmation time and the current profile has been
+ * active for a minimum dwell time, so a scene oscillating at a boundary does
+ * not keep reconfiguring the camera. The detector only reports flips, so
+ * both windows are timed on a Handler rather than counted in callbacks; a
+ * flip back before they run out cancels the transition. On a transition
+ * only the parameters whose values differ are changed, and setParameters is
+ * skipped when none differ. A failed setParameters is retried after a delay.
+ * <p>
+ * All methods are meant to be called on the thread delivering the camera
+ * events, which must be the thread creating the applier or, without a
+ * looper there, the main thread. Call {@link #release()} before the camera
+ * is released.
+ * @hide
+ */
+public class SceneProfileApplier implements IntelCamera.SceneDetectionListener
+{
+    private static final String TAG = "SceneProfileApplier";
+
+    public static final long DEFAULT_CONFIRM_MS = 500;
+    public static final long DEFAULT_MIN_DWELL_MS = 2000;
+    public static final long DEFAULT_RETRY_MS = 1000;
+
+    /**
+     * A set of parameter values applied together. Profiles are compared by
+     * identity, so scenes sharing a profile object do not cause transitions
+     * between each other.
+     */
+    public static class Profile
+    {
+        private final String mName;
+        private final ArrayList<String> mKeys = new ArrayList<String>();
+        private final ArrayList<String> mValues = new ArrayList<String>();
+
+        public Profile(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Sets a raw parameter value.
+         */
+        public Profile set(String key, String value) {
+            int index = mKeys.indexOf(key);
+            if (index >= 0) {
+                mValues.set(index, value);
+            } else {
+                mKeys.add(key);
+                mValues.add(value);
+            }
+            return this;
+        }
+
+        /** @see IntelCamera#setHDRImaging(String, Parameters) */
+        public Profile setHDRImaging(String value) {
+            return set(IntelCamera.KEY_HDR_IMAGING, value);
+        }
+
+        /** @see IntelCamera#setULL(String, Parameters) */
+        public Profile setULL(String value) {
+            return set(IntelCamera.KEY_ULL, value);
+        }
+
+        /** @see IntelCamera#setISO(String, Parameters) */
+        public Profile setISO(String value) {
+            return set(IntelCamera.KEY_ISO, value);
+        }
+
+        /** @see IntelCamera#setAEMode(String, Parameters) */
+        public Profile setAEMode(String value) {
+            return set(IntelCamera.KEY_AE_MODE, value);
+        }
+    }
+
+    private final Camera mDevice;
+    private final Handler mHandler;
+    private final IntelCamera.SceneDetectionListener mForward;
+    // scene + hdr suffix -> profile
+    private final HashMap<String, Profile> mProfiles = new HashMap<String, Profile>();
+    private Profile mDefaultProfile;
+
+    private long mConfirmMs = DEFAULT_CONFIRM_MS;
+    private long mMinDwellMs = DEFAULT_MIN_DWELL_MS;
+    private long mRetryMs = DEFAULT_RETRY_MS;
+
+    private Profile mActive;
+    private long mActiveSinceMs;
+    private Profile mCandidate;
+    private long mCandidateSinceMs;
+    // earliest time the candidate may be applied, after a failure
+    private long mRetryAtMs;
+
+    private int mAppliedCount = 0;
+    private int mSuppressedCount = 0;
+    private int mFailedCount = 0;
+    private int mNoChangeCount = 0;
+    private int mChangedKeyCount = 0;
+    private long mLastApplyMs = 0;
+
+    /**
+     * @param forward listener to forward the scene changes to, may be null
+     */
+    public SceneProfileApplier(IntelCamera camera, IntelCamera.SceneDetectionListener forward) {
+        mDevice = camera.getCameraDevice();
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        mForward = forward;
+    }
+
+    /**
+     * Sets the profile of a scene regardless of the HDR hint.
+     */
+    public void setProfile(String scene, Profile profile) {
+        mProfiles.put(scene, profile);
+    }
+
+    /**
+     * Sets the profile of a scene with the given HDR hint. It takes
+     * precedence over the profile set for the scene alone.
+     */
+    public void setProfile(String scene, boolean hdr, Profile profile) {
+        mProfiles.put(scene + (hdr ? "/hdr" : "/nohdr"), profile);
+    }
+
+    /**
+     * Sets the profile used for scenes without a profile of their own. If
+     * none is set such scenes keep the current profile.
+     */
+    public void setDefaultProfile(Profile profile) {
+        mDefaultProfile = profile;
+    }
+
+    /**
+     * Sets how long a new profile has to stay detected before it is applied.
+     */
+    public void setConfirmTime(long ms) {
+        mConfirmMs = Math.max(0, ms);
+    }
+
+    /**
+     * Sets how long a profile stays active at least.
+     */
+    public void setMinDwellTime(long ms) {
+        mMinDwellMs = Math.max(0, ms);
+    }
+
+    /**
+     * Sets how long to wait before retrying a transition whose
+     * setParameters failed.
+     */
+    public void setRetryTime(long ms) {
+        mRetryMs = Math.max(0, ms);
+    }
+
+    /**
+     * Cancels the pending transition. The active profile stays applied.
+     */
+    public void release() {
+        mHandler.removeCallbacks(mEvaluate);
+        mCandidate = null;
+    }
+
+    public Profile getActiveProfile() {
+        return mActive;
+    }
+
+    /** Number of profile transitions applied, including those that needed no change. */
+    public int getAppliedCount() {
+        return mAppliedCount;
+    }
+
+    /**
+     * Number of transitions that were suppressed: another profile was
+     * detected, but the detector flipped again before it was confirmed or
+     * before the dwell time of the current profile ran out.
+     */
+    public int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    /** Number of failed setParameters, each failed transition is retried after the retry time. */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /** Number of transitions that needed no parameter change. */
+    public int getNoChangeCount() {
+        return mNoChangeCount;
+    }
+
+    /** Number of parameter values changed by all transitions. */
+    public int getChangedKeyCount() {
+        return mChangedKeyCount;
+    }
+
+    /** Duration of the last setParameters of a transition. */
+    public long getLastApplyMs() {
+        return mLastApplyMs;
+    }
+
+    @Override
+    public void onSceneChange(IntelCamera.SceneDetectionMetadata metadata) {
+        if (mForward != null)
+            mForward.onSceneChange(metadata);
+
+        Profile profile = lookup(metadata);
+        if (profile == null || profile == mActive) {
+            dropCandidate();
+            return;
+        }
+
+        if (profile == mCandidate)
+            return;
+        dropCandidate();
+        mCandidate = profile;
+        mCandidateSinceMs = SystemClock.elapsedRealtime();
+        mRetryAtMs = 0;
+        evaluate();
+    }
+
+    private final Runnable mEvaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+        }
+    };
+
+    // Applies the candidate once its windows ran out, or checks again when they do
+    private void evaluate() {
+        if (mCandidate == null)
+            return;
+        long now = SystemClock.elapsedRealtime();
+        long due = Math.max(mCandidateSinceMs + mConfirmMs, mRetryAtMs);
+        if (mActive != null)
+            due = Math.max(due, mActiveSinceMs + mMinDwellMs);
+        if (now < due) {
+            mHandler.removeCallbacks(mEvaluate);
+            mHandler.postDelayed(mEvaluate, due - now);
+            return;
+        }
+
+        if (!apply(mCandidate)) {
+            mRetryAtMs = now + mRetryMs;
+            mHandler.removeCallbacks(mEvaluate);
+            mHandler.postDelayed(mEvaluate, mRetryMs);
+            return;
+        }
+        mActive = mCandidate;
+        mActiveSinceMs = now;
+        mCandidate = null;
+    }
+
+    // Forgets the pending transition, which was then suppressed
+    private void dropCandidate() {
+        mHandler.removeCallbacks(mEvaluate);
+        if (mCandidate != null)
+            mSuppressedCount++;
+        mCandidate = null;
+    }
+
+    private Profile lookup(IntelCamera.SceneDetectionMetadata metadata) {
+        if (metadata.sceneDetected == null)
+            return mDefaultProfile;
+        Profile profile = mProfiles.get(metadata.sceneDetected + (metadata.hdr ? "/hdr" : "/nohdr"));
+        if (profile == null)
+            profile = mProfiles.get(metadata.sceneDetected);
+        return profile != null ? profile : mDefaultProfile;
+    }
+
+    // Returns false if setParameters failed
+    private boolean apply(Profile profile) {
+        long start = SystemClock.elapsedRealtime();
+        Parameters params = mDevice.getParameters();
+        int changed = 0;
+        for (int i = 0; i < profile.mKeys.size(); i++) {
+            String key = profile.mKeys.get(i);
+            String value = profile.mValues.get(i);
+            if (value.equals(params.get(key)))
+                continue;
+            params.set(key, value);
+            changed++;
+        }
+        if (changed == 0) {
+            mAppliedCount++;
+            mNoChangeCount++;
+            return true;
+        }
+        try {
+            mDevice.setParameters(params);
+        } catch (RuntimeException e) {
+            mFailedCount++;
+            Log.e(TAG, "Applying profile " + profile.getName() + " failed", e);
+            return false;
+        }
+        mAppliedCount++;
+        mChangedKeyCount += changed;
+        mLastApplyMs = SystemClock.elapsedRealtime() - start;
+        return true;
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The UllSnapshotSink class writes Ultra Low Light snapshots to disk off the
+ * camera event thread.
+ * <p>
+ * Set it with {@link IntelCamera#setUllListener(IntelCamera.UllListener)}.
+ * Each snapshot is written by a background thread through a
+ * {@link FileChannel} to {@code ull_<id>.jpg} in the given directory, and
+ * {@link #getCompletion(int)} returns a future for the snapshot with that
+ * id, which completes with a {@link Result} once the file is on disk. The
+ * callbacks are forwarded to an optional application listener without
+ * waiting for the write.
+ * <p>
+ * The bytes queued for writing are bounded. A snapshot that would exceed
+ * the bound is not queued, its future fails with an IOException and it is
+ * counted in {@link #getRejectedCount()}.
+ * <p>
+ * A completion is kept until it is done and has been handed out by
+ * {@link #getCompletion(int)} or {@link #write(int, ByteBuffer)}. Of the
+ * completions nobody asked for, and of those still waiting for a snapshot
+ * that has not been queued, only the newest are kept: an older waiting one
+ * fails, and asking for an older finished one returns a failed future, so
+ * no future is left that never completes.
+ * @hide
+ */
+public class UllSnapshotSink implements IntelCamera.UllListener
+{
+    private static final String TAG = "UllSnapshotSink";
+
+    // completions kept for ids nobody asked for, or not queued yet
+    private static final int MAX_COMPLETIONS = 32;
+    // ids whose unclaimed results were dropped, remembered to fail their futures
+    private static final int MAX_EXPIRED_IDS = 256;
+
+    /**
+     * Outcome of one written snapshot. Times are in milliseconds of
+     * {@link SystemClock#elapsedRealtime()}; triggeredMs is 0 when the
+     * trigger was not seen.
+     */
+    public static class Result
+    {
+        public int id;
+        public File file;
+        public long size;
+        public long triggeredMs;
+        public long receivedMs;
+        public long writtenMs;
+
+        /** Time from the ULL trigger, or the snapshot if not seen, to the file on disk. */
+        public long getCaptureToDiskMs() {
+            return writtenMs - (triggeredMs != 0 ? triggeredMs : receivedMs);
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxInFlightBytes;
+    private final IntelCamera.UllListener mForward;
+    private final ThreadPoolExecutor mWriter;
+    private final AtomicLong mInFlightBytes = new AtomicLong();
+
+    // guarded by mCompletions, in creation order
+    private final LinkedHashMap<Integer, Completion> mCompletions =
+            new LinkedHashMap<Integer, Completion>();
+    private final LinkedHashSet<Integer> mExpiredIds = new LinkedHashSet<Integer>();
+    private int mWrittenCount = 0;
+    private int mRejectedCount = 0;
+    private int mFailedCount = 0;
+
+    /**
+     * @param directory where the snapshots are written
+     * @param maxInFlightBytes bound on the snapshot bytes waiting to be written
+     * @param forward listener to forward the ULL callbacks to, may be null
+     */
+    public UllSnapshotSink(File directory, long maxInFlightBytes, IntelCamera.UllListener forward) {
+        mDirectory = directory;
+        mMaxInFlightBytes = maxInFlightBytes;
+        mForward = forward;
+        mWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+    }
+
+    @Override
+    public void onUllTriggered(int id) {
+        getOrCreate(id).mResult.triggeredMs = SystemClock.elapsedRealtime();
+        if (mForward != null)
+            mForward.onUllTriggered(id);
+    }
+
+    @Override
+    public void onSnapshotTaken(IntelCamera.UllSnapshot snapshot) {
+        if (snapshot.snapshot != null)
+            enqueue(snapshot.id, ByteBuffer.wrap(snapshot.snapshot));
+        if (mForward != null)
+            mForward.onSnapshotTaken(snapshot);
+    }
+
+    /**
+     * Queues a snapshot for writing. A direct buffer is written without a
+     * copy, so it must not be modified until the returned future completes.
+     * @return the completion of this id
+     */
+    public Future<Result> write(int id, ByteBuffer data) {
+        Completion completion = enqueue(id, data);
+        handOut(completion);
+        return completion;
+    }
+
+    private Completion enqueue(final int id, ByteBuffer data) {
+        Completion completion = getOrCreate(id);
+        synchronized (mCompletions) {
+            completion.mQueued = true;
+        }
+        ByteBuffer buffer = data.slice();
+        int size = buffer.remaining();
+        completion.mResult.receivedMs = SystemClock.elapsedRealtime();
+
+        if (mInFlightBytes.addAndGet(size) > mMaxInFlightBytes) {
+            mInFlightBytes.addAndGet(-size);
+            synchronized (mCompletions) {
+                mRejectedCount++;
+            }
+            Log.w(TAG, "ULL snapshot " + id + " rejected, " + size + " bytes over the in-flight bound");
+            finish(completion, new IOException("In-flight bound of " + mMaxInFlightBytes + " bytes exceeded"));
+            return completion;
+        }
+
+        try {
+            mWriter.execute(newWriteTask(id, buffer, size, completion));
+        } catch (RejectedExecutionException e) {
+            mInFlightBytes.addAndGet(-size);
+            finish(completion, new IOException("ULL snapshot sink released"));
+        }
+        return completion;
+    }
+
+    private Runnable newWriteTask(final int id, final ByteBuffer buffer, final int size,
+            final Completion completion) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(mDirectory, "ull_" + id + ".jpg");
+                IOException error = null;
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    FileChannel channel = out.getChannel();
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            if (error == null)
+                                error = e;
+                        }
+                    }
+                    mInFlightBytes.addAndGet(-size);
+                }
+
+                if (error != null) {
+                    synchronized (mCompletions) {
+                        mFailedCount++;
+                    }
+                    finish(completion, error);
+                } else {
+                    synchronized (mCompletions) {
+                        mWrittenCount++;
+                    }
+                    Result result = completion.mResult;
+                    result.file = file;
+                    result.size = size;
+                    result.writtenMs = SystemClock.elapsedRealtime();
+                    finish(completion, null);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the completion of the snapshot with the given id. It may be
+     * requested before the snapshot or its trigger arrive.
+     */
+    public Future<Result> getCompletion(int id) {
+        synchronized (mCompletions) {
+            if (!mCompletions.containsKey(id) && mExpiredIds.remove(id)) {
+                Completion expired = new Completion(id);
+                expired.fail(new IOException("Result of ULL snapshot " + id + " was dropped"));
+                return expired;
+            }
+            Completion completion = getOrCreate(id);
+            handOut(completion);
+            return completion;
+        }
+    }
+
+    public long getInFlightBytes() {
+        return mInFlightBytes.get();
+    }
+
+    public int getWrittenCount() {
+        synchronized (mCompletions) {
+            return mWrittenCount;
+        }
+    }
+
+    public int getRejectedCount() {
+        synchronized (mCompletions) {
+            return mRejectedCount;
+        }
+    }
+
+    public int getFailedCount() {
+        synchronized (mCompletions) {
+            return mFailedCount;
+        }
+    }
+
+    /**
+     * Stops accepting snapshots. Queued writes still complete.
+     */
+    public void release() {
+        mWriter.shutdown();
+    }
+
+    private Completion getOrCreate(int id) {
+        synchronized (mCompletions) {
+            Completion completion = mCompletions.get(id);
+            if (completion == null) {
+                completion = new Completion(id);
+                mCompletions.put(id, completion);
+                mExpiredIds.remove(id);
+                trim();
+            }
+            return completion;
+        }
+    }
+
+    // The caller holds the future now, the map no longer needs it once done
+    private void handOut(Completion completion) {
+        synchronized (mCompletions) {
+            completion.mHandedOut = true;
+            if (completion.isDone())
+                remove(completion);
+        }
+    }
+
+    private void finish(Completion completion, IOException error) {
+        synchronized (mCompletions) {
+            completion.mQueued = false;
+            if (completion.mHandedOut)
+                remove(completion);
+        }
+        if (error != null)
+            completion.fail(error);
+        else
+            completion.complete();
+        synchronized (mCompletions) {
+            trim();
+        }
+    }
+
+    private void remove(Completion completion) {
+        if (mCompletions.get(completion.mResult.id) == completion)
+            mCompletions.remove(completion.mResult.id);
+    }
+
+    // Drops the oldest completions that are not being written, guarded by mCompletions
+    private void trim() {
+        Iterator<Completion> it = mCompletions.values().iterator();
+        while (mCompletions.size() > MAX_COMPLETIONS && it.hasNext()) {
+            Completion completion = it.next();
+            if (completion.mQueued)
+                continue;
+            it.remove();
+            if (!completion.isDone()) {
+                completion.fail(new IOException("No ULL snapshot " + completion.mResult.id
+                        + " among the last " + MAX_COMPLETIONS));
+            } else if (!completion.mHandedOut) {
+                mExpiredIds.add(completion.mResult.id);
+                if (mExpiredIds.size() > MAX_EXPIRED_IDS) {
+                    Iterator<Integer> oldest = mExpiredIds.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+        }
+    }
+
+    private static class Completion implements Future<Result>
+    {
+        final Result mResult = new Result();
+        // guarded by UllSnapshotSink.mCompletions
+        boolean mQueued = false;
+        boolean mHandedOut = false;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile IOException mError;
+
+        Completion(int id) {
+            mResult.id = id;
+        }
+
+        void complete() {
+            mDone.countDown();
+        }
+
+        void fail(IOException error) {
+            mError = error;
+            mDone.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // writes are never abandoned
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Result get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public Result get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit))
+                throw new TimeoutException();
+            return result();
+        }
+
+        private Result result() throws ExecutionException {
+            if (mError != null)
+                throw new ExecutionException(mError);
+            return mResult;
+        }
+    }
+}
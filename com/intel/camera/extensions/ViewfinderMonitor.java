@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.hardware.Camera;
+
+/**
+ * The ViewfinderMonitor class measures the viewfinder frame rate and
+ * jitter, for example during a burst capture with continuous viewfinder.
+ * <p>
+ * Register it as the preview callback in place of the application's own
+ * callback, which it forwards every frame to. Between {@link #start()} and
+ * {@link #stop()} the interval between frames is accumulated; the result
+ * reports the average frame rate, the standard deviation of the interval
+ * and the longest gap.
+ * @see IntelCamera#setContinuousViewfinder(boolean, android.hardware.Camera.Parameters)
+ * @hide
+ */
+public class ViewfinderMonitor implements Camera.PreviewCallback
+{
+    /**
+     * Viewfinder statistics of one measurement.
+     */
+    public static class Result
+    {
+        public int frames;
+        public float fps;
+        /** Standard deviation of the frame interval. */
+        public float jitterMs;
+        public float maxGapMs;
+
+        @Override
+        public String toString() {
+            return frames + " frames " + fps + "fps jitter " + jitterMs + "ms max gap " + maxGapMs + "ms";
+        }
+    }
+
+    private final Camera.PreviewCallback mForward;
+
+    private boolean mRunning = false;
+    private long mLastNs;
+    private int mFrames;
+    // interval sums, in ns and ns^2 as double to avoid overflow
+    private double mSum;
+    private double mSumSquares;
+    private long mMaxGapNs;
+
+    /**
+     * @param forward preview callback to forward the frames to, may be null
+     */
+    public ViewfinderMonitor(Camera.PreviewCallback forward) {
+        mForward = forward;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (mRunning) {
+                if (mLastNs != 0) {
+                    long interval = now - mLastNs;
+                    mSum += interval;
+                    mSumSquares += (double) interval * interval;
+                    mMaxGapNs = Math.max(mMaxGapNs, interval);
+                }
+                mLastNs = now;
+                mFrames++;
+            }
+        }
+        if (mForward != null)
+            mForward.onPreviewFrame(data, camera);
+    }
+
+    /**
+     * Starts a measurement, discarding the previous one.
+     */
+    public synchronized void start() {
+        mRunning = true;
+        mLastNs = 0;
+        mFrames = 0;
+        mSum = 0;
+        mSumSquares = 0;
+        mMaxGapNs = 0;
+    }
+
+    /**
+     * Ends the measurement and returns its result.
+     */
+    public synchronized Result stop() {
+        mRunning = false;
+        return getResult();
+    }
+
+    /**
+     * Returns the result so far.
+     */
+    public synchronized Result getResult() {
+        Result result = new Result();
+        result.frames = mFrames;
+        int intervals = mFrames - 1;
+        if (intervals > 0 && mSum > 0) {
+            double mean = mSum / intervals;
+            result.fps = (float) (1e9 / mean);
+            double variance = Math.max(0, mSumSquares / intervals - mean * mean);
+            result.jitterMs = (float) (Math.sqrt(variance) / 1e6);
+        }
+        result.maxGapMs = mMaxGapNs / 1e6f;
+        return result;
+    }
+}
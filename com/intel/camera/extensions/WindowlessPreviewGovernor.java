@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.camera.extensions;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * The WindowlessPreviewGovernor class pauses and resumes windowless preview
+ * frame updates to keep the latency of a frame consumer near a target.
+ * <p>
+ * The consumer reports each frame it queues and each frame it finishes,
+ * with the processing time. The governor estimates the latency of a new
+ * frame as the queue depth times the moving average of the processing
+ * time. Above the high watermark of the target, preview updates are paused.
+ * No frames are queued while paused, so preview is resumed once the frames
+ * already queued drain below the low watermark, or the queue is empty. The
+ * state changes at most once per minimum toggle interval; a change held back
+ * by the interval is retried when it expires. A consumer that stops
+ * reporting altogether would still leave preview paused, so a pause also
+ * ends after a maximum pause time.
+ * <p>
+ * The methods may be called from any thread.
+ * @see IntelCamera#pauseWindowlessPreviewFrameUpdate()
+ * @see IntelCamera#resumeWindowlessPreviewFrameUpdate()
+ * @hide
+ */
+public class WindowlessPreviewGovernor
+{
+    public static final float DEFAULT_HIGH_WATERMARK = 1.5f;
+    public static final float DEFAULT_LOW_WATERMARK = 0.5f;
+    public static final long DEFAULT_MIN_TOGGLE_INTERVAL_MS = 100;
+    public static final long DEFAULT_MAX_PAUSE_MS = 1000;
+
+    // weight of the newest sample in the processing time average
+    private static final float EWMA_ALPHA = 0.2f;
+
+    /**
+     * Snapshot of the governor decisions.
+     */
+    public static class Metrics
+    {
+        public boolean paused;
+        public int queueDepth;
+        public long averageProcessingUs;
+        public long estimatedLatencyUs;
+        public int pauseCount;
+        public int resumeCount;
+        /** Toggles wanted but held back by the minimum toggle interval. */
+        public int deferredCount;
+        /** Pauses ended by the maximum pause time. */
+        public int timeoutCount;
+        public long pausedMs;
+        public long processedCount;
+
+        @Override
+        public String toString() {
+            return (paused ? "paused" : "running") + " depth " + queueDepth + " avg "
+                    + averageProcessingUs + "us latency " + estimatedLatencyUs + "us, "
+                    + pauseCount + " pauses " + resumeCount + " resumes " + deferredCount
+                    + " deferred " + timeoutCount + " timed out, paused " + pausedMs + "ms";
+        }
+    }
+
+    private final IntelCamera mCamera;
+    private final Handler mHandler;
+    private final long mTargetLatencyUs;
+    private float mHighWatermark = DEFAULT_HIGH_WATERMARK;
+    private float mLowWatermark = DEFAULT_LOW_WATERMARK;
+    private long mMinToggleIntervalMs = DEFAULT_MIN_TOGGLE_INTERVAL_MS;
+    private long mMaxPauseMs = DEFAULT_MAX_PAUSE_MS;
+
+    private boolean mPaused = false;
+    private int mQueueDepth = 0;
+    private float mAverageUs = 0f;
+    private long mLastToggleMs = 0;
+    private long mPausedSinceMs = 0;
+
+    private int mPauseCount = 0;
+    private int mResumeCount = 0;
+    private int mDeferredCount = 0;
+    private int mTimeoutCount = 0;
+    private long mPausedMs = 0;
+    private long mProcessedCount = 0;
+
+    /**
+     * @param targetLatencyMs latency from frame arrival to end of processing
+     *        to hold
+     */
+    public WindowlessPreviewGovernor(IntelCamera camera, long targetLatencyMs) {
+        mCamera = camera;
+        Looper looper = Looper.myLooper();
+        mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        mTargetLatencyUs = targetLatencyMs * 1000;
+    }
+
+    /**
+     * Sets the watermarks as fractions of the target latency.
+     */
+    public synchronized void setWatermarks(float high, float low) {
+        if (low >= high)
+            throw new IllegalArgumentException("Low watermark must be below the high watermark");
+        mHighWatermark = high;
+        mLowWatermark = low;
+    }
+
+    public synchronized void setMinToggleInterval(long ms) {
+        mMinToggleIntervalMs = ms;
+    }
+
+    /**
+     * Sets how long preview stays paused at most, whatever the consumer reports.
+     */
+    public synchronized void setMaxPauseTime(long ms) {
+        mMaxPauseMs = Math.max(mMinToggleIntervalMs, ms);
+    }
+
+    /**
+     * Reports a frame queued to the consumer.
+     */
+    public synchronized void onFrameQueued() {
+        mQueueDepth++;
+        evaluate();
+    }
+
+    /**
+     * Reports a frame taken off the queue and processed.
+     * @param processingNs time spent processing the frame
+     */
+    public synchronized void onFrameProcessed(long processingNs) {
+        if (mQueueDepth > 0)
+            mQueueDepth--;
+        float us = processingNs / 1000f;
+        mAverageUs = mProcessedCount == 0 ? us : mAverageUs + EWMA_ALPHA * (us - mAverageUs);
+        mProcessedCount++;
+        evaluate();
+    }
+
+    /**
+     * Reports a frame dropped by the consumer without processing.
+     */
+    public synchronized void onFrameDropped() {
+        if (mQueueDepth > 0)
+            mQueueDepth--;
+        evaluate();
+    }
+
+    /**
+     * Resumes preview updates if paused. Call before the consumer goes away.
+     */
+    public synchronized void release() {
+        mHandler.removeCallbacks(mRetry);
+        mHandler.removeCallbacks(mPauseTimeout);
+        if (mPaused)
+            toggle(SystemClock.elapsedRealtime());
+    }
+
+    public synchronized Metrics getMetrics() {
+        Metrics m = new Metrics();
+        m.paused = mPaused;
+        m.queueDepth = mQueueDepth;
+        m.averageProcessingUs = (long) mAverageUs;
+        m.estimatedLatencyUs = estimateUs();
+        m.pauseCount = mPauseCount;
+        m.resumeCount = mResumeCount;
+        m.deferredCount = mDeferredCount;
+        m.timeoutCount = mTimeoutCount;
+        m.pausedMs = mPausedMs + (mPaused ? SystemClock.elapsedRealtime() - mPausedSinceMs : 0);
+        m.processedCount = mProcessedCount;
+        return m;
+    }
+
+    // latency of a frame queued now
+    private long estimateUs() {
+        return (long) ((mQueueDepth + 1) * mAverageUs);
+    }
+
+    private void evaluate() {
+        boolean want;
+        if (!mPaused) {
+            want = estimateUs() > mTargetLatencyUs * mHighWatermark;
+        } else {
+            // nothing new is queued while paused, wait for the queued frames to drain
+            want = mQueueDepth == 0 || mQueueDepth * mAverageUs < mTargetLatencyUs * mLowWatermark;
+        }
+        if (!want)
+            return;
+
+        long now = SystemClock.elapsedRealtime();
+        long wait = mLastToggleMs + mMinToggleIntervalMs - now;
+        if (mLastToggleMs != 0 && wait > 0) {
+            mDeferredCount++;
+            mHandler.removeCallbacks(mRetry);
+            mHandler.postDelayed(mRetry, wait);
+            return;
+        }
+        toggle(now);
+    }
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WindowlessPreviewGovernor.this) {
+                evaluate();
+            }
+        }
+    };
+
+    private final Runnable mPauseTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WindowlessPreviewGovernor.this) {
+                if (!mPaused)
+                    return;
+                mTimeoutCount++;
+                mHandler.removeCallbacks(mRetry);
+                toggle(SystemClock.elapsedRealtime());
+            }
+        }
+    };
+
+    private void toggle(long now) {
+        if (mPaused) {
+            mHandler.removeCallbacks(mPauseTimeout);
+            mCamera.resumeWindowlessPreviewFrameUpdate();
+            mPaused = false;
+            mResumeCount++;
+            mPausedMs += now - mPausedSinceMs;
+        } else {
+            mCamera.pauseWindowlessPreviewFrameUpdate();
+            mPaused = true;
+            mPauseCount++;
+            mPausedSinceMs = now;
+            mHandler.postDelayed(mPauseTimeout, mMaxPauseMs);
+        }
+        mLastToggleMs = now;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef __INTEL_CAMERA_RECORDING_TAP_H__
+#define __INTEL_CAMERA_RECORDING_TAP_H__
+
+#include <utils/RefBase.h>
+#include <utils/threads.h>
+#include <utils/Timers.h>
+#include <utils/Vector.h>
+
+namespace android {
+
+/**
+ * In-process consumer of recording frames.
+ *
+ * onRecordingFrame() is called on the camera callback thread with each
+ * timestamped recording buffer, in place and before the buffer is
+ * forwarded to the recorder. The data is read-only and is only valid
+ * during the call. It is what the HAL delivers for recording, which may be
+ * a metadata buffer referring to the frame rather than the pixels.
+ *
+ * The call should return within the deadline given at registration. The
+ * call runs on the callback thread and is never interrupted, so the
+ * deadline does not bound a single call: an overrun is only detected once
+ * the call returns. A consumer that overruns is then skipped for a number
+ * of frames that doubles with each consecutive overrun, which limits what
+ * a repeatedly slow consumer costs the recording frame rate.
+ *
+ * The call is made without the registry lock held, so a consumer may add,
+ * remove or query consumers, itself included, from onRecordingFrame().
+ **/
+class RecordingFrameConsumer: public virtual RefBase
+{
+public:
+    virtual void onRecordingFrame(nsecs_t timestamp, const void* data, size_t size) = 0;
+    virtual const char* getName() const = 0;
+
+protected:
+    virtual ~RecordingFrameConsumer() {}
+};
+
+/**
+ * Process wide registry of RecordingFrameConsumers, called by the Intel
+ * camera extension for every recording frame. With no consumer registered
+ * the cost per frame is a single atomic load.
+ **/
+class RecordingFrameTap
+{
+public:
+    struct Stats {
+        uint32_t calls;
+        uint32_t overruns;
+        uint32_t skipped;
+        nsecs_t maxDuration;
+    };
+
+    static const nsecs_t DEFAULT_FRAME_BUDGET = 5000000;   // 5ms for all consumers
+    static const uint32_t MAX_PENALTY_FRAMES = 64;
+
+    static RecordingFrameTap& getInstance();
+
+    status_t addConsumer(const sp<RecordingFrameConsumer>& consumer, nsecs_t deadline);
+    status_t removeConsumer(const sp<RecordingFrameConsumer>& consumer);
+    status_t getStats(const sp<RecordingFrameConsumer>& consumer, Stats* stats);
+
+    // total time all consumers of one frame may take; consumers not
+    // reached within it are skipped for that frame
+    void setFrameBudget(nsecs_t budget);
+
+    // called by the camera extension, not by consumers
+    void dispatch(nsecs_t timestamp, const void* data, size_t size);
+
+private:
+    struct Entry {
+        sp<RecordingFrameConsumer> consumer;
+        nsecs_t deadline;
+        uint32_t penalty;           // frames to skip after the next overrun
+        uint32_t skipFrames;        // frames still to skip
+        Stats stats;
+    };
+
+    RecordingFrameTap();
+    ssize_t indexOf(const sp<RecordingFrameConsumer>& consumer) const;
+
+    Mutex mLock;
+    Vector<Entry> mEntries;
+    nsecs_t mFrameBudget;
+    volatile int32_t mCount;
+};
+
+}; // namespace android
+
+#endif // __INTEL_CAMERA_RECORDING_TAP_H__
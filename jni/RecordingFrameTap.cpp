@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "IntelCamera-RecordingTap"
+
+#include "intel_camera_recording_tap.h"
+
+#include <string.h>
+#include <cutils/atomic.h>
+#include <utils/Log.h>
+
+#include "CameraTrace.h"
+
+namespace android {
+
+RecordingFrameTap& RecordingFrameTap::getInstance()
+{
+    static RecordingFrameTap sInstance;
+    return sInstance;
+}
+
+RecordingFrameTap::RecordingFrameTap() :
+    mFrameBudget(DEFAULT_FRAME_BUDGET)
+    ,mCount(0)
+{
+}
+
+ssize_t RecordingFrameTap::indexOf(const sp<RecordingFrameConsumer>& consumer) const
+{
+    for (size_t i = 0; i < mEntries.size(); i++) {
+        if (mEntries[i].consumer == consumer)
+            return i;
+    }
+    return NAME_NOT_FOUND;
+}
+
+status_t RecordingFrameTap::addConsumer(const sp<RecordingFrameConsumer>& consumer, nsecs_t deadline)
+{
+    if (consumer == NULL || deadline <= 0)
+        return BAD_VALUE;
+
+    Mutex::Autolock lock(mLock);
+    if (indexOf(consumer) >= 0)
+        return ALREADY_EXISTS;
+
+    Entry entry;
+    entry.consumer = consumer;
+    entry.deadline = deadline;
+    entry.penalty = 1;
+    entry.skipFrames = 0;
+    memset(&entry.stats, 0, sizeof(entry.stats));
+    mEntries.add(entry);
+    android_atomic_release_store(mEntries.size(), &mCount);
+    ALOGI("Recording frame consumer %s added, deadline %lld us",
+          consumer->getName(), deadline / 1000);
+    return NO_ERROR;
+}
+
+status_t RecordingFrameTap::removeConsumer(const sp<RecordingFrameConsumer>& consumer)
+{
+    Mutex::Autolock lock(mLock);
+    ssize_t index = indexOf(consumer);
+    if (index < 0)
+        return NAME_NOT_FOUND;
+
+    const Stats& s = mEntries[index].stats;
+    ALOGI("Recording frame consumer %s removed: %u calls, %u overruns, %u skipped, max %lld us",
+          consumer->getName(), s.calls, s.overruns, s.skipped, s.maxDuration / 1000);
+    mEntries.removeAt(index);
+    android_atomic_release_store(mEntries.size(), &mCount);
+    return NO_ERROR;
+}
+
+status_t RecordingFrameTap::getStats(const sp<RecordingFrameConsumer>& consumer, Stats* stats)
+{
+    Mutex::Autolock lock(mLock);
+    ssize_t index = indexOf(consumer);
+    if (index < 0)
+        return NAME_NOT_FOUND;
+    *stats = mEntries[index].stats;
+    return NO_ERROR;
+}
+
+void RecordingFrameTap::setFrameBudget(nsecs_t budget)
+{
+    Mutex::Autolock lock(mLock);
+    mFrameBudget = budget;
+}
+
+void RecordingFrameTap::dispatch(nsecs_t timestamp, const void* data, size_t size)
+{
+    if (android_atomic_acquire_load(&mCount) == 0)
+        return;
+
+    // The consumers are called without mLock held, so that they may add,
+    // remove or query consumers, and so that the last reference to a
+    // removed consumer is not dropped under the lock. The references taken
+    // here keep the called consumers alive until after the lock is released.
+    Vector<sp<RecordingFrameConsumer> > called;
+    Vector<nsecs_t> durations;
+    nsecs_t budget;
+    {
+        Mutex::Autolock lock(mLock);
+        budget = mFrameBudget;
+        called.setCapacity(mEntries.size());
+        for (size_t i = 0; i < mEntries.size(); i++) {
+            Entry& e = mEntries.editItemAt(i);
+            if (e.skipFrames > 0) {
+                e.skipFrames--;
+                e.stats.skipped++;
+                continue;
+            }
+            called.add(e.consumer);
+        }
+    }
+
+    nsecs_t frameStart = systemTime();
+    // -1 marks a consumer not reached within the frame budget
+    durations.insertAt((nsecs_t) -1, 0, called.size());
+    for (size_t i = 0; i < called.size(); i++) {
+        nsecs_t start = systemTime();
+        if (start - frameStart >= budget) {
+            // earlier consumers used up the frame
+            continue;
+        }
+        called[i]->onRecordingFrame(timestamp, data, size);
+        durations.editItemAt(i) = systemTime() - start;
+    }
+
+    Mutex::Autolock lock(mLock);
+    for (size_t i = 0; i < called.size(); i++) {
+        ssize_t index = indexOf(called[i]);
+        if (index < 0)
+            continue;   // removed during the frame
+        Entry& e = mEntries.editItemAt(index);
+        nsecs_t duration = durations[i];
+        if (duration < 0) {
+            e.stats.skipped++;
+            continue;
+        }
+        e.stats.calls++;
+        if (duration > e.stats.maxDuration)
+            e.stats.maxDuration = duration;
+        if (duration > e.deadline) {
+            e.stats.overruns++;
+            e.skipFrames = e.penalty;
+            if (e.penalty < MAX_PENALTY_FRAMES)
+                e.penalty *= 2;
+            CAMERA_TRACE(TRACE_LEVEL_EVENT, TRACE_RECORDING_TAP_OVERRUN, index, duration / 1000, e.skipFrames);
+        } else {
+            e.penalty = 1;
+        }
+    }
+    // the lock is released before the references in called are dropped
+}
+
+}; // namespace android
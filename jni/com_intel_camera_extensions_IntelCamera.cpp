@@ -18,40 +18,95 @@
 //#define LOG_NDEBUG 0
 #define LOG_TAG "IntelCamera-JNI"
 
+#include <pthread.h>
 #include <camera/Camera.h>
 #include <jni.h>
 #include <JNIHelp.h>
 #include <utils/Log.h>
+#include <utils/Condition.h>
+#include <utils/KeyedVector.h>
+#include <utils/String8.h>
 #include <android_runtime/AndroidRuntime.h>
 #include "android_hardware_Camera.h"
 
 #include "intel_camera_extensions.h"
+#include "intel_camera_recording_tap.h"
 
 #include "libacc.h"
+#include "CameraTrace.h"
 
 using namespace android;
 
 class IntelCameraListener: public CameraListener
 {
 public:
-    IntelCameraListener(JNICameraContext* aRealListener, jobject weak_this, jclass clazz);
+    IntelCameraListener(JNICameraContext* aRealListener, const sp<Camera>& camera,
+                        jobject weak_this, jclass clazz);
     ~IntelCameraListener() { release();}
     void notify(int32_t msgType, int32_t ext1, int32_t ext2);
     void postData(int32_t msgType, const sp<IMemory>& dataPtr,
                   camera_frame_metadata_t *metadata) ;
     void postDataTimestamp(nsecs_t timestamp, int32_t msgType, const sp<IMemory>& dataPtr);
-    sp<Camera> getCamera() { return mRealListener->getCamera();}
+    sp<Camera> getCamera() { return mCamera;}
+    void releaseCamera() { mCamera.clear();}
+    void close();
     void release();
+    bool enterJavaCallback();
+    void exitJavaCallback();
+    void setAccPreviewEnabled(bool enable);
+    status_t returnAccPreviewBuffer(int frameCounter);
 
 private:
+    void postEventToJava(JNIEnv* env, int32_t msgType, int32_t ext1, int32_t ext2, jobject obj);
+    void postAccPreviewFrame(JNIEnv* env, const sp<IMemoryHeap>& heap, const Frame& frame);
+    void returnAllAccPreviewBuffers();
+    jstring getSceneString(JNIEnv* env, const char* scene);
+    jobject getAccPreviewData(JNIEnv* env, const Frame& frame);
+
     JNICameraContext* mRealListener;
+    sp<Camera> mCamera;  // cached at native_setup, cleared at native_release
     jobject mCameraJObjectWeak;
     jclass mPanoramaMetadataClass;  // strong reference to PanoramaMetadata class
     jclass mPanoramaSnapshotClass;  // strong reference to PanoramaSnapshot class
     jclass mUllSnapshotClass;  // strong reference to UllSnapshot class
     jclass mSceneDetectionMetadataClass; // strong reference to SceneDetectionMetadata class
+    jclass mAccPreviewFrameClass; // strong reference to AccPreviewFrame class
     jclass mCameraJClass;
 
+    // accelerator preview buffers handed to Java, keyed by frameCounter
+    Mutex mAccLock;
+    bool mAccPreviewEnabled;
+    KeyedVector<int, sp<IMemoryHeap> > mAccHeldBuffers;
+
+    // callbacks into Java in flight; close() waits for them before the
+    // global references they use are deleted
+    Mutex mCallbackLock;
+    Condition mCallbackDone;
+    int mActiveCallbacks;
+    bool mClosed;
+
+    // Java objects reused across callbacks, global references
+    Mutex mCacheLock;
+    KeyedVector<String8, jstring> mSceneStrings;    // detected scene names
+    KeyedVector<void*, jobject> mAccPreviewData;    // read-only direct buffers per preview heap
+
+};
+
+/*
+ * Scope of one HAL callback. The first env() call enters the listener's Java
+ * callback fence and returns NULL once native_release has closed it, so no
+ * callback touches the listener's global references after they are deleted.
+ */
+class JavaCallbackScope
+{
+public:
+    JavaCallbackScope(IntelCameraListener* listener) : mListener(listener), mEntered(false) {}
+    ~JavaCallbackScope() { if (mEntered) mListener->exitJavaCallback(); }
+    JNIEnv* env();
+
+private:
+    IntelCameraListener* mListener;
+    bool mEntered;
 };
 
 struct fields_t {
@@ -74,6 +129,17 @@ struct fields_t {
     jmethodID scene_detection_metadata_constructor;
     jfieldID scene_detection_metadata_hdr;
     jfieldID scene_detection_metadata_scene;
+    // Accelerator preview frames
+    jmethodID acc_preview_frame_constructor;
+    jfieldID acc_preview_frame_id;
+    jfieldID acc_preview_frame_frame_counter;
+    jfieldID acc_preview_frame_width;
+    jfieldID acc_preview_frame_height;
+    jfieldID acc_preview_frame_format;
+    jfieldID acc_preview_frame_stride;
+    jfieldID acc_preview_frame_size;
+    jfieldID acc_preview_frame_data;
+    jmethodID byte_buffer_as_read_only;
 };
 
 static fields_t fields;
@@ -86,6 +152,72 @@ CameraAcc* get_acc()
 
 extern sp<Camera> get_native_camera(JNIEnv *env, jobject thiz, struct JNICameraContext** context);
 
+/*
+ * Per-thread JNI state for the HAL callback threads.
+ *
+ * The JNIEnv of a callback thread is looked up (and the thread attached to
+ * the VM if needed) on its first callback only, later callbacks read it from
+ * thread-local storage. A thread attached here stays attached until it
+ * exits and is then detached by the TLS destructor, since JNI only allows a
+ * thread to detach itself; native_release does not detach anything.
+ */
+static const jint CALLBACK_LOCAL_CAPACITY = 16;
+static const size_t MAX_CACHED_SCENE_STRINGS = 32;
+
+struct CallbackThreadContext {
+    JNIEnv* env;
+    bool attached;          // attached by us, detach at thread exit
+};
+
+static JavaVM* sJavaVM = NULL;
+static pthread_key_t sCallbackThreadKey;
+static pthread_once_t sCallbackThreadKeyOnce = PTHREAD_ONCE_INIT;
+
+static void destroy_callback_thread_context(void* data)
+{
+    CallbackThreadContext* ctx = reinterpret_cast<CallbackThreadContext*>(data);
+    if (ctx->attached)
+        sJavaVM->DetachCurrentThread();
+    delete ctx;
+}
+
+static void create_callback_thread_key()
+{
+    pthread_key_create(&sCallbackThreadKey, destroy_callback_thread_context);
+}
+
+static JNIEnv* get_callback_env()
+{
+    pthread_once(&sCallbackThreadKeyOnce, create_callback_thread_key);
+    CallbackThreadContext* ctx = reinterpret_cast<CallbackThreadContext*>(pthread_getspecific(sCallbackThreadKey));
+    if (ctx != NULL)
+        return ctx->env;
+
+    nsecs_t start = systemTime(SYSTEM_TIME_MONOTONIC);
+    ctx = new CallbackThreadContext();
+    ctx->env = NULL;
+    ctx->attached = false;
+    if (sJavaVM->GetEnv((void**) &ctx->env, JNI_VERSION_1_4) != JNI_OK) {
+        JavaVMAttachArgs args;
+        args.version = JNI_VERSION_1_4;
+        args.name = "IntelCameraCallback";
+        args.group = NULL;
+        if (sJavaVM->AttachCurrentThread(&ctx->env, &args) != JNI_OK) {
+            LOGE("Could not attach callback thread");
+            delete ctx;
+            return NULL;
+        }
+        ctx->attached = true;
+    }
+    // room for all local references one callback creates
+    ctx->env->EnsureLocalCapacity(CALLBACK_LOCAL_CAPACITY);
+    pthread_setspecific(sCallbackThreadKey, ctx);
+
+    CAMERA_TRACE(TRACE_LEVEL_EVENT, TRACE_CALLBACK_ATTACH, ctx->attached,
+                 (systemTime(SYSTEM_TIME_MONOTONIC) - start) / 1000, 0);
+    return ctx->env;
+}
+
 static void com_intel_camera_extensions_IntelCamera_native_setup(JNIEnv *env, jobject thiz,
         jobject weak_this, jobject cameraDevice)
 {
@@ -95,7 +227,7 @@ static void com_intel_camera_extensions_IntelCamera_native_setup(JNIEnv *env, jo
     if (camera == 0) return;
 
     jclass clazz = env->GetObjectClass(thiz);
-    sp<IntelCameraListener> l = new IntelCameraListener(listener, weak_this, clazz);
+    sp<IntelCameraListener> l = new IntelCameraListener(listener, camera, weak_this, clazz);
     l->incStrong(thiz);
     camera->setListener(l);
     env->SetIntField(thiz, fields.intel_listener, (int)l.get());
@@ -109,9 +241,43 @@ static void com_intel_camera_extensions_IntelCamera_native_release(JNIEnv *env,
     IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
     // Make sure we do not attempt to callback on a deleted Java object.
     env->SetIntField(thiz, fields.intel_listener, 0);
-    if (intel_listener != NULL)
+    if (intel_listener != NULL) {
+        // wait for callbacks into Java and delete the cached global references
+        intel_listener->close();
+        // hand back accelerator buffers still held by Java
+        intel_listener->setAccPreviewEnabled(false);
+        // drop the cached camera, the Camera object holds the listener
+        intel_listener->releaseCamera();
         // remove context to prevent further Java access
         intel_listener->decStrong(thiz);
+    }
+}
+
+/**
+ * Returns the camera cached in the IntelCameraListener at native_setup.
+ *
+ * This is the hot path of all command wrappers below, so it only reads the
+ * context field and takes a reference; it does not go through
+ * get_native_camera.
+ **/
+static inline sp<Camera> get_intel_camera(JNIEnv *env, jobject thiz)
+{
+    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
+    if (intel_listener == NULL)
+        return NULL;
+
+    return intel_listener->getCamera();
+}
+
+static inline status_t send_intel_command(JNIEnv *env, jobject thiz, int32_t cmd, int32_t arg1)
+{
+    sp<Camera> camera = get_intel_camera(env, thiz);
+    if (camera == NULL) {
+        LOGE("get camera handle failed");
+        return NO_INIT;
+    }
+
+    return camera->sendCommand(cmd, arg1, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_setPriority(JNIEnv *env, jobject thiz, int cameraId, bool lowPriority)
@@ -123,8 +289,7 @@ static void com_intel_camera_extensions_IntelCamera_setPriority(JNIEnv *env, job
 static bool com_intel_camera_extensions_IntelCamera_enableIntelCamera(JNIEnv *env, jobject thiz, jobject cameraDevice)
 {
     LOGV("enableIntelCamera");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
+    sp<Camera> camera = get_intel_camera(env, thiz);
     if (camera == NULL) {
         LOGE("get camera handle failed");
         return false;
@@ -136,34 +301,19 @@ static bool com_intel_camera_extensions_IntelCamera_enableIntelCamera(JNIEnv *en
 static void com_intel_camera_extensions_IntelCamera_startSceneDetection(JNIEnv *env, jobject thiz)
 {
     LOGV("startSceneDetection");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_START_SCENE_DETECTION, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_START_SCENE_DETECTION, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_stopSceneDetection(JNIEnv *env, jobject thiz)
 {
     LOGV("stopSceneDetection");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_STOP_SCENE_DETECTION, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_STOP_SCENE_DETECTION, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_startPanorama(JNIEnv *env, jobject thiz)
 {
     LOGV("startPanorama");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
+    sp<Camera> camera = get_intel_camera(env, thiz);
     if (camera == NULL)
         return;
 
@@ -175,8 +325,7 @@ static void com_intel_camera_extensions_IntelCamera_startPanorama(JNIEnv *env, j
 static void com_intel_camera_extensions_IntelCamera_stopPanorama(JNIEnv *env, jobject thiz)
 {
     LOGV("stopPanorama");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
+    sp<Camera> camera = get_intel_camera(env, thiz);
     if (camera == NULL)
         return;
 
@@ -188,189 +337,90 @@ static void com_intel_camera_extensions_IntelCamera_stopPanorama(JNIEnv *env, jo
 static void com_intel_camera_extensions_IntelCamera_startSmileShutter(JNIEnv *env, jobject thiz)
 {
     LOGV("startSmileShutter");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_START_SMILE_SHUTTER, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_START_SMILE_SHUTTER, 0);
 }
 
 
 static void com_intel_camera_extensions_IntelCamera_stopSmileShutter(JNIEnv *env, jobject thiz)
 {
     LOGV("stopSmileShutter");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_STOP_SMILE_SHUTTER, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_STOP_SMILE_SHUTTER, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_startBlinkShutter(JNIEnv *env, jobject thiz)
 {
     LOGV("startBlinkShutter");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_START_BLINK_SHUTTER, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_START_BLINK_SHUTTER, 0);
 }
 
 
 static void com_intel_camera_extensions_IntelCamera_stopBlinkShutter(JNIEnv *env, jobject thiz)
 {
     LOGV("stopBlinkShutter");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_STOP_BLINK_SHUTTER, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_STOP_BLINK_SHUTTER, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_cancelSmartShutterPicture(JNIEnv *env, jobject thiz)
 {
     LOGV("cancelSmartShutterPicture");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_CANCEL_SMART_SHUTTER_PICTURE, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_CANCEL_SMART_SHUTTER_PICTURE, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_forceSmartShutterPicture(JNIEnv *env, jobject thiz)
 {
     LOGV("forceSmartShutterPicture");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_FORCE_SMART_SHUTTER_PICTURE, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_FORCE_SMART_SHUTTER_PICTURE, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_startFaceRecognition(JNIEnv *env, jobject thiz)
 {
     LOGV("startFaceRecognition");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_START_FACE_RECOGNITION, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_START_FACE_RECOGNITION, 0);
 }
 
 
 static void com_intel_camera_extensions_IntelCamera_stopFaceRecognition(JNIEnv *env, jobject thiz)
 {
     LOGV("stopFaceRecognition");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_STOP_FACE_RECOGNITION, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_STOP_FACE_RECOGNITION, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_startContinuousShooting(JNIEnv *env, jobject thiz)
 {
     LOGV("startContinuousShooting");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_START_CONTINUOUS_SHOOTING, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_START_CONTINUOUS_SHOOTING, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_stopContinuousShooting(JNIEnv *env, jobject thiz)
 {
     LOGV("stopContinuousShooting");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_STOP_CONTINUOUS_SHOOTING, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_STOP_CONTINUOUS_SHOOTING, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_pausePreviewFrameUpdate(JNIEnv *env, jobject thiz)
 {
     LOGV("pausePreviewFrameUpdate");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_PAUSE_PREVIEW_FRAME_UPDATE, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_PAUSE_PREVIEW_FRAME_UPDATE, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_resumePreviewFrameUpdate(JNIEnv *env, jobject thiz)
 {
     LOGV("resumePreviewFrameUpdate");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_RESUME_PREVIEW_FRAME_UPDATE, 0, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_RESUME_PREVIEW_FRAME_UPDATE, 0);
 }
 
 static void com_intel_camera_extensions_IntelCamera_setPreviewFrameCaptureId(JNIEnv *env, jobject thiz, jint id)
 {
     LOGV("setPreviewFrameCaptureId");
-    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
-    sp<Camera> camera = intel_listener->getCamera();
-
-    if (camera == NULL) {
-        LOGE("get camera handle failed");
-        return;
-    }
-
-    camera->sendCommand(CAMERA_CMD_SET_PREVIEW_FRAME_CAPTURE_ID, id, 0);
+    send_intel_command(env, thiz, CAMERA_CMD_SET_PREVIEW_FRAME_CAPTURE_ID, id);
 }
 
-IntelCameraListener::IntelCameraListener(JNICameraContext* aRealListener, jobject weak_this, jclass clazz)
+IntelCameraListener::IntelCameraListener(JNICameraContext* aRealListener, const sp<Camera>& camera,
+                                         jobject weak_this, jclass clazz)
+    : mCamera(camera)
+    ,mAccPreviewEnabled(false)
+    ,mActiveCallbacks(0)
+    ,mClosed(false)
 {
     LOGV("new IntelCameraListener");
     JNIEnv *env = AndroidRuntime::getJNIEnv();
@@ -382,6 +432,7 @@ IntelCameraListener::IntelCameraListener(JNICameraContext* aRealListener, jobjec
         mUllSnapshotClass = NULL;
         mCameraJObjectWeak = NULL;
         mSceneDetectionMetadataClass = NULL;
+        mAccPreviewFrameClass = NULL;
 
         LOGE("getJNIEnv error, IntelCameraListener construction failed");
     } else {
@@ -401,10 +452,57 @@ IntelCameraListener::IntelCameraListener(JNICameraContext* aRealListener, jobjec
         clazz = env->FindClass("com/intel/camera/extensions/IntelCamera$SceneDetectionMetadata");
         mSceneDetectionMetadataClass = (jclass) env->NewGlobalRef(clazz);
 
+        clazz = env->FindClass("com/intel/camera/extensions/IntelCamera$AccPreviewFrame");
+        mAccPreviewFrameClass = (jclass) env->NewGlobalRef(clazz);
+
         mCameraJObjectWeak = env->NewGlobalRef(weak_this);
     }
 }
 
+bool IntelCameraListener::enterJavaCallback()
+{
+    Mutex::Autolock lock(mCallbackLock);
+    if (mClosed)
+        return false;
+    mActiveCallbacks++;
+    return true;
+}
+
+void IntelCameraListener::exitJavaCallback()
+{
+    Mutex::Autolock lock(mCallbackLock);
+    if (--mActiveCallbacks == 0)
+        mCallbackDone.broadcast();
+}
+
+JNIEnv* JavaCallbackScope::env()
+{
+    if (!mEntered) {
+        if (!mListener->enterJavaCallback())
+            return NULL;
+        mEntered = true;
+    }
+    return get_callback_env();
+}
+
+/**
+ * Stops callbacks into Java and deletes the global references.
+ *
+ * Called from native_release. Waits for the callbacks already in Java, which
+ * only post to the event handler; later callbacks skip their Java part. The
+ * real listener is dropped as well, the camera is released right after.
+ **/
+void IntelCameraListener::close()
+{
+    {
+        Mutex::Autolock lock(mCallbackLock);
+        mClosed = true;
+        while (mActiveCallbacks > 0)
+            mCallbackDone.wait(mCallbackLock);
+    }
+    release();
+}
+
 void IntelCameraListener::release()
 {
     LOGV("release IntelCameraListener");
@@ -437,26 +535,111 @@ void IntelCameraListener::release()
         mSceneDetectionMetadataClass = NULL;
     }
 
+    if (mAccPreviewFrameClass != NULL) {
+        env->DeleteGlobalRef(mAccPreviewFrameClass);
+        mAccPreviewFrameClass = NULL;
+    }
+
     if (mCameraJObjectWeak != NULL) {
         env->DeleteGlobalRef(mCameraJObjectWeak);
         mCameraJObjectWeak = NULL;
     }
 
+    {
+        Mutex::Autolock lock(mCacheLock);
+        for (size_t i = 0; i < mSceneStrings.size(); i++)
+            env->DeleteGlobalRef(mSceneStrings.valueAt(i));
+        mSceneStrings.clear();
+        for (size_t i = 0; i < mAccPreviewData.size(); i++)
+            env->DeleteGlobalRef(mAccPreviewData.valueAt(i));
+        mAccPreviewData.clear();
+    }
+
     mRealListener = NULL;
 }
 
+void IntelCameraListener::postEventToJava(JNIEnv* env, int32_t msgType, int32_t ext1, int32_t ext2, jobject obj)
+{
+    nsecs_t start = systemTime(SYSTEM_TIME_MONOTONIC);
+    env->CallStaticVoidMethod(mCameraJClass, fields.post_event,
+                              mCameraJObjectWeak, msgType, ext1, ext2, obj);
+    if (env->ExceptionCheck()) {
+        ALOGE("Exception posting message 0x%x to Java", msgType);
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+    CAMERA_TRACE(TRACE_LEVEL_EVENT, TRACE_JAVA_CALLBACK, msgType,
+                 (systemTime(SYSTEM_TIME_MONOTONIC) - start) / 1000, 0);
+}
+
+/**
+ * Returns a global reference to the Java string for a detected scene name.
+ * The detector reports a small fixed set of names, so they are created once.
+ **/
+jstring IntelCameraListener::getSceneString(JNIEnv* env, const char* scene)
+{
+    Mutex::Autolock lock(mCacheLock);
+    String8 key(scene, strnlen(scene, SCENE_STRING_LENGTH));
+    ssize_t idx = mSceneStrings.indexOfKey(key);
+    if (idx >= 0)
+        return mSceneStrings.valueAt(idx);
+
+    jstring str = env->NewStringUTF(key.string());
+    if (str == NULL || mSceneStrings.size() >= MAX_CACHED_SCENE_STRINGS) {
+        // not cacheable, the caller's local frame owns it
+        return str;
+    }
+    jstring global = (jstring) env->NewGlobalRef(str);
+    env->DeleteLocalRef(str);
+    mSceneStrings.add(key, global);
+    return global;
+}
+
+/**
+ * Returns a global reference to a read-only direct buffer over an accelerator
+ * preview heap. The HAL cycles through a few preview heaps, one buffer each is
+ * kept, so neither the buffer nor its read-only view is created per frame.
+ * A heap holds one frame at a time, Java resets the position of the shared
+ * view when it hands the frame out.
+ **/
+jobject IntelCameraListener::getAccPreviewData(JNIEnv* env, const Frame& frame)
+{
+    Mutex::Autolock lock(mCacheLock);
+    ssize_t idx = mAccPreviewData.indexOfKey(frame.img_data);
+    if (idx >= 0) {
+        jobject data = mAccPreviewData.valueAt(idx);
+        if (env->GetDirectBufferCapacity(data) == frame.size)
+            return data;
+        env->DeleteGlobalRef(data);
+        mAccPreviewData.removeItemsAt(idx);
+    }
+
+    jobject data = env->NewDirectByteBuffer(frame.img_data, frame.size);
+    if (data == NULL)
+        return NULL;
+    jobject readOnly = env->CallObjectMethod(data, fields.byte_buffer_as_read_only);
+    env->DeleteLocalRef(data);
+    if (readOnly == NULL)
+        return NULL;
+    jobject global = env->NewGlobalRef(readOnly);
+    env->DeleteLocalRef(readOnly);
+    mAccPreviewData.add(frame.img_data, global);
+    return global;
+}
+
 void IntelCameraListener::notify(int32_t msgType, int32_t ext1, int32_t ext2)
 {
-    LOGV("intel notification, msgType:0%d", msgType);
-    JNIEnv *env = AndroidRuntime::getJNIEnv();
+    CAMERA_TRACE(TRACE_LEVEL_EVENT, TRACE_NOTIFY, msgType, ext1, ext2);
+    JavaCallbackScope scope(this);
+    JNIEnv *env = NULL;
 
     switch (msgType) {
     case CAMERA_MSG_ULL_TRIGGERED:
     case CAMERA_MSG_LOW_BATTERY:
     case CAMERA_MSG_FRAME_ID:
+        env = scope.env();
         if (env != NULL)
-            env->CallStaticVoidMethod(mCameraJClass, fields.post_event,
-                                      mCameraJObjectWeak, msgType, ext1, ext2, NULL);
+            postEventToJava(env, msgType, ext1, ext2, NULL);
         break;
     case CAMERA_MSG_ACC_POINTER:
         acc->notifyPointer(ext1, ext2);
@@ -490,14 +673,17 @@ void IntelCameraListener::postData(int32_t msgType, const sp<IMemory>& dataPtr,
     }
 
     uint8_t *heapBase = (uint8_t*)heap->base();
+    JavaCallbackScope scope(this);
     JNIEnv *env = NULL;
 
+    CAMERA_TRACE(TRACE_LEVEL_EVENT, TRACE_POST_DATA, msgType, size, offset);
+
     if (heapBase != NULL &&
         (msgType == CAMERA_MSG_PANORAMA_METADATA || msgType == CAMERA_MSG_PANORAMA_SNAPSHOT)) {
         // Panorama-related message handlings:
         const camera_panorama_metadata* pMetadata = reinterpret_cast<const camera_panorama_metadata*>(heapBase + offset);
         const jbyte* pPic = NULL;
-        env = AndroidRuntime::getJNIEnv();
+        env = scope.env();
         if (env == NULL)
             return;
         switch (msgType) {
@@ -512,8 +698,7 @@ void IntelCameraListener::postData(int32_t msgType, const sp<IMemory>& dataPtr,
                     env->SetIntField(metadata, fields.panorama_metadata_v_displacement, pMetadata->vertical_displacement);
                     env->SetBooleanField(metadata, fields.panorama_metadata_motion_blur, pMetadata->motion_blur);
                     env->SetBooleanField(metadata, fields.panorama_metadata_finalization_started, pMetadata->finalization_started);
-                    env->CallStaticVoidMethod(mCameraJClass, fields.post_event,
-                                              mCameraJObjectWeak, msgType, 0, 0, metadata);
+                    postEventToJava(env, msgType, 0, 0, metadata);
                     env->DeleteLocalRef(metadata);
                 } else {
                     ALOGE("Couldn't allocate metadata object");
@@ -557,8 +742,7 @@ void IntelCameraListener::postData(int32_t msgType, const sp<IMemory>& dataPtr,
                 env->SetObjectField(panoramaSnapshot, fields.panorama_snapshot_snapshot, array);
 
                 // finally, we are done constructing, so call the java class
-                env->CallStaticVoidMethod(mCameraJClass, fields.post_event,
-                                          mCameraJObjectWeak, msgType, 0, 0, panoramaSnapshot);
+                postEventToJava(env, msgType, 0, 0, panoramaSnapshot);
                 env->DeleteLocalRef(metadata);
                 env->DeleteLocalRef(array);
                 env->DeleteLocalRef(panoramaSnapshot);
@@ -570,7 +754,7 @@ void IntelCameraListener::postData(int32_t msgType, const sp<IMemory>& dataPtr,
         }
     } else if (heapBase != NULL && msgType == CAMERA_MSG_ULL_SNAPSHOT) {
         // ULL data call back message:
-        env = AndroidRuntime::getJNIEnv();
+        env = scope.env();
         if (env == NULL)
             return;
 
@@ -602,15 +786,14 @@ void IntelCameraListener::postData(int32_t msgType, const sp<IMemory>& dataPtr,
                 env->SetObjectField(ullSnapshot, fields.ull_snapshot_snapshot, array);
 
                 // done constructing, so call the java class
-                env->CallStaticVoidMethod(mCameraJClass, fields.post_event,
-                                          mCameraJObjectWeak, msgType, 0, 0, ullSnapshot);
+                postEventToJava(env, msgType, 0, 0, ullSnapshot);
 
                 env->DeleteLocalRef(array);
                 env->DeleteLocalRef(ullSnapshot);
             }
         }
     } else if (heapBase != NULL && msgType == CAMERA_MSG_SCENE_DETECT) {
-        env = AndroidRuntime::getJNIEnv();
+        env = scope.env();
         if (env == NULL)
             return;
 
@@ -624,19 +807,28 @@ void IntelCameraListener::postData(int32_t msgType, const sp<IMemory>& dataPtr,
                 ALOGE("NULL metadata for scene detection");
                 env->ExceptionClear();
             } else {
-                jstring scenestring =  env->NewStringUTF(pMetadatax->scene);
+                jstring scenestring = getSceneString(env, pMetadatax->scene);
                 env->SetObjectField(metadata, fields.scene_detection_metadata_scene, scenestring);
                 env->SetBooleanField(metadata, fields.scene_detection_metadata_hdr, pMetadatax->hdr);
-                env->CallStaticVoidMethod(mCameraJClass, fields.post_event, mCameraJObjectWeak, msgType, 0, 0, metadata);
+                postEventToJava(env, msgType, 0, 0, metadata);
 
                 env->DeleteLocalRef(metadata);
-                env->DeleteLocalRef(scenestring);
+                // only uncached scene names are local references
+                if (scenestring != NULL && env->GetObjectRefType(scenestring) == JNILocalRefType)
+                    env->DeleteLocalRef(scenestring);
             }
         }
     } else if (heapBase != NULL && msgType == CAMERA_MSG_ACC_ARGUMENT_BUFFER) {
         acc->postArgumentBuffer(heap, heapBase, size, offset);
     } else if (heapBase != NULL && msgType == CAMERA_MSG_ACC_PREVIEW_BUFFER) {
-        acc->postPreviewBuffer(heap, heapBase, size, offset);
+        Frame frame;
+        if (acc->postPreviewBuffer(heap, heapBase, size, offset, frame)) {
+            env = scope.env();
+            if (env == NULL)
+                acc->acc_return_buffer(frame.frameCounter);
+            else
+                postAccPreviewFrame(env, heap, frame);
+        }
     } else if (heapBase != NULL && msgType == CAMERA_MSG_ACC_METADATA_BUFFER) {
         acc->postMetadataBuffer(heap, heapBase, size, offset);
     } else if (mRealListener != NULL) {
@@ -647,10 +839,131 @@ void IntelCameraListener::postData(int32_t msgType, const sp<IMemory>& dataPtr,
 
 void IntelCameraListener::postDataTimestamp(nsecs_t timestamp, int32_t msgType, const sp<IMemory>& dataPtr)
 {
+    // in-process consumers see the frame in place before the recorder
+    if (msgType == CAMERA_MSG_VIDEO_FRAME && dataPtr != NULL)
+        RecordingFrameTap::getInstance().dispatch(timestamp, dataPtr->pointer(), dataPtr->size());
+
     if (mRealListener != NULL)
         mRealListener->postDataTimestamp(timestamp,  msgType, dataPtr);
 }
 
+/**
+ * Hands an accelerator preview buffer to Java as a direct ByteBuffer over the
+ * HAL heap. The heap is kept referenced until Java returns the buffer.
+ **/
+void IntelCameraListener::postAccPreviewFrame(JNIEnv* env, const sp<IMemoryHeap>& heap, const Frame& frame)
+{
+    {
+        Mutex::Autolock lock(mAccLock);
+        if (!mAccPreviewEnabled) {
+            // unsubscribed while the frame was on its way
+            acc->acc_return_buffer(frame.frameCounter);
+            return;
+        }
+        mAccHeldBuffers.add(frame.frameCounter, heap);
+    }
+
+    jobject data = getAccPreviewData(env, frame);
+    jobject accFrame = env->NewObject(mAccPreviewFrameClass, fields.acc_preview_frame_constructor);
+    if (data == NULL || accFrame == NULL) {
+        ALOGE("Couldn't allocate accelerator preview frame objects");
+        if (accFrame)
+            env->DeleteLocalRef(accFrame);
+
+        env->ExceptionClear();
+        returnAccPreviewBuffer(frame.frameCounter);
+        return;
+    }
+
+    env->SetIntField(accFrame, fields.acc_preview_frame_id, frame.id);
+    env->SetIntField(accFrame, fields.acc_preview_frame_frame_counter, frame.frameCounter);
+    env->SetIntField(accFrame, fields.acc_preview_frame_width, frame.width);
+    env->SetIntField(accFrame, fields.acc_preview_frame_height, frame.height);
+    env->SetIntField(accFrame, fields.acc_preview_frame_format, frame.format);
+    env->SetIntField(accFrame, fields.acc_preview_frame_stride, frame.stride);
+    env->SetIntField(accFrame, fields.acc_preview_frame_size, frame.size);
+    env->SetObjectField(accFrame, fields.acc_preview_frame_data, data);
+
+    postEventToJava(env, CAMERA_MSG_ACC_PREVIEW_BUFFER, 0, 0, accFrame);
+
+    env->DeleteLocalRef(accFrame);
+}
+
+void IntelCameraListener::setAccPreviewEnabled(bool enable)
+{
+    Mutex::Autolock lock(mAccLock);
+    if (acc == NULL || mAccPreviewEnabled == enable)
+        return;
+
+    mAccPreviewEnabled = enable;
+    acc->set_manual_return(enable);
+    if (!enable)
+        returnAllAccPreviewBuffers();
+}
+
+status_t IntelCameraListener::returnAccPreviewBuffer(int frameCounter)
+{
+    Mutex::Autolock lock(mAccLock);
+    ssize_t idx = mAccHeldBuffers.indexOfKey(frameCounter);
+    if (idx < 0) {
+        LOGW("Accelerator buffer %d is not held", frameCounter);
+        return BAD_VALUE;
+    }
+
+    mAccHeldBuffers.removeItemsAt(idx);
+    return acc->acc_return_buffer(frameCounter);
+}
+
+// must be called with mAccLock held. Java invalidates the frames it still
+// holds before unsubscribing, so no ByteBuffer over these heaps is used after.
+void IntelCameraListener::returnAllAccPreviewBuffers()
+{
+    for (size_t i = 0; i < mAccHeldBuffers.size(); i++)
+        acc->acc_return_buffer(mAccHeldBuffers.keyAt(i));
+
+    mAccHeldBuffers.clear();
+}
+
+static void com_intel_camera_extensions_IntelCamera_setAccPreviewCallback(JNIEnv *env, jobject thiz, jboolean enable)
+{
+    LOGV("setAccPreviewCallback");
+    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
+    if (intel_listener == NULL)
+        return;
+
+    intel_listener->setAccPreviewEnabled(enable);
+}
+
+static void com_intel_camera_extensions_IntelCamera_returnAccPreviewBuffer(JNIEnv *env, jobject thiz, jint frameCounter)
+{
+    LOGV("returnAccPreviewBuffer");
+    IntelCameraListener* intel_listener = reinterpret_cast<IntelCameraListener*>(env->GetIntField(thiz, fields.intel_listener));
+    if (intel_listener == NULL)
+        return;
+
+    intel_listener->returnAccPreviewBuffer(frameCounter);
+}
+
+static void com_intel_camera_extensions_IntelCamera_setTraceLevel(JNIEnv *env, jclass clazz, jint level)
+{
+    CameraTrace::setLevel(level);
+}
+
+static void com_intel_camera_extensions_IntelCamera_dumpTrace(JNIEnv *env, jclass clazz)
+{
+    CameraTrace::dump();
+}
+
+static void com_intel_camera_extensions_IntelCamera_getTraceSummary(JNIEnv *env, jclass clazz,
+        jint event, jlongArray summary)
+{
+    TraceSummary s;
+    CameraTrace::summarize(event, &s);
+
+    jlong values[3] = { s.count, s.sum, s.max };
+    env->SetLongArrayRegion(summary, 0, 3, values);
+}
+
 static JNINativeMethod camMethods[] = {
     { "native_setup",
       "(Ljava/lang/Object;Landroid/hardware/Camera;)V",
@@ -715,6 +1028,21 @@ static JNINativeMethod camMethods[] = {
     { "native_setPreviewFrameCaptureId",
       "(I)V",
       (void *)com_intel_camera_extensions_IntelCamera_setPreviewFrameCaptureId },
+    { "native_setAccPreviewCallback",
+      "(Z)V",
+      (void *)com_intel_camera_extensions_IntelCamera_setAccPreviewCallback },
+    { "native_returnAccPreviewBuffer",
+      "(I)V",
+      (void *)com_intel_camera_extensions_IntelCamera_returnAccPreviewBuffer },
+    { "native_setTraceLevel",
+      "(I)V",
+      (void *)com_intel_camera_extensions_IntelCamera_setTraceLevel },
+    { "native_dumpTrace",
+      "()V",
+      (void *)com_intel_camera_extensions_IntelCamera_dumpTrace },
+    { "native_getTraceSummary",
+      "(I[J)V",
+      (void *)com_intel_camera_extensions_IntelCamera_getTraceSummary },
 };
 
 int register_com_intel_camera_extensions_IntelCamera(JNIEnv *env)
@@ -765,6 +1093,28 @@ int register_com_intel_camera_extensions_IntelCamera(JNIEnv *env)
         return -1;
     }
 
+    clazz = env->FindClass("com/intel/camera/extensions/IntelCamera$AccPreviewFrame");
+    fields.acc_preview_frame_id = env->GetFieldID(clazz, "id", "I");
+    fields.acc_preview_frame_frame_counter = env->GetFieldID(clazz, "frameCounter", "I");
+    fields.acc_preview_frame_width = env->GetFieldID(clazz, "width", "I");
+    fields.acc_preview_frame_height = env->GetFieldID(clazz, "height", "I");
+    fields.acc_preview_frame_format = env->GetFieldID(clazz, "format", "I");
+    fields.acc_preview_frame_stride = env->GetFieldID(clazz, "stride", "I");
+    fields.acc_preview_frame_size = env->GetFieldID(clazz, "size", "I");
+    fields.acc_preview_frame_data = env->GetFieldID(clazz, "mData", "Ljava/nio/ByteBuffer;");
+    fields.acc_preview_frame_constructor = env->GetMethodID(clazz, "<init>", "()V");
+    if (fields.acc_preview_frame_constructor == NULL) {
+        ALOGE("Can't find com/intel/camera/extensions/IntelCamera$AccPreviewFrame.AccPreviewFrame()");
+        return -1;
+    }
+
+    clazz = env->FindClass("java/nio/ByteBuffer");
+    fields.byte_buffer_as_read_only = env->GetMethodID(clazz, "asReadOnlyBuffer", "()Ljava/nio/ByteBuffer;");
+    if (fields.byte_buffer_as_read_only == NULL) {
+        ALOGE("Can't find java/nio/ByteBuffer.asReadOnlyBuffer()");
+        return -1;
+    }
+
     return AndroidRuntime::registerNativeMethods(env, "com/intel/camera/extensions/IntelCamera",
                                                  camMethods, NELEM(camMethods));
 }
@@ -780,6 +1130,9 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved)
     }
     assert(env != NULL);
 
+    sJavaVM = vm;
+    CameraTrace::init();
+
     if (register_com_intel_camera_extensions_IntelCamera(env) < 0) {
         LOGE("ERROR: native registration failed\n");
         goto fail;
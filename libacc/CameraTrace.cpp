@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Camera_Trace"
+
+#include "CameraTrace.h"
+
+#include <stdlib.h>
+#include <cutils/atomic.h>
+#include <cutils/properties.h>
+#include <utils/Log.h>
+#include <utils/threads.h>
+
+namespace android {
+
+// runtime level is read from this property by init()
+static const char* TRACE_LEVEL_PROPERTY = "camera.intel.trace";
+
+static const char* sEventNames[TRACE_EVENT_MAX] = {
+    "notify",
+    "postData",
+    "postDataTimestamp",
+    "javaCallback",
+    "callbackAttach",
+    "accPreviewBuffer",
+    "accReturnBuffer",
+    "accMetadataBuffer",
+    "accHostAlloc",
+    "accMap",
+    "accUnmap",
+    "recordingTapOverrun"
+};
+
+volatile int32_t CameraTrace::sLevel = TRACE_LEVEL_OFF;
+volatile int32_t CameraTrace::sWriteIndex = 0;
+TraceRecord CameraTrace::sRing[CameraTrace::RING_SIZE];
+
+void CameraTrace::init()
+{
+    char value[PROPERTY_VALUE_MAX];
+    property_get(TRACE_LEVEL_PROPERTY, value, "0");
+    setLevel(atoi(value));
+}
+
+void CameraTrace::setLevel(int level)
+{
+    android_atomic_release_store(level, &sLevel);
+}
+
+void CameraTrace::record(int32_t event, int32_t arg0, int32_t arg1, int32_t arg2)
+{
+    // reserve a slot; android_atomic_inc returns the previous value
+    uint32_t index = (uint32_t)android_atomic_inc(&sWriteIndex);
+    TraceRecord& r = sRing[index & (RING_SIZE - 1)];
+
+    r.seq = 0;
+    // the slot must read as being written before any field changes
+    android_memory_barrier();
+    r.event = event;
+    r.tid = androidGetTid();
+    r.arg0 = arg0;
+    r.arg1 = arg1;
+    r.arg2 = arg2;
+    r.timestamp = systemTime(SYSTEM_TIME_MONOTONIC);
+    // publish the record
+    android_atomic_release_store((int32_t)(index + 1), &r.seq);
+}
+
+/**
+ * Copies record i of the ring. Returns false if it is being written or a
+ * writer reused the slot during the copy.
+ **/
+bool CameraTrace::read(uint32_t i, TraceRecord* out)
+{
+    const TraceRecord& r = sRing[i & (RING_SIZE - 1)];
+    int32_t seq = (int32_t)(i + 1);
+    // skip records being written or already overwritten by a newer one
+    if (android_atomic_acquire_load(&r.seq) != seq)
+        return false;
+
+    out->event = r.event;
+    out->tid = r.tid;
+    out->arg0 = r.arg0;
+    out->arg1 = r.arg1;
+    out->arg2 = r.arg2;
+    out->timestamp = r.timestamp;
+    // a writer that took the slot during the copy has changed seq
+    android_memory_barrier();
+    return r.seq == seq;
+}
+
+void CameraTrace::dump()
+{
+    // unsigned, so the ring keeps working after the index wraps
+    uint32_t end = (uint32_t)android_atomic_acquire_load(&sWriteIndex);
+    uint32_t count = end < (uint32_t)RING_SIZE ? end : (uint32_t)RING_SIZE;
+
+    LOGI("camera trace: %u records (%u total, mod 2^32)", count, end);
+    for (uint32_t i = end - count; i != end; i++) {
+        TraceRecord r;
+        if (!read(i, &r))
+            continue;
+
+        const char* name = (r.event >= 0 && r.event < TRACE_EVENT_MAX) ? sEventNames[r.event] : "?";
+        LOGI("%lld.%06lld tid %d %s 0x%x %d %d",
+             r.timestamp / 1000000000LL, (r.timestamp / 1000LL) % 1000000LL,
+             r.tid, name, r.arg0, r.arg1, r.arg2);
+    }
+}
+
+/**
+ * Sums arg1 of the records of one event still in the ring. For the duration
+ * events (javaCallback, callbackAttach) that is the time spent in microseconds.
+ **/
+void CameraTrace::summarize(int32_t event, TraceSummary* out)
+{
+    out->count = 0;
+    out->sum = 0;
+    out->max = 0;
+
+    uint32_t end = (uint32_t)android_atomic_acquire_load(&sWriteIndex);
+    uint32_t count = end < (uint32_t)RING_SIZE ? end : (uint32_t)RING_SIZE;
+    for (uint32_t i = end - count; i != end; i++) {
+        TraceRecord r;
+        if (!read(i, &r) || r.event != event)
+            continue;
+
+        out->count++;
+        out->sum += r.arg1;
+        if (r.arg1 > out->max)
+            out->max = r.arg1;
+    }
+}
+
+}; // namespace android
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef __CAMERA_TRACE_H__
+#define __CAMERA_TRACE_H__
+
+#include <stdint.h>
+#include <utils/Timers.h>
+
+namespace android {
+
+// Trace levels. A record is kept if its level is <= both the compile-time
+// level (CAMERA_TRACE_LEVEL) and the runtime level (CameraTrace::setLevel()).
+enum {
+    TRACE_LEVEL_OFF     = 0,
+    TRACE_LEVEL_EVENT   = 1,        // one record per callback/command
+    TRACE_LEVEL_VERBOSE = 2         // per-buffer bookkeeping
+};
+
+// Compile-time gate. Build with -DCAMERA_TRACE_LEVEL=0 to remove all trace
+// points from the binary.
+#ifndef CAMERA_TRACE_LEVEL
+#define CAMERA_TRACE_LEVEL TRACE_LEVEL_VERBOSE
+#endif
+
+// Trace events. Keep in sync with sEventNames in CameraTrace.cpp
+enum TraceEvent {
+    TRACE_NOTIFY = 0,               // msgType, ext1, ext2
+    TRACE_POST_DATA,                // msgType, size, offset
+    TRACE_POST_DATA_TIMESTAMP,      // msgType, size, timestamp(ms)
+    TRACE_JAVA_CALLBACK,            // msgType, duration(us), 0
+    TRACE_CALLBACK_ATTACH,          // attached by us, duration(us), 0
+    TRACE_ACC_PREVIEW_BUFFER,       // frameCounter, id, size
+    TRACE_ACC_RETURN_BUFFER,        // frameCounter, status, 0
+    TRACE_ACC_METADATA_BUFFER,      // size, offset, 0
+    TRACE_ACC_HOST_ALLOC,           // size, idx, 0
+    TRACE_ACC_MAP,                  // idx, isp pointer, 0
+    TRACE_ACC_UNMAP,                // idx, 0, 0
+    TRACE_RECORDING_TAP_OVERRUN,    // consumer index, duration(us), frames skipped
+
+    TRACE_EVENT_MAX
+};
+
+// One binary trace record. Nothing is formatted until dump().
+struct TraceRecord {
+    volatile int32_t seq;           // write index + 1 (mod 2^32), 0 while being written
+    int32_t event;
+    int32_t tid;
+    int32_t arg0;
+    int32_t arg1;
+    int32_t arg2;
+    nsecs_t timestamp;
+};
+
+// Aggregate of arg1 over the records of one event, see CameraTrace::summarize()
+struct TraceSummary {
+    int32_t count;
+    int64_t sum;
+    int32_t max;
+};
+
+/**
+ * Low overhead, lock-free trace ring for the camera extension hot paths.
+ *
+ * Writers reserve a slot with a single atomic increment and fill it in place,
+ * so tracing a per-frame event costs a few stores. The ring keeps the last
+ * RING_SIZE records and is printed to the log on demand with dump(). The
+ * write index is treated as unsigned and wraps; dump() skips records that a
+ * writer touched while they were being copied.
+ **/
+class CameraTrace
+{
+public:
+    static const int RING_SIZE = 1024;  // must be a power of two
+
+    static void init();
+    static void setLevel(int level);
+    static inline bool isEnabled(int level) { return level <= sLevel; }
+    static void record(int32_t event, int32_t arg0, int32_t arg1, int32_t arg2);
+    static void dump();
+    static void summarize(int32_t event, TraceSummary* out);
+
+private:
+    static bool read(uint32_t i, TraceRecord* out);
+
+    static volatile int32_t sLevel;
+    static volatile int32_t sWriteIndex;
+    static TraceRecord sRing[RING_SIZE];
+};
+
+#define CAMERA_TRACE(level, event, arg0, arg1, arg2)                            \
+    do {                                                                        \
+        if ((level) <= CAMERA_TRACE_LEVEL && CameraTrace::isEnabled(level))     \
+            CameraTrace::record((event), (int32_t)(arg0), (int32_t)(arg1),      \
+                                (int32_t)(arg2));                               \
+    } while (0)
+
+}; // namespace android
+
+#endif // __CAMERA_TRACE_H__
@@ -47,6 +47,8 @@ class CameraAcc
         status_t register_callback(preview_callback cb);
         static bool dumpImage2File(const void* data, const unsigned int width_padded, unsigned int width,
                                    unsigned int height, const char* name);
+        static void setDumpConfig(const char* dir, unsigned int everyNth, unsigned int retention);
+        static void triggerDump();
 };
 
 #endif // __ILIBACC_H__
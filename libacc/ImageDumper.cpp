@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Camera_ImageDumper"
+
+#include "ImageDumper.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/uio.h>
+
+namespace android {
+
+static const char* DEFAULT_DUMP_DIR = "/mnt/cameradump/";
+
+static Mutex sInstanceLock;
+static sp<ImageDumper> sInstance;
+
+sp<ImageDumper> ImageDumper::getInstance()
+{
+    Mutex::Autolock lock(sInstanceLock);
+    if (sInstance == NULL) {
+        sInstance = new ImageDumper();
+        sInstance->run("CameraImageDumper");
+    }
+    return sInstance;
+}
+
+ImageDumper::ImageDumper() :
+    Thread(false)
+    ,mMessageQueue("ImageDumper", (int) MESSAGE_ID_MAX)
+    ,mThreadRunning(false)
+    ,mDir(DEFAULT_DUMP_DIR)
+    ,mEveryNth(1)
+    ,mRetention(0)
+    ,mTriggered(false)
+    ,mFrameCount(0)
+    ,mDumpCount(0)
+    ,mDropCount(0)
+{
+    for (unsigned int i = 0; i < MAX_SLOTS; i++) {
+        mSlots[i].data = NULL;
+        mSlots[i].capacity = 0;
+        mSlots[i].pinned = NULL;
+        mSlots[i].busy = false;
+    }
+}
+
+ImageDumper::~ImageDumper()
+{
+    requestExitAndWait();
+
+    for (unsigned int i = 0; i < MAX_SLOTS; i++)
+        free(mSlots[i].data);
+}
+
+void ImageDumper::setConfig(const char* dir, unsigned int everyNth, unsigned int retention)
+{
+    Mutex::Autolock lock(mLock);
+
+    if (dir != NULL) {
+        mDir = dir;
+        if (mDir.length() > 0 && mDir[mDir.length() - 1] != '/')
+            mDir.append("/");
+    }
+    mEveryNth = everyNth;
+    mRetention = retention;
+}
+
+void ImageDumper::trigger()
+{
+    Mutex::Autolock lock(mLock);
+    mTriggered = true;
+}
+
+/**
+ * Copies the frame into a free slot and queues it for writing.
+ *
+ * Runs on the caller's (preview) thread, so it never touches the file system.
+ * Returns NOT_SAMPLED for a frame skipped by sampling.
+ **/
+status_t ImageDumper::dump(const void* data, unsigned int width_padded, unsigned int width,
+                           unsigned int height, const char* name)
+{
+    size_t size = width_padded * height * 3 / 2;
+    int idx = -1;
+    status_t status = reserveSlot(size, width_padded, height, name, false, &idx);
+    if (status != NO_ERROR)
+        return status;
+
+    // the slot is ours until the writer clears busy
+    memcpy(mSlots[idx].data, data, size);
+    return queueSlot(idx);
+}
+
+/**
+ * Pins the frame in its heap and queues it for writing, without a copy.
+ *
+ * The heap stays mapped until the frame is written. The caller must not
+ * refill the frame before then, e.g. by holding an accelerator buffer in
+ * manual return mode, or the file may mix two frames.
+ **/
+status_t ImageDumper::dump(const sp<IMemoryHeap>& heap, const void* data, unsigned int width_padded,
+                           unsigned int width, unsigned int height, const char* name)
+{
+    size_t size = width_padded * height * 3 / 2;
+    int idx = -1;
+    status_t status = reserveSlot(size, width_padded, height, name, true, &idx);
+    if (status != NO_ERROR)
+        return status;
+
+    mSlots[idx].heap = heap;
+    mSlots[idx].pinned = (const uint8_t*) data;
+    return queueSlot(idx);
+}
+
+status_t ImageDumper::reserveSlot(size_t size, unsigned int width_padded, unsigned int height,
+                                  const char* name, bool pinned, int* idx)
+{
+    Mutex::Autolock lock(mLock);
+
+    mFrameCount++;
+    bool sampled = mEveryNth > 0 && (mFrameCount % mEveryNth) == 0;
+    if (!sampled && !mTriggered)
+        return NOT_SAMPLED;
+
+    *idx = -1;
+    for (unsigned int i = 0; i < MAX_SLOTS; i++) {
+        if (!mSlots[i].busy) {
+            *idx = i;
+            break;
+        }
+    }
+    if (*idx == -1) {
+        mDropCount++;
+        LOGW("All dump slots busy, dropping frame (%u dropped)", mDropCount);
+        return WOULD_BLOCK;
+    }
+
+    Slot& slot = mSlots[*idx];
+    if (!pinned && slot.capacity < size) {
+        uint8_t* buf = (uint8_t*) realloc(slot.data, size);
+        if (buf == NULL) {
+            LOGE("Could not allocate %d bytes for dump", size);
+            return NO_MEMORY;
+        }
+        slot.data = buf;
+        slot.capacity = size;
+    }
+    slot.busy = true;
+    slot.pinned = NULL;
+    slot.size = size;
+    slot.width_padded = width_padded;
+    slot.height = height;
+    slot.count = mDumpCount++;
+    strncpy(slot.name, name, NAME_LENGTH - 1);
+    slot.name[NAME_LENGTH - 1] = '\0';
+    mTriggered = false;
+    return NO_ERROR;
+}
+
+status_t ImageDumper::queueSlot(int idx)
+{
+    Message msg;
+    msg.id = MESSAGE_ID_WRITE;
+    msg.data.write.slot = idx;
+    status_t status = mMessageQueue.send(&msg);
+    if (status != NO_ERROR) {
+        // nobody will write it, give the slot back
+        LOGE("Could not queue dump slot %d, status = %d", idx, status);
+        Mutex::Autolock lock(mLock);
+        mSlots[idx].heap.clear();
+        mSlots[idx].pinned = NULL;
+        mSlots[idx].busy = false;
+    }
+    return status;
+}
+
+bool ImageDumper::threadLoop()
+{
+    mThreadRunning = true;
+    while (mThreadRunning) {
+        Message msg;
+        mMessageQueue.receive(&msg);
+
+        status_t status = NO_ERROR;
+        switch (msg.id) {
+            case MESSAGE_ID_EXIT:
+                status = handleExit();
+                break;
+            case MESSAGE_ID_WRITE:
+                status = handleMessageWrite(msg.data.write);
+                break;
+            default:
+                status = INVALID_OPERATION;
+                break;
+        }
+        if (status != NO_ERROR) {
+            LOGE("operation failed, ID = %d, status = %d", msg.id, status);
+        }
+    }
+
+    return false;
+}
+
+/**
+ * Writes one slot with a single vectored write of the Y and UV planes.
+ **/
+status_t ImageDumper::handleMessageWrite(const MessageWrite& msg)
+{
+    Slot& slot = mSlots[msg.slot];
+    String8 path;
+    {
+        Mutex::Autolock lock(mLock);
+        path = mDir;
+    }
+    path.appendFormat("dump_%d_%d_%03u_%s", slot.width_padded, slot.height, slot.count, slot.name);
+
+    LOGD("Will write image to %s", path.string());
+
+    status_t status = NO_ERROR;
+    int fd = open(path.string(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    if (fd < 0) {
+        LOGE("open file %s failed %s", path.string(), strerror(errno));
+        status = UNKNOWN_ERROR;
+    } else {
+        uint8_t* data = slot.pinned != NULL ? (uint8_t*) slot.pinned : slot.data;
+        size_t ySize = slot.width_padded * slot.height;
+        struct iovec iov[2];
+        iov[0].iov_base = data;
+        iov[0].iov_len = ySize;
+        iov[1].iov_base = data + ySize;
+        iov[1].iov_len = slot.size - ySize;
+
+        int iovIdx = 0;
+        size_t written = 0;
+        while (iovIdx < 2) {
+            ssize_t ret = writev(fd, iov + iovIdx, 2 - iovIdx);
+            if (ret < 0) {
+                if (errno == EINTR)
+                    continue;
+                break;
+            }
+            written += ret;
+            // skip over fully written vectors, adjust a partially written one
+            while (iovIdx < 2 && (size_t) ret >= iov[iovIdx].iov_len) {
+                ret -= iov[iovIdx].iov_len;
+                iovIdx++;
+            }
+            if (iovIdx < 2) {
+                iov[iovIdx].iov_base = (uint8_t*) iov[iovIdx].iov_base + ret;
+                iov[iovIdx].iov_len -= ret;
+            }
+        }
+        if (written < slot.size)
+            LOGW("Write less raw bytes to %s: %d, %d", path.string(), slot.size, written);
+
+        close(fd);
+        enforceRetention(path);
+    }
+
+    Mutex::Autolock lock(mLock);
+    slot.heap.clear();
+    slot.pinned = NULL;
+    slot.busy = false;
+    return status;
+}
+
+void ImageDumper::enforceRetention(const String8& written)
+{
+    Mutex::Autolock lock(mLock);
+
+    mWritten.push_back(written);
+    while (mRetention > 0 && mWritten.size() > mRetention) {
+        unlink(mWritten[0].string());
+        mWritten.removeAt(0);
+    }
+}
+
+status_t ImageDumper::requestExitAndWait()
+{
+    Message msg;
+    msg.id = MESSAGE_ID_EXIT;
+    // tell thread to exit
+    // send message asynchronously
+    mMessageQueue.send(&msg);
+
+    // propagate call to base class
+    return Thread::requestExitAndWait();
+}
+
+status_t ImageDumper::handleExit()
+{
+    mThreadRunning = false;
+    return NO_ERROR;
+}
+
+}; // namespace android
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014, Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef __IMAGE_DUMPER_H__
+#define __IMAGE_DUMPER_H__
+
+#include <binder/IMemory.h>
+#include <utils/threads.h>
+#include <utils/String8.h>
+#include <utils/Vector.h>
+#include "MessageQueue.h"
+
+namespace android {
+
+/**
+ * Background writer for CameraAcc::dumpImage2File.
+ *
+ * Frames are queued in a fixed number of slots and written from the dumper
+ * thread. A frame given as a raw pointer is copied into its slot on the
+ * calling thread, since nothing keeps the caller's buffer alive. A frame
+ * given with its IMemoryHeap is pinned instead: the slot holds a reference
+ * to the heap and the writer reads the frame in place, so the caller does no
+ * copy. When all slots are in use the frame is dropped instead of blocking
+ * the caller. Frames are sampled (every Nth frame and/or on trigger) and
+ * only the last "retention" files are kept in the output directory.
+ **/
+class ImageDumper: public Thread
+{
+public:
+    static const unsigned int MAX_SLOTS = 4;
+    static const unsigned int NAME_LENGTH = 32;
+
+    static sp<ImageDumper> getInstance();
+
+    // returned by dump() for frames skipped by sampling
+    static const status_t NOT_SAMPLED = 1;
+
+    status_t dump(const void* data, unsigned int width_padded, unsigned int width,
+                  unsigned int height, const char* name);
+    status_t dump(const sp<IMemoryHeap>& heap, const void* data, unsigned int width_padded,
+                  unsigned int width, unsigned int height, const char* name);
+    void setConfig(const char* dir, unsigned int everyNth, unsigned int retention);
+    void trigger();
+
+    // Thread overrides
+    status_t requestExitAndWait();
+
+private:
+    ImageDumper();
+    ~ImageDumper();
+
+    // thread message id's
+    enum MessageId {
+        MESSAGE_ID_EXIT = 0,            // call requestExitAndWait
+        MESSAGE_ID_WRITE,
+
+        // max number of messages
+        MESSAGE_ID_MAX
+    };
+
+    struct MessageWrite {
+        int slot;
+    };
+
+    // union of all message data
+    union MessageData {
+        // MESSAGE_ID_WRITE
+        MessageWrite write;
+    };
+
+    // message id and message data
+    struct Message {
+        MessageId id;
+        MessageData data;
+    };
+
+    // a frame copied out of the caller's buffer, waiting to be written
+    struct Slot {
+        uint8_t* data;              // copy of an unpinned frame
+        size_t capacity;
+        sp<IMemoryHeap> heap;       // keeps a pinned frame mapped until written
+        const uint8_t* pinned;      // the pinned frame, NULL for a copied one
+        size_t size;
+        unsigned int width_padded;
+        unsigned int height;
+        unsigned int count;
+        char name[NAME_LENGTH];
+        bool busy;
+    };
+
+    virtual bool threadLoop();
+
+    status_t reserveSlot(size_t size, unsigned int width_padded, unsigned int height,
+                         const char* name, bool pinned, int* idx);
+    status_t queueSlot(int idx);
+
+    status_t handleExit();
+    status_t handleMessageWrite(const MessageWrite& msg);
+    void enforceRetention(const String8& written);
+
+    MessageQueue<Message, MessageId> mMessageQueue;
+    bool mThreadRunning;
+
+    Mutex mLock;                // protects everything below
+    Slot mSlots[MAX_SLOTS];
+    String8 mDir;
+    unsigned int mEveryNth;     // 0 disables sampling, dumps only on trigger
+    unsigned int mRetention;    // 0 keeps all files
+    bool mTriggered;
+    unsigned int mFrameCount;   // frames offered to dump()
+    unsigned int mDumpCount;    // frames accepted, used in the file name
+    unsigned int mDropCount;    // frames dropped because all slots were busy
+    Vector<String8> mWritten;   // oldest first
+};
+
+}; // namespace android
+
+#endif // __IMAGE_DUMPER_H__
@@ -1,6 +1,8 @@
 #define LOG_TAG "Camera_Acc"
 
 #include "libacc.h"
+#include "CameraTrace.h"
+#include "ImageDumper.h"
 #include <camera/Camera.h>
 #include <camera/CameraParameters.h>
 
@@ -28,6 +30,7 @@ CameraAcc::CameraAcc(sp<Camera> cam)   :
     ,mCamera(cam)
     ,mStandaloneMode(false)
     ,mCallback(NULL)
+    ,mManualReturn(false)
 {
     LOG1("@%s", __FUNCTION__);
 
@@ -179,8 +182,6 @@ status_t CameraAcc::acc_unload_standalone()
 
 void* CameraAcc::host_alloc(int size)
 {
-    LOG1("@%s", __FUNCTION__);
-
     if (mArgumentBuffers.size() >= MAX_NUMBER_ARGUMENT_BUFFERS) {
         LOGE("Cannot allocate more buffers!");
         return NULL;
@@ -194,7 +195,7 @@ void* CameraAcc::host_alloc(int size)
     // postData has been called
 
     int idx = mArgumentBuffers.size()-1;
-    LOG2("host_alloc: Returning buffer pointer %d", idx);
+    CAMERA_TRACE(TRACE_LEVEL_VERBOSE, TRACE_ACC_HOST_ALLOC, size, idx, 0);
     return mArgumentBuffers[idx].mem->base();
 }
 
@@ -233,8 +234,6 @@ status_t CameraAcc::host_free(host_ptr ptr)
 
 status_t CameraAcc::acc_map(host_ptr in, isp_ptr &out)
 {
-    LOG1("@%s", __FUNCTION__);
-
     int idx = -1;
     for (unsigned int i = 0; i < mArgumentBuffers.size(); i++) {
         if (mArgumentBuffers[i].mem->base() == in) {
@@ -252,8 +251,8 @@ status_t CameraAcc::acc_map(host_ptr in, isp_ptr &out)
     msg.data.map.idx = idx;
     mMessageQueue.send(&msg, MESSAGE_ID_MAP);
 
-    LOG2("acc_map: Returning buffer pointer %d", idx);
     out = mArgumentBuffers[idx].ptr;
+    CAMERA_TRACE(TRACE_LEVEL_VERBOSE, TRACE_ACC_MAP, idx, out, 0);
 
     return NO_ERROR;
 }
@@ -303,6 +302,7 @@ status_t CameraAcc::acc_unmap(isp_ptr p)
     }
 
     mCamera->sendCommand(CAMERA_CMD_ACC_UNMAP, idx, 0);
+    CAMERA_TRACE(TRACE_LEVEL_VERBOSE, TRACE_ACC_UNMAP, idx, 0, 0);
 
     mArgumentBuffers.editItemAt(idx).ptr = NULL;
 
@@ -321,6 +321,29 @@ status_t CameraAcc::register_callback(preview_callback cb)
     return NO_ERROR;
 }
 
+/**
+ * When enabled, postPreviewBuffer() no longer returns preview buffers to the
+ * HAL after the callback. The holder of the Frame must return each buffer
+ * with acc_return_buffer().
+ **/
+void CameraAcc::set_manual_return(bool enable)
+{
+    LOG1("@%s, enable=%d", __FUNCTION__, enable);
+
+    mManualReturn = enable;
+}
+
+status_t CameraAcc::acc_return_buffer(int frameCounter)
+{
+    status_t status = mCamera->sendCommand(CAMERA_CMD_ACC_RETURN_BUFFER, frameCounter, 0);
+    CAMERA_TRACE(TRACE_LEVEL_VERBOSE, TRACE_ACC_RETURN_BUFFER, frameCounter, status, 0);
+
+    if (status != NO_ERROR)
+        LOGE("Could not return buffer");
+
+    return status;
+}
+
 bool CameraAcc::threadLoop()
 {
     LOG2("@%s", __FUNCTION__);
@@ -438,41 +461,42 @@ void CameraAcc::postArgumentBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size
 /**
  * This Callback is used by HAL to return the pointer to a preview frame.
  *
- * After we have created the Frame struct, we can call the user-defined callback
+ * After we have created the Frame struct, we can call the user-defined callback.
+ * The Frame is also copied to the caller. Returns true if the buffer is held
+ * (manual return mode) and must be returned with acc_return_buffer().
  **/
-void CameraAcc::postPreviewBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size_t size, ssize_t offset)
+bool CameraAcc::postPreviewBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size_t size, ssize_t offset, Frame &frame)
 {
-    LOG2("@%s, heapBase=%p, size=%d", __FUNCTION__, heapBase, size);
-
     int frameCounter = mFrameMetadata->frameCounter;
+    CAMERA_TRACE(TRACE_LEVEL_EVENT, TRACE_ACC_PREVIEW_BUFFER, frameCounter, mFrameMetadata->id, size);
+
+    // Create Frame struct
+    frame.img_data = heap->base();
+    frame.id = mFrameMetadata->id;
+    frame.frameCounter = mFrameMetadata->frameCounter;
+    frame.width = mFrameMetadata->width;
+    frame.height = mFrameMetadata->height;
+    frame.format = mFrameMetadata->format;
+    frame.stride = mFrameMetadata->stride;
+    frame.size = mFrameMetadata->size;
 
     if (mCallback != NULL)
     {
-        // Create Frame struct
-        Frame f;
-        f.img_data = heap->base();
-        f.id = mFrameMetadata->id;
-        f.frameCounter = mFrameMetadata->frameCounter;
-        f.width = mFrameMetadata->width;
-        f.height = mFrameMetadata->height;
-        f.format = mFrameMetadata->format;
-        f.stride = mFrameMetadata->stride;
-        f.size = mFrameMetadata->size;
-
         // Call callback function
-        mCallback(&f);
+        mCallback(&frame);
     }
 
-    // Return buffer
-    status_t status = mCamera->sendCommand(CAMERA_CMD_ACC_RETURN_BUFFER, frameCounter, 0);
+    if (mManualReturn)
+        return true;
 
-    if (status != NO_ERROR)
-        LOGE("Could not return buffer");
+    // Return buffer
+    acc_return_buffer(frameCounter);
+    return false;
 }
 
 void CameraAcc::postMetadataBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size_t size, ssize_t offset)
 {
-    LOG2("@%s, heapBase=%p, size=%d", __FUNCTION__, heapBase, size);
+    CAMERA_TRACE(TRACE_LEVEL_VERBOSE, TRACE_ACC_METADATA_BUFFER, size, offset, 0);
 
     mFrameMetadata = (Frame*) heapBase;
     mFrameMetadataBuffer = heap;
@@ -480,44 +504,56 @@ void CameraAcc::postMetadataBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size
 
 // ########## Debugging ##########
 
+/**
+ * Dumps an NV12 frame to the dump directory
+ *
+ * The frame is copied on the calling thread and written asynchronously by
+ * the dumper thread. Returns true if the frame was queued for writing, false
+ * if it was invalid, skipped by sampling or dropped because the dumper is
+ * busy.
+ **/
 bool CameraAcc::dumpImage2File(const void* data, const unsigned int width_padded, unsigned int width,
                           unsigned int height, const char* name)
 {
-    LOGD("@%s", __FUNCTION__);
-    char filename[80];
-    static unsigned int count = 0;
-    size_t bytes = 0;
-    FILE *fp;
-    char rawdpp[100];
-    int ret;
-    int size;
-
     if ((NULL == data) || (0 == width_padded) || (0 == width) || (0 == height) || (NULL == name) || (width_padded < width))
         return false;
 
-    size = width_padded * height * 1.5;
-
-    snprintf(rawdpp, sizeof(rawdpp), "/mnt/cameradump/");
-
-    snprintf(filename, sizeof(filename), "dump_%d_%d_%03u_%s", width_padded,
-             height, count, name);
-    strncat(rawdpp, filename, strlen(filename));
-
-    LOGD("Will write image to %s", rawdpp);
+    return ImageDumper::getInstance()->dump(data, width_padded, width, height, name) == NO_ERROR;
+}
 
-    fp = fopen (rawdpp, "w+");
-    if (fp == NULL) {
-        LOGE("open file %s failed %s", rawdpp, strerror(errno));
+/**
+ * Dumps an NV12 frame that lives in heap without copying it
+ *
+ * The heap is referenced until the dumper thread has written the frame, so
+ * the calling thread does no copy. The frame must not be refilled before
+ * then, e.g. hold an accelerator buffer in manual return mode until the dump
+ * is written. Returns the same as the copying variant.
+ **/
+bool CameraAcc::dumpImage2File(const sp<IMemoryHeap>& heap, const void* data, const unsigned int width_padded,
+                          unsigned int width, unsigned int height, const char* name)
+{
+    if ((heap == NULL) || (NULL == data) || (0 == width_padded) || (0 == width) || (0 == height) || (NULL == name) || (width_padded < width))
         return false;
-    }
-
-    bytes = fwrite(data, size, 1, fp);
-    if (bytes < (size_t)size)
-        LOGW("Write less raw bytes to %s: %d, %d", filename, size, bytes);
 
-    count++;
+    return ImageDumper::getInstance()->dump(heap, data, width_padded, width, height, name) == NO_ERROR;
+}
 
-    fclose (fp);
+/**
+ * Configures dumpImage2File
+ *
+ * \param dir output directory, NULL keeps the current one (default /mnt/cameradump/)
+ * \param everyNth dump every Nth frame passed to dumpImage2File, 0 dumps only on triggerDump()
+ * \param retention number of most recent dump files to keep, 0 keeps all
+ **/
+void CameraAcc::setDumpConfig(const char* dir, unsigned int everyNth, unsigned int retention)
+{
+    ImageDumper::getInstance()->setConfig(dir, everyNth, retention);
+}
 
-    return true;
+/**
+ * Dumps the next frame passed to dumpImage2File regardless of sampling
+ **/
+void CameraAcc::triggerDump()
+{
+    ImageDumper::getInstance()->trigger();
 }
@@ -52,14 +52,20 @@ class CameraAcc: public Thread
         status_t acc_sendarg(isp_ptr arg);
         status_t acc_unmap(isp_ptr p);
         status_t register_callback(preview_callback cb);
+        void set_manual_return(bool enable);
+        status_t acc_return_buffer(int frameCounter);
         static bool dumpImage2File(const void* data, const unsigned int width_padded, unsigned int width,
                                    unsigned int height, const char* name);
+        static bool dumpImage2File(const sp<IMemoryHeap>& heap, const void* data, const unsigned int width_padded,
+                                   unsigned int width, unsigned int height, const char* name);
+        static void setDumpConfig(const char* dir, unsigned int everyNth, unsigned int retention);
+        static void triggerDump();
 
         // Callbacks
         void notifyPointer(int32_t data, int32_t idx);
         void notifyFinished();
         void postArgumentBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size_t size, ssize_t offset);
-        void postPreviewBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size_t size, ssize_t offset);
+        bool postPreviewBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size_t size, ssize_t offset, Frame &frame);
         void postMetadataBuffer(sp<IMemoryHeap> heap, uint8_t *heapBase, size_t size, ssize_t offset);
 
     // Thread overrides
@@ -139,6 +145,7 @@ class CameraAcc: public Thread
         sp<IMemoryHeap> mFrameMetadataBuffer;
 
         preview_callback mCallback;
+        bool mManualReturn;     // buffers are returned with acc_return_buffer()
 };
 
 #endif // __LIBACC_H__